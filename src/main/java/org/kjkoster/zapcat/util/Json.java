@@ -0,0 +1,104 @@
+package org.kjkoster.zapcat.util;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A minimal JSON writer, just enough for the values that we send to Zabbix.
+ * We don't want to drag a JSON library into every application that embeds
+ * Zapcat.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public final class Json {
+    private Json() {
+        // static methods only
+    }
+
+    /**
+     * Append a string as a quoted and escaped JSON string.
+     *
+     * @param json
+     *            The buffer to append to.
+     * @param string
+     *            The string to append.
+     * @return The buffer.
+     */
+    public static StringBuilder appendString(final StringBuilder json,
+            final String string) {
+        json.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    final String hex = Integer.toHexString(c);
+                    json.append("\\u");
+                    for (int pad = hex.length(); pad < 4; pad++) {
+                        json.append('0');
+                    }
+                    json.append(hex);
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Append a value. Numbers and booleans are written as such, unless they
+     * cannot be represented in JSON. <code>null</code> is written as null.
+     * Anything else is written as a string.
+     *
+     * @param json
+     *            The buffer to append to.
+     * @param value
+     *            The value to append.
+     * @return The buffer.
+     */
+    public static StringBuilder appendValue(final StringBuilder json,
+            final Object value) {
+        if (value == null) {
+            return json.append("null");
+        }
+        if (value instanceof Boolean) {
+            return json.append(value);
+        }
+        if (value instanceof Number) {
+            final double number = ((Number) value).doubleValue();
+            if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                return json.append(value);
+            }
+        }
+        return appendString(json, value.toString());
+    }
+}
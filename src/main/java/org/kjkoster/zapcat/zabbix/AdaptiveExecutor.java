@@ -0,0 +1,213 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A thread pool with a bounded queue and a concurrency limit that adapts to
+ * the observed query latency. When queries get slower than they are without
+ * load, the pool shrinks so that we stop piling more work onto a struggling
+ * mbean server. While latency is good and work is queueing up, the pool
+ * grows.
+ * <p>
+ * Work that does not fit in the queue is shed: the task is told to give up
+ * quickly instead of being queued.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class AdaptiveExecutor extends ThreadPoolExecutor {
+    private static final Logger log = Logger.getLogger(AdaptiveExecutor.class
+            .getName());
+
+    // how often we look at the latency and reconsider the limit
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(500L);
+
+    /**
+     * A task that knows how to give up cheaply when the agent is saturated.
+     */
+    interface Sheddable extends Runnable {
+        /**
+         * Give up on this task. This is called on the thread that tried to
+         * submit the task and should not block.
+         */
+        void shed();
+    }
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final AgentStatistics statistics;
+
+    private final AtomicLong lastAdjust = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    // the fields below are guarded by the lastAdjust CAS
+    private long lastAnswers;
+
+    private long lastNanos;
+
+    private double baseline = Double.NaN;
+
+    private volatile double limit;
+
+    /**
+     * Create a new adaptive pool.
+     *
+     * @param minLimit
+     *            The smallest number of workers.
+     * @param maxLimit
+     *            The largest number of workers.
+     * @param queueSize
+     *            The number of tasks that may wait for a worker.
+     * @param statistics
+     *            The statistics to read the query latency from.
+     */
+    AdaptiveExecutor(final int minLimit, final int maxLimit,
+            final int queueSize, final AgentStatistics statistics) {
+        super(minLimit, minLimit, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new Shedder());
+        allowCoreThreadTimeOut(true);
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.statistics = statistics;
+        this.limit = minLimit;
+        this.lastAnswers = statistics.answers.get();
+        this.lastNanos = statistics.queryNanos.get();
+    }
+
+    /**
+     * Read the current concurrency limit.
+     *
+     * @return The number of workers we currently allow.
+     */
+    int getLimit() {
+        return getMaximumPoolSize();
+    }
+
+    /**
+     * Read the number of tasks that were shed.
+     *
+     * @return The number of rejected tasks.
+     */
+    long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @see java.util.concurrent.ThreadPoolExecutor#afterExecute(java.lang.Runnable,
+     *      java.lang.Throwable)
+     */
+    @Override
+    protected void afterExecute(final Runnable task, final Throwable t) {
+        super.afterExecute(task, t);
+        adjust();
+    }
+
+    /*
+     * Reconsider the limit, at most once per interval. This borrows the
+     * gradient idea from TCP congestion control: the ratio between the
+     * latency without load and the current latency tells us how far we are
+     * overloading the mbean server.
+     */
+    private void adjust() {
+        final long now = System.nanoTime();
+        final long last = lastAdjust.get();
+        if (now - last < INTERVAL || !lastAdjust.compareAndSet(last, now)) {
+            return;
+        }
+
+        final long answers = statistics.answers.get();
+        final long nanos = statistics.queryNanos.get();
+        final long count = answers - lastAnswers;
+        final long spent = nanos - lastNanos;
+        lastAnswers = answers;
+        lastNanos = nanos;
+        if (count <= 0L) {
+            return;
+        }
+
+        final double latency = Math.max(1.0, (double) spent / count);
+        if (Double.isNaN(baseline) || latency < baseline) {
+            baseline = latency;
+        } else {
+            // slowly forget old minimums, the server may have changed
+            baseline += (latency - baseline) / 20.0;
+        }
+
+        final double gradient = Math.max(0.5, Math.min(1.0, baseline
+                / latency));
+        double target = limit * gradient;
+        if (!getQueue().isEmpty()) {
+            // there is demand, probe for more capacity
+            target += Math.sqrt(limit);
+        }
+        final double smoothed = Math.max(minLimit, Math.min(maxLimit,
+                0.8 * limit + 0.2 * target));
+        resize(smoothed);
+    }
+
+    private synchronized void resize(final double newLimit) {
+        final int oldSize = getMaximumPoolSize();
+        limit = newLimit;
+        final int newSize = (int) Math.round(newLimit);
+        if (newSize == oldSize) {
+            return;
+        }
+
+        log.fine("changing worker limit from " + oldSize + " to " + newSize);
+        if (newSize > oldSize) {
+            setMaximumPoolSize(newSize);
+            setCorePoolSize(newSize);
+        } else {
+            setCorePoolSize(newSize);
+            setMaximumPoolSize(newSize);
+        }
+    }
+
+    /**
+     * Our rejection policy. Sheddable tasks are asked to give up, others are
+     * dropped.
+     */
+    private static final class Shedder implements RejectedExecutionHandler {
+        /**
+         * @see java.util.concurrent.RejectedExecutionHandler#rejectedExecution(java.lang.Runnable,
+         *      java.util.concurrent.ThreadPoolExecutor)
+         */
+        public void rejectedExecution(final Runnable task,
+                final ThreadPoolExecutor executor) {
+            final AdaptiveExecutor adaptive = (AdaptiveExecutor) executor;
+            adaptive.rejections.incrementAndGet();
+            if (!adaptive.isShutdown()) {
+                log.fine("agent is saturated, shedding a request");
+                adaptive.adjust();
+            }
+
+            if (task instanceof Sheddable) {
+                ((Sheddable) task).shed();
+            }
+        }
+    }
+}
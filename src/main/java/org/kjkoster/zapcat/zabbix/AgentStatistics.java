@@ -0,0 +1,261 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters that an agent keeps about its own work. The transports update
+ * them and the agent's mbean publishes them. They can also be polled as
+ * <code>zapcat.*</code> keys, so that the agent's own overhead can be
+ * watched from Zabbix.
+ * <p>
+ * The times that evaluating queries took are kept in a histogram per
+ * namespace. Answers from the sampler and the result cache are not in
+ * there, since they do not touch the application.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class AgentStatistics {
+    final AtomicLong accepted = new AtomicLong();
+
+    final AtomicLong rejected = new AtomicLong();
+
+    final AtomicLong open = new AtomicLong();
+
+    final AtomicLong requests = new AtomicLong();
+
+    final AtomicLong idleTimeouts = new AtomicLong();
+
+    final AtomicLong answers = new AtomicLong();
+
+    // the total time spent working out the answers
+    final AtomicLong queryNanos = new AtomicLong();
+
+    final AtomicLong bytesIn = new AtomicLong();
+
+    final AtomicLong bytesOut = new AtomicLong();
+
+    // the answers that were ZBX_NOTSUPPORTED, by namespace
+    final AtomicLongArray errors = new AtomicLongArray(QueryKey.Namespace
+            .values().length);
+
+    final LatencyHistogram[] latencies = new LatencyHistogram[QueryKey.Namespace
+            .values().length];
+    {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    final SlowestKeys slowest = new SlowestKeys(10);
+
+    /*
+     * Queries are evaluated by static code that all agents in the JVM share,
+     * so the exceptions that they run into are counted for the JVM as a
+     * whole.
+     */
+    private static final int MAX_EXCEPTION_TYPES = 256;
+
+    private static final ConcurrentMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Record a connection that passed the whitelist.
+     */
+    void connectionOpened() {
+        accepted.incrementAndGet();
+        open.incrementAndGet();
+    }
+
+    /**
+     * Record the end of a connection that was opened before.
+     */
+    void connectionClosed() {
+        open.decrementAndGet();
+    }
+
+    /**
+     * Record a request that was answered.
+     * 
+     * @param key
+     *            The key that was queried.
+     * @param nanos
+     *            The time it took to work out the response.
+     * @param response
+     *            The response.
+     */
+    void answered(final QueryKey key, final long nanos, final String response) {
+        answers.incrementAndGet();
+        queryNanos.addAndGet(nanos);
+
+        latencies[key.namespace.ordinal()].record(nanos);
+        slowest.record(key.key, nanos);
+        if (QueryHandler.NOTSUPPORTED.equals(response)) {
+            errors.incrementAndGet(key.namespace.ordinal());
+        }
+    }
+
+    /**
+     * Count an exception that a query ran into.
+     * 
+     * @param e
+     *            The exception.
+     */
+    static void failed(final Throwable e) {
+        final String type = e.getClass().getSimpleName();
+        AtomicLong counter = exceptions.get(type);
+        if (counter == null) {
+            if (exceptions.size() >= MAX_EXCEPTION_TYPES) {
+                // don't grow without bounds, whatever gets thrown at us
+                return;
+            }
+            final AtomicLong fresh = new AtomicLong();
+            counter = exceptions.putIfAbsent(type, fresh);
+            if (counter == null) {
+                counter = fresh;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Read the number of times that queries ran into an exception of some
+     * type.
+     * 
+     * @param type
+     *            The simple class name of the exception.
+     * @return The number of times.
+     */
+    static long getExceptions(final String type) {
+        final AtomicLong counter = exceptions.get(type);
+        return counter == null ? 0L : counter.get();
+    }
+
+    /**
+     * Add up the errors over all namespaces.
+     * 
+     * @return The number of requests that were answered with
+     *         ZBX_NOTSUPPORTED.
+     */
+    long getErrors() {
+        long total = 0L;
+        for (int i = 0; i < errors.length(); i++) {
+            total += errors.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Describe the latencies of the namespaces that saw any requests.
+     * 
+     * @return One line per namespace.
+     */
+    List<String> describeLatencies() {
+        final List<String> lines = new ArrayList<String>();
+        for (final QueryKey.Namespace namespace : QueryKey.Namespace.values()) {
+            final LatencyHistogram histogram = latencies[namespace.ordinal()];
+            if (histogram.getCount() > 0L) {
+                lines.add(namespace + ": " + histogram + ", errors="
+                        + errors.get(namespace.ordinal()));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Describe the exceptions that queries ran into.
+     * 
+     * @return One line per type of exception, sorted by name.
+     */
+    static List<String> describeExceptions() {
+        final List<String> lines = new ArrayList<String>();
+        for (final Map.Entry<String, AtomicLong> exception : new TreeMap<String, AtomicLong>(
+                exceptions).entrySet()) {
+            lines.add(exception.getKey() + ": " + exception.getValue().get());
+        }
+        return lines;
+    }
+
+    /**
+     * Answer one of the <code>zapcat.*</code> keys.
+     * 
+     * @param key
+     *            The key.
+     * @return The value, or ZBX_NOTSUPPORTED if there is no such key.
+     */
+    String query(final QueryKey key) {
+        final String name = key.key.indexOf('[') < 0 ? key.key : key.key
+                .substring(0, key.key.indexOf('['));
+        final String[] parameters = key.attribute == null ? new String[0]
+                : key.attribute.split(",\\s*");
+
+        if ("zapcat.requests".equals(name)) {
+            if (parameters.length == 0) {
+                return Long.toString(requests.get());
+            }
+            return Long.toString(latencies[QueryKey.Namespace.of(
+                    parameters[0]).ordinal()].getCount());
+        }
+        if ("zapcat.errors".equals(name)) {
+            if (parameters.length == 0) {
+                return Long.toString(getErrors());
+            }
+            return Long.toString(errors.get(QueryKey.Namespace.of(
+                    parameters[0]).ordinal()));
+        }
+        if ("zapcat.latency".equals(name) && parameters.length == 2) {
+            final LatencyHistogram histogram = latencies[QueryKey.Namespace
+                    .of(parameters[0]).ordinal()];
+            if ("avg".equals(parameters[1])) {
+                return Long.toString(histogram.getMean());
+            }
+            if ("max".equals(parameters[1])) {
+                return Long.toString(histogram.getMax());
+            }
+            try {
+                return Long.toString(histogram.getPercentile(Double
+                        .parseDouble(parameters[1])));
+            } catch (NumberFormatException e) {
+                return QueryHandler.NOTSUPPORTED;
+            }
+        }
+        if ("zapcat.exceptions".equals(name) && parameters.length == 1) {
+            return Long.toString(getExceptions(parameters[0]));
+        }
+        if ("zapcat.bytes.in".equals(name)) {
+            return Long.toString(bytesIn.get());
+        }
+        if ("zapcat.bytes.out".equals(name)) {
+            return Long.toString(bytesOut.get());
+        }
+        if ("zapcat.slowest".equals(name)) {
+            final StringBuilder text = new StringBuilder();
+            for (final String line : slowest.describe()) {
+                text.append(line).append('\n');
+            }
+            return text.toString().trim();
+        }
+        return QueryHandler.NOTSUPPORTED;
+    }
+}
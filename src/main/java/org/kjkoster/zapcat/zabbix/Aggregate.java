@@ -0,0 +1,175 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Evaluates the aggregating keys, such as
+ * <code>jmx.sum[*:type=GlobalRequestProcessor,*][requestCount]</code>. These
+ * read one attribute from every mbean that matches a pattern and boil the
+ * values down to a single number, so that Zabbix needs one item instead of
+ * one per mbean.
+ * <p>
+ * The pattern is expanded with the mbean index, so there is no call to
+ * <code>queryNames()</code>. Each matching mbean costs one call to
+ * <code>getAttributes()</code>, which does not fail on mbeans that lack the
+ * attribute. Those mbeans are skipped, as are values that are not numbers.
+ * <p>
+ * Sums, minimums and maximums of whole numbers are whole numbers. As soon as
+ * a fractional value is involved, or for averages, the result is a decimal.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Aggregate {
+    private static final Logger log = Logger.getLogger(Aggregate.class
+            .getName());
+
+    private final QueryKey.Namespace function;
+
+    private int count = 0;
+
+    private boolean fractional = false;
+
+    private long longSum = 0L;
+
+    private double doubleSum = 0.0;
+
+    private long longMin = Long.MAX_VALUE;
+
+    private long longMax = Long.MIN_VALUE;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private Aggregate(final QueryKey.Namespace function) {
+        this.function = function;
+    }
+
+    /**
+     * Evaluate an aggregating key.
+     *
+     * @param key
+     *            The compiled key.
+     * @return The aggregated value, or ZBX_NOTSUPPORTED if there are no
+     *         values to work with and the function has no sensible answer
+     *         for that.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    static String evaluate(final QueryKey key) throws IOException {
+        final List<ObjectName> names = MBeanIndex.get().query(key.objectName);
+        if (key.path == null) {
+            // jmx.count[pattern]
+            return Integer.toString(names.size());
+        }
+
+        final Aggregate aggregate = new Aggregate(key.namespace);
+        final String[] attribute = { key.path[0] };
+        for (final ObjectName name : names) {
+            try {
+                final Object value = JMXHelper.resolve(JMXHelper
+                        .getAttributes(name, attribute).get(key.path[0]),
+                        key.path);
+                if (value instanceof Number) {
+                    aggregate.add((Number) value);
+                }
+            } catch (InstanceNotFoundException e) {
+                // it went away after we looked it up
+            } catch (ReflectionException e) {
+                log.log(Level.FINE, "unable to read " + key.attribute
+                        + " from " + name, e);
+            } catch (RuntimeException e) {
+                log.log(Level.FINE, "no field " + key.attribute + " on "
+                        + name, e);
+            }
+        }
+
+        return aggregate.result();
+    }
+
+    private void add(final Number value) {
+        count++;
+        final double d = value.doubleValue();
+        if (isWhole(value)) {
+            final long l = value.longValue();
+            longSum += l;
+            longMin = Math.min(longMin, l);
+            longMax = Math.max(longMax, l);
+        } else {
+            fractional = true;
+        }
+        doubleSum += d;
+        min = Math.min(min, d);
+        max = Math.max(max, d);
+    }
+
+    /**
+     * Check whether a number is of one of the whole number types that we
+     * can count with as a <code>long</code>.
+     *
+     * @param value
+     *            The number to check.
+     * @return <code>true</code> for whole numbers.
+     */
+    static boolean isWhole(final Number value) {
+        return value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicLong
+                || value instanceof AtomicInteger;
+    }
+
+    private String result() {
+        switch (function) {
+        case JMX_COUNT:
+            return Integer.toString(count);
+        case JMX_SUM:
+            if (count == 0) {
+                return "0";
+            }
+            return fractional ? Double.toString(doubleSum) : Long
+                    .toString(longSum);
+        case JMX_AVG:
+            if (count == 0) {
+                return QueryHandler.NOTSUPPORTED;
+            }
+            return Double.toString(doubleSum / count);
+        case JMX_MIN:
+            if (count == 0) {
+                return QueryHandler.NOTSUPPORTED;
+            }
+            return fractional ? Double.toString(min) : Long.toString(longMin);
+        case JMX_MAX:
+            if (count == 0) {
+                return QueryHandler.NOTSUPPORTED;
+            }
+            return fractional ? Double.toString(max) : Long.toString(longMax);
+        default:
+            throw new IllegalStateException("not an aggregate: " + function);
+        }
+    }
+}
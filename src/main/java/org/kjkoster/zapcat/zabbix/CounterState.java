@@ -0,0 +1,163 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The last sample of every counter that we compute rates or deltas for. This
+ * is an open addressing hash table on plain arrays. Each sample is stored as
+ * the 64-bit hash of its key, the raw bits of the value and a timestamp, so
+ * that taking a sample does not create any objects to collect later.
+ * <p>
+ * Two keys with the same 64-bit hash would share their state. With the few
+ * thousand keys that an agent sees, we accept that risk.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class CounterState {
+    // hash 0 marks an empty slot, so real hashes are never 0
+    private static final long EMPTY = 0L;
+
+    // we start over when someone sends us this many different keys
+    private static final int MAX_ENTRIES = 4096;
+
+    private long[] hashes;
+
+    private long[] values;
+
+    private long[] times;
+
+    private boolean[] fractional;
+
+    private int size = 0;
+
+    /**
+     * Create a new, empty table.
+     */
+    CounterState() {
+        allocate(64);
+    }
+
+    private void allocate(final int capacity) {
+        hashes = new long[capacity];
+        values = new long[capacity];
+        times = new long[capacity];
+        fractional = new boolean[capacity];
+        size = 0;
+    }
+
+    /**
+     * Compute the 64-bit FNV-1a hash of a key.
+     *
+     * @param key
+     *            The key to hash.
+     * @return The hash, which is never 0.
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    /**
+     * Store a new sample for a key and hand back the previous one.
+     *
+     * @param hash
+     *            The hash of the key.
+     * @param value
+     *            The value, or the raw bits of a fractional value.
+     * @param isFractional
+     *            Whether the value holds the bits of a double.
+     * @param time
+     *            The time of the sample, in nanoseconds.
+     * @param previous
+     *            Receives the previous value, timestamp and a 1 if the
+     *            previous value was fractional.
+     * @return <code>false</code> if this was the first sample for the key,
+     *         in which case <code>previous</code> was not touched.
+     */
+    synchronized boolean swap(final long hash, final long value,
+            final boolean isFractional, final long time, final long[] previous) {
+        int slot = find(hash);
+        if (hashes[slot] == EMPTY) {
+            if (size >= MAX_ENTRIES) {
+                allocate(hashes.length);
+                slot = find(hash);
+            } else if ((size + 1) * 2 > hashes.length) {
+                grow();
+                slot = find(hash);
+            }
+            hashes[slot] = hash;
+            values[slot] = value;
+            times[slot] = time;
+            fractional[slot] = isFractional;
+            size++;
+            return false;
+        }
+
+        previous[0] = values[slot];
+        previous[1] = times[slot];
+        previous[2] = fractional[slot] ? 1L : 0L;
+        values[slot] = value;
+        times[slot] = time;
+        fractional[slot] = isFractional;
+        return true;
+    }
+
+    /*
+     * Linear probing. The table is never more than half full, so there is
+     * always an empty slot to stop at.
+     */
+    private int find(final long hash) {
+        final int mask = hashes.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (hashes[slot] != EMPTY && hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final long[] oldHashes = hashes;
+        final long[] oldValues = values;
+        final long[] oldTimes = times;
+        final boolean[] oldFractional = fractional;
+
+        allocate(oldHashes.length * 2);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != EMPTY) {
+                final int slot = find(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                values[slot] = oldValues[i];
+                times[slot] = oldTimes[i];
+                fractional[slot] = oldFractional[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Count the keys that we hold a sample for.
+     *
+     * @return The number of keys.
+     */
+    synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,133 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The items that the sender gave up on, kept in memory so that someone can
+ * look at them through JMX and send them again. These are items that ran
+ * out of attempts while there was no spool to put them in, and items that
+ * the server refused.
+ * <p>
+ * The buffer holds a fixed number of items. When it is full, the oldest item
+ * makes room for the new one.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class DeadLetters {
+    private final int capacity;
+
+    private final LinkedList<Item> items = new LinkedList<Item>();
+
+    private final LinkedList<String> reasons = new LinkedList<String>();
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Create a new, empty buffer.
+     *
+     * @param capacity
+     *            The largest number of items to keep.
+     */
+    DeadLetters(final int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Give up on a batch of items.
+     *
+     * @param batch
+     *            The items.
+     * @param reason
+     *            Why we gave up on them.
+     */
+    synchronized void add(final List<Item> batch, final String reason) {
+        for (final Item item : batch) {
+            if (items.size() >= capacity) {
+                items.removeFirst();
+                reasons.removeFirst();
+                evicted.incrementAndGet();
+            }
+            items.add(item);
+            reasons.add(reason);
+            deadLettered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take all items out of the buffer, for example to send them again.
+     *
+     * @return The items, oldest first.
+     */
+    synchronized List<Item> takeAll() {
+        final List<Item> taken = new ArrayList<Item>(items);
+        items.clear();
+        reasons.clear();
+        return taken;
+    }
+
+    /**
+     * Describe the items in the buffer.
+     *
+     * @return One line per item, oldest first, with the host, the key, the
+     *         time the item was made and why we gave up on it.
+     */
+    synchronized List<String> describe() {
+        final List<String> lines = new ArrayList<String>(items.size());
+        final Iterator<String> reason = reasons.iterator();
+        for (final Item item : items) {
+            lines.add(item.getHost() + ":" + item.getKey() + " @"
+                    + item.getClock() / 1000L + ": " + reason.next());
+        }
+        return lines;
+    }
+
+    /**
+     * Read the number of items in the buffer.
+     *
+     * @return The number of items.
+     */
+    synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * Read the number of items that were put in the buffer.
+     *
+     * @return The number of items that we gave up on.
+     */
+    long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Read the number of items that were pushed out of the buffer by newer
+     * ones.
+     *
+     * @return The number of items that are lost.
+     */
+    long getEvicted() {
+        return evicted.get();
+    }
+}
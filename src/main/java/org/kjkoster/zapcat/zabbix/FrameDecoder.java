@@ -0,0 +1,278 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A decoder for the requests that the Zabbix server sends us. Requests are
+ * either terminated by a newline, or framed by a ZBXD header that holds the
+ * payload length as a 64 bit little endian integer. Keys are decoded as UTF-8.
+ * <p>
+ * Each decoder owns a fixed size buffer that the transport reads into. The
+ * buffer is large enough for one request of the maximum payload size, larger
+ * requests are refused. Decoders are pooled, so that we do not allocate new
+ * buffers for every connection.
+ * <p>
+ * Decoders are not thread safe. A decoder is used by one connection at a time.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class FrameDecoder {
+    private static final Logger log = Logger.getLogger(FrameDecoder.class
+            .getName());
+
+    /**
+     * The default maximum payload size, in bytes.
+     */
+    static final int DEFAULT_MAX_PAYLOAD = 8192;
+
+    /**
+     * The length of the ZBXD header: the magic marker, the protocol version
+     * and the 64 bit payload length.
+     */
+    static final int HEADER_LENGTH = 13;
+
+    private static final byte[] MAGIC = { 'Z', 'B', 'X', 'D', 1 };
+
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<FrameDecoder> pool = new ConcurrentLinkedQueue<FrameDecoder>();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int maxPayload;
+
+    private final ByteBuffer buffer;
+
+    private final CharBuffer chars;
+
+    private final CharsetDecoder utf8 = UTF8.newDecoder().onMalformedInput(
+            CodingErrorAction.REPLACE).onUnmappableCharacter(
+            CodingErrorAction.REPLACE);
+
+    private FrameDecoder(final int maxPayload) {
+        this.maxPayload = maxPayload;
+
+        // room for the header, the payload and a trailing CR/LF
+        buffer = ByteBuffer.allocate(HEADER_LENGTH + maxPayload + 2);
+        chars = CharBuffer.allocate(maxPayload);
+    }
+
+    /**
+     * Take a decoder from the pool, or create a new one if the pool is empty.
+     *
+     * @return An empty decoder.
+     */
+    static FrameDecoder acquire() {
+        final int maxPayload = maxPayload();
+
+        FrameDecoder decoder = pool.poll();
+        while (decoder != null && decoder.maxPayload != maxPayload) {
+            // the configuration changed, let the old ones go
+            decoder = pool.poll();
+        }
+
+        return decoder == null ? new FrameDecoder(maxPayload) : decoder;
+    }
+
+    /**
+     * Return this decoder to the pool. The decoder may not be used by the
+     * caller afterwards.
+     */
+    void release() {
+        buffer.clear();
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(this);
+        }
+    }
+
+    private static int maxPayload() {
+        final String property = System
+                .getProperty(ZabbixAgent.MAX_PAYLOAD_PROPERTY);
+        if (property != null) {
+            try {
+                final int maxPayload = Integer.parseInt(property.trim());
+                if (maxPayload > 0) {
+                    return maxPayload;
+                }
+            } catch (NumberFormatException e) {
+                log.log(Level.WARNING, "invalid maximum payload '" + property
+                        + "', using " + DEFAULT_MAX_PAYLOAD, e);
+                return DEFAULT_MAX_PAYLOAD;
+            }
+            log.warning("invalid maximum payload '" + property + "', using "
+                    + DEFAULT_MAX_PAYLOAD);
+        }
+
+        return DEFAULT_MAX_PAYLOAD;
+    }
+
+    /**
+     * The buffer that the transport should read into. The buffer is kept in
+     * write mode: the bytes received so far are between zero and the buffer's
+     * position.
+     *
+     * @return The receive buffer.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Check whether there are bytes in the buffer that were not decoded yet.
+     *
+     * @return <code>true</code> if there are pending bytes.
+     */
+    boolean hasPending() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Take the next complete request from the buffer.
+     *
+     * @param endOfStream
+     *            <code>true</code> if the peer will not send any more data,
+     *            in which case an unterminated line is also taken as a
+     *            request.
+     * @return The request, or <code>null</code> if more bytes are needed.
+     * @throws IOException
+     *             When the request is larger than the maximum payload size.
+     */
+    String decode(final boolean endOfStream) throws IOException {
+        buffer.flip();
+        try {
+            skipLineEnds();
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+
+            if (isFramed()) {
+                return decodeFramed();
+            }
+            return decodeLine(endOfStream);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    // stray line ends between requests are not requests themselves
+    private void skipLineEnds() {
+        while (buffer.hasRemaining()) {
+            final byte b = buffer.get(buffer.position());
+            if (b != '\n' && b != '\r') {
+                break;
+            }
+            buffer.position(buffer.position() + 1);
+        }
+    }
+
+    // also true if we have seen a partial header so far
+    private boolean isFramed() {
+        final int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (start + i >= buffer.limit()) {
+                return true;
+            }
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeFramed() throws IOException {
+        final int start = buffer.position();
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+
+        long length = 0L;
+        for (int i = HEADER_LENGTH - 1; i >= 5; i--) {
+            length = (length << 8) | (buffer.get(start + i) & 0xff);
+        }
+        if (length < 0L || length > maxPayload) {
+            throw new IOException("request of " + length
+                    + " bytes exceeds the maximum of " + maxPayload);
+        }
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+
+        final int payload = start + HEADER_LENGTH;
+        buffer.position(payload + (int) length);
+        return text(payload, payload + (int) length);
+    }
+
+    private String decodeLine(final boolean endOfStream) throws IOException {
+        final int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                buffer.position(i + 1);
+                return text(start, i);
+            }
+        }
+
+        if (buffer.remaining() > maxPayload) {
+            throw new IOException("request exceeds the maximum of "
+                    + maxPayload + " bytes");
+        }
+        if (endOfStream) {
+            final int end = buffer.limit();
+            buffer.position(end);
+            return text(start, end);
+        }
+        return null;
+    }
+
+    /*
+     * Decode a range of the buffer as UTF-8, leaving off a trailing CR/LF.
+     * The position of the buffer is preserved.
+     */
+    private String text(final int start, int end) {
+        while (end > start
+                && (buffer.get(end - 1) == '\n' || buffer.get(end - 1) == '\r')) {
+            end--;
+        }
+
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+        try {
+            buffer.limit(end);
+            buffer.position(start);
+
+            chars.clear();
+            utf8.reset();
+            utf8.decode(buffer, chars, true);
+            utf8.flush(chars);
+            chars.flip();
+            return chars.toString();
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+}
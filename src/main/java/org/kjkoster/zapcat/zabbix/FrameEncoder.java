@@ -0,0 +1,227 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An encoder for the responses that we send to the Zabbix server. The ZBXD
+ * header and the UTF-8 encoded payload are written into a single buffer, so
+ * that the whole response goes out in one write. The length in the header is
+ * the length of the payload in bytes, not in characters.
+ * <p>
+ * The buffer is reused for every response and grows when a response does not
+ * fit. Encoders are pooled, just like the decoders. If the direct buffers
+ * property is set to &quot;true&quot;, encoders use direct buffers.
+ * <p>
+ * Set the log level of this class to FINEST to get a hex dump of every
+ * response on the wire.
+ * <p>
+ * Encoders are not thread safe. An encoder is used by one connection at a
+ * time.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class FrameEncoder {
+    private static final Logger log = Logger.getLogger(FrameEncoder.class
+            .getName());
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // buffers that grew larger than this are not returned to the pool
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<FrameEncoder> pool = new ConcurrentLinkedQueue<FrameEncoder>();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean direct;
+
+    private final CharsetEncoder utf8 = UTF8.newEncoder().onMalformedInput(
+            CodingErrorAction.REPLACE).onUnmappableCharacter(
+            CodingErrorAction.REPLACE);
+
+    private ByteBuffer buffer;
+
+    private FrameEncoder(final boolean direct) {
+        this.direct = direct;
+        buffer = allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Take an encoder from the pool, or create a new one if the pool is empty.
+     *
+     * @return An encoder.
+     */
+    static FrameEncoder acquire() {
+        final boolean direct = Boolean.getBoolean(ZabbixAgent.DIRECT_BUFFERS_PROPERTY);
+
+        FrameEncoder encoder = pool.poll();
+        while (encoder != null && encoder.direct != direct) {
+            // the configuration changed, let the old ones go
+            encoder = pool.poll();
+        }
+
+        return encoder == null ? new FrameEncoder(direct) : encoder;
+    }
+
+    /**
+     * Return this encoder to the pool. The encoder may not be used by the
+     * caller afterwards.
+     */
+    void release() {
+        if (buffer.capacity() <= MAX_POOLED_CAPACITY
+                && pool.size() < MAX_POOLED) {
+            pool.offer(this);
+        }
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+                .allocate(capacity);
+    }
+
+    /**
+     * Encode a response into the buffer. The returned buffer is ready for
+     * writing and stays valid until the next call to this method.
+     *
+     * @param response
+     *            The response to encode.
+     * @return The buffer holding the complete frame.
+     */
+    ByteBuffer encode(final String response) {
+        final boolean protocol14 = QueryHandler.isProtocol14();
+        final int header = protocol14 ? FrameDecoder.HEADER_LENGTH : 0;
+        final CharBuffer chars = CharBuffer.wrap(response);
+
+        buffer.clear();
+        buffer.position(header);
+        utf8.reset();
+        CoderResult result = utf8.encode(chars, buffer, true);
+        if (!result.isOverflow()) {
+            result = utf8.flush(buffer);
+        }
+        while (result.isOverflow()) {
+            // we need more room, start over with a larger buffer
+            buffer = allocate(Math.max(buffer.capacity() * 2, header
+                    + (int) (response.length() * utf8.maxBytesPerChar())));
+            chars.rewind();
+            buffer.position(header);
+            utf8.reset();
+            result = utf8.encode(chars, buffer, true);
+            if (!result.isOverflow()) {
+                result = utf8.flush(buffer);
+            }
+        }
+        buffer.flip();
+
+        if (protocol14) {
+            buffer.put(0, (byte) 'Z');
+            buffer.put(1, (byte) 'B');
+            buffer.put(2, (byte) 'X');
+            buffer.put(3, (byte) 'D');
+
+            // write protocol version
+            buffer.put(4, (byte) 0x01);
+
+            // length as 64 bit integer, little endian format
+            long length = buffer.limit() - header;
+            for (int i = 5; i < header; i++) {
+                buffer.put(i, (byte) (length & 0xff));
+                length >>= 8;
+            }
+        }
+
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest("encoded bytes " + hexdump(buffer));
+        }
+        return buffer;
+    }
+
+    /**
+     * Encode a response and write it to a blocking socket.
+     *
+     * @param response
+     *            The response to send.
+     * @param socket
+     *            The socket to send it to.
+     * @throws IOException
+     *             When the response could not be sent.
+     */
+    void write(final String response, final Socket socket) throws IOException {
+        write(encode(response), socket);
+    }
+
+    /**
+     * Write an encoded frame to a blocking socket.
+     *
+     * @param frame
+     *            The frame to send.
+     * @param socket
+     *            The socket to send it to.
+     * @throws IOException
+     *             When the frame could not be sent.
+     */
+    static void write(final ByteBuffer frame, final Socket socket)
+            throws IOException {
+        final SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            return;
+        }
+
+        final OutputStream out = socket.getOutputStream();
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(),
+                    frame.remaining());
+        } else {
+            final byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    private static String hexdump(final ByteBuffer frame) {
+        final StringBuilder hexdump = new StringBuilder(frame.remaining() * 3);
+        for (int i = frame.position(); i < frame.limit(); i++) {
+            final String hex = Integer.toHexString(frame.get(i) & 0xff);
+            if (hex.length() < 2) {
+                hexdump.append("0");
+            }
+            hexdump.append(hex).append(" ");
+        }
+        return hexdump.toString();
+    }
+}
@@ -30,6 +30,10 @@ import javax.management.ReflectionException;
  * JMX queries are performed when <code>getValue()</code> is invoked, not when
  * the object is constructed. This means that consecutive calls to
  * <code>getValue()</code> may yield different results.
+ * <p>
+ * Each item remembers when it was made, so that an item that reaches the
+ * server late, for example after waiting in the spool, is still recorded at
+ * the right time.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
@@ -44,6 +48,8 @@ final class Item {
 
     private final String attribute;
 
+    private final long clock;
+
     /**
      * Create a literal value item.
      * 
@@ -55,6 +61,23 @@ final class Item {
      *            The literal value.
      */
     public Item(final String host, final String key, final String value) {
+        this(host, key, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a literal value item that was made earlier.
+     * 
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param value
+     *            The literal value.
+     * @param clock
+     *            The time the item was made, in milliseconds since the epoch.
+     */
+    Item(final String host, final String key, final String value,
+            final long clock) {
         if (host == null || "".equals(host.trim())) {
             throw new IllegalArgumentException("empty host");
         }
@@ -71,6 +94,7 @@ final class Item {
         this.value = value;
         this.objectName = null;
         this.attribute = null;
+        this.clock = clock;
     }
 
     /**
@@ -104,6 +128,7 @@ final class Item {
         this.value = null;
         this.objectName = objectName;
         this.attribute = attribute;
+        this.clock = System.currentTimeMillis();
     }
 
     /**
@@ -124,6 +149,15 @@ final class Item {
         return key;
     }
 
+    /**
+     * Find when the item was made.
+     * 
+     * @return The time the item was made, in milliseconds since the epoch.
+     */
+    public long getClock() {
+        return clock;
+    }
+
     /**
      * Determine the value for this item. If this is a literal item, return its
      * value. If this is a JMX query item, perform the query.
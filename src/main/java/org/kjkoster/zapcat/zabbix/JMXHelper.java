@@ -19,16 +19,16 @@ package org.kjkoster.zapcat.zabbix;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
-import javax.management.MBeanInfo;
-import javax.management.MBeanOperationInfo;
-import javax.management.MBeanParameterInfo;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
@@ -43,7 +43,6 @@ import org.apache.log4j.Level;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 /**
@@ -54,7 +53,14 @@ import javax.management.remote.JMXServiceURL;
 public final class JMXHelper {
     private static final Logger log = Logger.getLogger(JMXHelper.class.getName());
 
-    private static MBeanServerConnection mbeanserver = null;
+    // written under the class lock, read without it
+    private static volatile MBeanServerConnection mbeanserver = null;
+
+    // the connection to the remote mbean server, if we use one
+    private static volatile RemoteConnection remoteConnection = null;
+
+    // whether the mbean server is in another JVM
+    private static volatile boolean remote = false;
 
     /**
      * Locate the mbean server for this JVM instance. We try to look for the
@@ -64,40 +70,159 @@ public final class JMXHelper {
      * @return An appropriate mbean server.
      */
     public static MBeanServerConnection getMBeanServer() throws IOException {
+        final MBeanServerConnection server = mbeanserver;
+        if (server != null) {
+            return server;
+        }
+        final RemoteConnection connection = remoteConnection;
+        if (connection != null) {
+            return connection.get();
+        }
+
+        return connect();
+    }
+
+    /**
+     * Check whether the mbean server that we use is the one in this JVM. If
+     * so, the platform MXBeans show the same values as the mbean server.
+     * 
+     * @return <code>true</code> if the mbean server is in this JVM.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    static boolean isLocal() throws IOException {
+        getMBeanServer();
+        return !remote;
+    }
+
+    /**
+     * Describe the state of the connection to the mbean server, as
+     * &quot;local&quot;, &quot;connected&quot; or &quot;disconnected&quot;.
+     * 
+     * @return The state of the connection.
+     */
+    static String getConnectionState() {
+        try {
+            getMBeanServer();
+        } catch (IOException e) {
+            // the state tells the story
+        }
+        final RemoteConnection connection = remoteConnection;
+        return connection == null ? "local" : connection.getState()
+                .toString();
+    }
+
+    /**
+     * Count the times that the connection to the remote mbean server failed.
+     * 
+     * @return The number of failures, 0 for a local mbean server.
+     */
+    static long getConnectionFailures() {
+        final RemoteConnection connection = remoteConnection;
+        return connection == null ? 0L : connection.getFailures();
+    }
+
+    private static synchronized MBeanServerConnection connect()
+            throws IOException {
+        if (mbeanserver != null) {
+            return mbeanserver;
+        }
+        if (remoteConnection != null) {
+            return remoteConnection.get();
+        }
+
         String jmxUrl=System.getProperty(ZabbixAgent.JMX_URL_PROPERTY);
         String jmxUsername=System.getProperty(ZabbixAgent.JMX_USERNAME_PROPERTY);
         String jmxPassword=System.getProperty(ZabbixAgent.JMX_PASSWORD_PROPERTY);
         
-        if (mbeanserver == null) {
-            if (jmxUrl==null) {
-                // first, we try to see if we are running in JBoss
-                try {
-                    mbeanserver = (MBeanServer) Class.forName(
-                            "org.jboss.mx.util.MBeanServerLocator").getMethod(
-                            "locateJBoss", (Class[]) null).invoke(null,
-                            (Object[]) null);
-                } catch (Exception e) {
-                    // woops: not JBoss. Use the platform mbean server instead
-                    mbeanserver = ManagementFactory.getPlatformMBeanServer();
-                }
-            } else {
-                JMXServiceURL url = new JMXServiceURL(jmxUrl);
-
-                Map env = new HashMap();
-
-                String[] credentials = new String[]{jmxUsername, jmxPassword};
-
-                env.put(JMXConnector.CREDENTIALS, credentials);
-
-                JMXConnector jmxc = JMXConnectorFactory.connect(url,env);
-
-                mbeanserver = jmxc.getMBeanServerConnection();
+        remote = jmxUrl != null;
+        if (jmxUrl==null) {
+            // first, we try to see if we are running in JBoss
+            try {
+                mbeanserver = (MBeanServer) Class.forName(
+                        "org.jboss.mx.util.MBeanServerLocator").getMethod(
+                        "locateJBoss", (Class[]) null).invoke(null,
+                        (Object[]) null);
+            } catch (Exception e) {
+                // woops: not JBoss. Use the platform mbean server instead
+                mbeanserver = ManagementFactory.getPlatformMBeanServer();
             }
+        } else {
+            JMXServiceURL url = new JMXServiceURL(jmxUrl);
+
+            Map<String, Object> env = new HashMap<String, Object>();
+
+            String[] credentials = new String[]{jmxUsername, jmxPassword};
+
+            env.put(JMXConnector.CREDENTIALS, credentials);
+
+            remoteConnection = new RemoteConnection(url, env, Long
+                    .getLong(ZabbixAgent.JMX_BACKOFF_PROPERTY, 60000L));
+            return remoteConnection.get();
         }
 
         return mbeanserver;
     }
 
+    /**
+     * Report a connection that failed. This is the only place where failures
+     * are reported.
+     * <p>
+     * The platform mbean server never fails with an I/O error, so this only
+     * does something when we talk to a remote mbean server. The remote
+     * connection reconnects in the background, and until it has, calls fail
+     * straight away instead of waiting for a connect to time out. That is why
+     * there is no point in retrying the call.
+     * 
+     * @param failed
+     *            The connection that the call failed on.
+     * @param cause
+     *            The reason why the call failed.
+     * @return The cause, for the caller to throw.
+     * @see RemoteConnection
+     */
+    private static IOException failed(final MBeanServerConnection failed,
+            final IOException cause) {
+        return failed(null, failed, cause);
+    }
+
+    private static IOException failed(final RemoteConnection target,
+            final MBeanServerConnection failed, final IOException cause) {
+        final RemoteConnection connection = target == null ? remoteConnection
+                : target;
+        if (connection != null) {
+            connection.failed(failed, cause);
+        }
+        return cause;
+    }
+
+    private static MBeanServerConnection getMBeanServer(
+            final RemoteConnection target) throws IOException {
+        return target == null ? getMBeanServer() : target.get();
+    }
+
+    /**
+     * Look up an mbean.
+     * 
+     * @param objectName
+     *            The object name of the mbean to look up.
+     * @return The object instance of the mbean.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    public static ObjectInstance getMBeanObjectInstance(
+            final ObjectName objectName) throws InstanceNotFoundException,
+            IOException {
+        final MBeanServerConnection server = getMBeanServer();
+        try {
+            return server.getObjectInstance(objectName);
+        } catch (IOException e) {
+            throw failed(server, e);
+        }
+    }
+
     /**
      * Perform a JMX query given an mbean name and the name of an attribute on
      * that mbean.
@@ -116,39 +241,157 @@ public final class JMXHelper {
      * @throws AttributeNotFoundException
      *             When the specified attribute could not be found.
      */
-     public static ObjectInstance getMBeanObjectInstance(ObjectName objectName) throws InstanceNotFoundException, IOException {
-        ObjectInstance bean = null;
-        try {
-             bean = mbeanserver.getObjectInstance(objectName);
-        } catch (java.rmi.ConnectException e) {
-            // reconnect
-            mbeanserver = null;
-            mbeanserver = getMBeanServer();
-            bean = mbeanserver.getObjectInstance(objectName);
-        }
-        return bean;
-    }
     public static String query(final ObjectName objectName,
             final String attribute) throws InstanceNotFoundException,
             AttributeNotFoundException, MBeanException, ReflectionException, IOException {
+        return query(objectName, attribute.split("\\."));
+    }
 
-        log.fine("JMX query[" + objectName + "][" + attribute + "]");
-        MBeanServerConnection mBeanServer = getMBeanServer();
+    /**
+     * Perform a JMX query for an attribute path that was split already. The
+     * first element of the path is the name of the attribute, the others are
+     * the names of fields in its composite data.
+     * <p>
+     * This costs a single call to the mbean server. A missing mbean is
+     * reported by that call, so we don't look the mbean up first.
+     * 
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param path
+     *            The attribute path to query for.
+     * @return The value of the attribute or field.
+     * @see #query(ObjectName, String)
+     */
+    static String query(final ObjectName objectName, final String[] path)
+            throws InstanceNotFoundException, AttributeNotFoundException,
+            MBeanException, ReflectionException, IOException {
+        final Object value = getValue(objectName, path);
+        return value == null ? null : value.toString();
+    }
 
-        final ObjectInstance bean = getMBeanObjectInstance(objectName);
+    /**
+     * Read the value that an attribute path points to, without turning it
+     * into a string.
+     * 
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param path
+     *            The attribute path to query for.
+     * @return The value of the attribute or field.
+     * @see #query(ObjectName, String[])
+     */
+    static Object getValue(final ObjectName objectName, final String[] path)
+            throws InstanceNotFoundException, AttributeNotFoundException,
+            MBeanException, ReflectionException, IOException {
+        return getValue(null, objectName, path);
+    }
 
-        log.fine("found MBean class " + bean.getClassName());
+    /**
+     * Read the value that an attribute path points to from a specific remote
+     * mbean server.
+     * 
+     * @param target
+     *            The connection to the mbean server, or <code>null</code> for
+     *            the mbean server that we normally use.
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param path
+     *            The attribute path to query for.
+     * @return The value of the attribute or field.
+     * @see #getValue(ObjectName, String[])
+     */
+    static Object getValue(final RemoteConnection target,
+            final ObjectName objectName, final String[] path)
+            throws InstanceNotFoundException, AttributeNotFoundException,
+            MBeanException, ReflectionException, IOException {
 
-        final int dot = attribute.indexOf('.');
-        if (dot < 0) {
-            final Object ret = mBeanServer.getAttribute(objectName,
-                    attribute);
-            return ret == null ? null : ret.toString();
+        log.fine("JMX query[" + objectName + "][" + path[0] + "]");
+        final MBeanServerConnection server = getMBeanServer(target);
+
+        final Object value;
+        try {
+            value = server.getAttribute(objectName, path[0]);
+        } catch (IOException e) {
+            throw failed(target, server, e);
         }
 
-        return resolveFields((CompositeData) mBeanServer.getAttribute(
-                objectName, attribute.substring(0, dot)), attribute
-                .substring(dot + 1));
+        return resolve(value, path);
+    }
+
+    /**
+     * Read several attributes of an mbean in a single call to the mbean
+     * server. Attributes that the mbean does not have, or that could not be
+     * read, are left out of the result.
+     * 
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param attributes
+     *            The names of the attributes to read.
+     * @return The values, by attribute name.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws ReflectionException
+     *             When there was a problem inspecting the mbean.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    static Map<String, Object> getAttributes(final ObjectName objectName,
+            final String[] attributes) throws InstanceNotFoundException,
+            ReflectionException, IOException {
+        return getAttributes(null, objectName, attributes);
+    }
+
+    /**
+     * Read several attributes of an mbean on a specific remote mbean server.
+     * 
+     * @param target
+     *            The connection to the mbean server, or <code>null</code> for
+     *            the mbean server that we normally use.
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param attributes
+     *            The names of the attributes to read.
+     * @return The values, by attribute name.
+     * @see #getAttributes(ObjectName, String[])
+     */
+    static Map<String, Object> getAttributes(final RemoteConnection target,
+            final ObjectName objectName, final String[] attributes)
+            throws InstanceNotFoundException, ReflectionException, IOException {
+        log.fine("JMX query[" + objectName + "]" + Arrays.toString(attributes));
+        final MBeanServerConnection server = getMBeanServer(target);
+
+        final AttributeList list;
+        try {
+            list = server.getAttributes(objectName, attributes);
+        } catch (IOException e) {
+            throw failed(target, server, e);
+        }
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (final Object attribute : list) {
+            values.put(((Attribute) attribute).getName(),
+                    ((Attribute) attribute).getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Walk an attribute path into the composite data of an attribute value.
+     * 
+     * @param value
+     *            The value of the attribute named by the first element of the
+     *            path.
+     * @param path
+     *            The attribute path.
+     * @return The value that the path points to, or <code>null</code> if
+     *         there is none.
+     */
+    static Object resolve(final Object value, final String[] path) {
+        Object resolved = value;
+        for (int i = 1; i < path.length && resolved != null; i++) {
+            resolved = ((CompositeData) resolved).get(path[i]);
+        }
+        return resolved;
     }
     
     /**
@@ -169,67 +412,62 @@ public final class JMXHelper {
      */
     public static String op_query(final String name, final String operation, final String query_args)
     	throws Exception {
-    	
-    	final MBeanServerConnection mbeanserver = getMBeanServer();
-    	log.fine("JMX op_query[" + name + "][" + operation + "]" + query_args.substring(1));
-    	
-    	final MBeanInfo info = mbeanserver.getMBeanInfo(new ObjectName(name));
-    	final MBeanOperationInfo[] ops = info.getOperations();
     	StringTokenizer tokens = new StringTokenizer(query_args, "[],", false);
-    	
-    	int op_index = -1;
-    	boolean op_name_exist = false;
-    	MBeanParameterInfo[] sig = null;
-    	
-    	for (int i = 0; i < ops.length; i++) {
-    		if (ops[i].getName().equalsIgnoreCase(operation)) {
-    			op_name_exist = true;
-    			sig = ops[i].getSignature();
-    			if (sig.length == tokens.countTokens()) {
-    				op_index = i;
-    				break;
-    			}
-    		}
+    	String[] arguments = new String[tokens.countTokens()];
+    	for (int i = 0; i < arguments.length; i++) {
+    		arguments[i] = tokens.nextToken();
     	}
-    	
-    	if (op_index == -1 && op_name_exist)
-    		throw new UnsupportedOperationException("Incorrect number of arguments.");
-    	else if (op_index == -1 && !op_name_exist)
-    		throw new UnsupportedOperationException("Operation not found in mbean.");
-    	
-    	String[] string_sig = new String[sig.length];
-    	Object[] obj_args = new Object[sig.length];
-
-		for (int j = 0; j < sig.length; j++) {
-			string_sig[j] = sig[j].getType();
-			if (string_sig[j].equals("long")) {
-				obj_args[j] = new Long(tokens.nextToken());
-			} else if (string_sig[j].equals("int")) {
-				obj_args[j] = new Integer(tokens.nextToken());
-			} else if (string_sig[j].equals("java.lang.String")) {
-				obj_args[j] = new String(tokens.nextToken());
-			} else if (string_sig[j].equals("boolean")) {
-				obj_args[j] = new Boolean(tokens.nextToken());
-			} else if (string_sig[j].equals("float")) {
-				obj_args[j] = new Float(tokens.nextToken());
-			} else if (string_sig[j].equals("double")) {
-				obj_args[j] = new Double(tokens.nextToken());
-			}
-		}
-		
-		return mbeanserver.invoke(new ObjectName(name), operation, obj_args,string_sig).toString();
+
+    	return invoke(new ObjectName(name), operation, arguments);
     }
 
-    private static String resolveFields(final CompositeData attribute,
-            final String field) {
-        final int dot = field.indexOf('.');
-        if (dot < 0) {
-            final Object ret = attribute.get(field);
-            return ret == null ? null : ret.toString();
+    /**
+     * Invoke an mbean operation. The operation is looked up in the operation
+     * cache, so that only the first invocation has to fetch the mbean info.
+     * 
+     * @param objectName
+     *            The object name of the mbean to invoke the operation on.
+     * @param operation
+     *            The name of the operation, in any case.
+     * @param arguments
+     *            The arguments, which are converted to the parameter types
+     *            of the operation.
+     * @return The result of the operation, or <code>null</code> if it
+     *         returned nothing.
+     * @throws UnsupportedOperationException
+     *             When the mbean has no operation by that name with that
+     *             number of parameters.
+     * @see OperationCache
+     */
+    static String invoke(final ObjectName objectName, final String operation,
+            final String[] arguments) throws Exception {
+        log.fine("JMX op_query[" + objectName + "][" + operation + "]"
+                + Arrays.toString(arguments));
+        final MBeanServerConnection server = getMBeanServer();
+
+        final OperationCache.Operation resolved;
+        try {
+            resolved = OperationCache.lookup(server, objectName, operation,
+                    arguments.length);
+        } catch (IOException e) {
+            throw failed(server, e);
         }
 
-        return resolveFields((CompositeData) attribute.get(field.substring(0,
-                dot)), field.substring(dot + 1));
+        final Object result;
+        try {
+            result = server.invoke(objectName, resolved.name, resolved
+                    .convert(arguments), resolved.signature);
+        } catch (IOException e) {
+            throw failed(server, e);
+        } catch (InstanceNotFoundException e) {
+            OperationCache.forget(objectName);
+            throw e;
+        } catch (ReflectionException e) {
+            // the mbean may have been replaced while we looked it up
+            OperationCache.forget(objectName);
+            throw e;
+        }
+        return result == null ? null : result.toString();
     }
 
     /**
@@ -240,7 +478,9 @@ public final class JMXHelper {
      *            The managed bean to register.
      * @param objectName
      *            The name under which to register the bean.
-     * @return The object name of the mbean, for later deregistration.
+     * @return The object name of the mbean, for later deregistration, or
+     *         <code>null</code> if it was not registered. Another bean may
+     *         already use the name, and we must not unregister that one.
      */
     public static ObjectName register(final Object mbean,
             final String objectName) {
@@ -252,21 +492,26 @@ public final class JMXHelper {
             MBeanServerConnection mBeanServer = getMBeanServer();
             if (mBeanServer instanceof MBeanServer) {
                 ((MBeanServer)mBeanServer).registerMBean(mbean, name);
+                return name;
             }
         } catch (Exception e) {
             log.log(Level.WARNING, "unable to register '" + name + "'", e);
         }
 
-        return name;
+        return null;
     }
 
     /**
      * Remove the registration of a bean.
      * 
      * @param objectName
-     *            The name of the bean to unregister.
+     *            The name of the bean to unregister, or <code>null</code> if
+     *            it was never registered.
      */
     public static void unregister(final ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
         log.fine("un-registering [" + objectName + "]");
 
         try {
@@ -0,0 +1,156 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of response times, in microseconds. Recording a time is a
+ * couple of atomic increments, with no locks and no allocation, so that the
+ * agent can afford to record every request.
+ * <p>
+ * The buckets are fixed. Below 8 microseconds there is a bucket for each
+ * microsecond. From there on, each power of two is split into 8 buckets of
+ * equal width. Percentiles are therefore accurate to within 12.5%, all the
+ * way up to the largest time we track, which is a little over an hour.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class LatencyHistogram {
+    // the number of bits below the leading one that pick the bucket
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // times beyond this many microseconds end up in the last bucket
+    private static final long MAX_TRACKED = (1L << 32) - 1L;
+
+    private static final int BUCKETS = index(MAX_TRACKED) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one response time.
+     *
+     * @param nanos
+     *            The response time in nanoseconds.
+     */
+    void record(final long nanos) {
+        final long micros = Math.min(MAX_TRACKED, Math.max(0L, nanos / 1000L));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    private static int index(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest time that falls into a bucket
+    private static long highest(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width - 1L;
+    }
+
+    /**
+     * Read the number of times recorded.
+     *
+     * @return The number of times.
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Read the average time.
+     *
+     * @return The average time in microseconds, or 0 if nothing was recorded
+     *         yet.
+     */
+    long getMean() {
+        final long n = count.get();
+        return n == 0L ? 0L : total.get() / n;
+    }
+
+    /**
+     * Read the longest time.
+     *
+     * @return The longest time in microseconds.
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile. Updates that happen while we read are counted
+     * or not, so under load the answer is approximate, as it is anyway.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 100.
+     * @return The time in microseconds that the given percentage of requests
+     *         stayed under, or 0 if nothing was recorded yet.
+     */
+    long getPercentile(final double percentile) {
+        final long n = count.get();
+        if (n == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(n
+                * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", avg=" + getMean() + "us, p50="
+                + getPercentile(50.0) + "us, p99=" + getPercentile(99.0)
+                + "us, max=" + getMax() + "us";
+    }
+}
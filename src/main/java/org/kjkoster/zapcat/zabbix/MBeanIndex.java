@@ -0,0 +1,242 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+/**
+ * An in-memory index of the names of all mbeans in the mbean server. Some
+ * servers have tens of thousands of mbeans, so asking the mbean server for
+ * every name that matches a pattern is slow, in particular over RMI.
+ * <p>
+ * The index is built once, with a single query. After that it follows the
+ * registration and unregistration notifications of the mbean server delegate.
+ * Names are kept sorted by domain, so that a pattern with a fixed domain, or
+ * a fixed domain prefix, only looks at the matching domains.
+ * <p>
+ * The index is built the first time it is needed, and again after we
+ * reconnected to a remote mbean server or lost notifications from it. It also
+ * tells the operation cache when an mbean goes away.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class MBeanIndex implements NotificationListener {
+    private static final Logger log = Logger.getLogger(MBeanIndex.class
+            .getName());
+
+    private static volatile MBeanIndex instance = null;
+
+    private final MBeanServerConnection server;
+
+    private final ConcurrentSkipListMap<String, Set<ObjectName>> domains = new ConcurrentSkipListMap<String, Set<ObjectName>>();
+
+    private volatile boolean stale = false;
+
+    private MBeanIndex(final MBeanServerConnection server) {
+        this.server = server;
+    }
+
+    /**
+     * Get the index of the current mbean server, building it if we have to.
+     *
+     * @return The index.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    static MBeanIndex get() throws IOException {
+        final MBeanServerConnection server = JMXHelper.getMBeanServer();
+        final MBeanIndex index = instance;
+        if (index != null && index.server == server && !index.stale) {
+            return index;
+        }
+
+        return build(server);
+    }
+
+    /**
+     * Tell the index that it may have missed registrations or
+     * unregistrations, for example because the remote connector lost
+     * notifications. The index is built again the next time it is needed.
+     */
+    static void invalidate() {
+        final MBeanIndex index = instance;
+        if (index != null) {
+            index.stale = true;
+        }
+    }
+
+    private static synchronized MBeanIndex build(
+            final MBeanServerConnection server) throws IOException {
+        if (instance != null && instance.server == server && !instance.stale) {
+            return instance;
+        }
+
+        final MBeanIndex index = new MBeanIndex(server);
+        final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        try {
+            // listen first, so that we don't miss anything while we scan
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                    index, filter, null);
+        } catch (InstanceNotFoundException e) {
+            throw new IllegalStateException(
+                    "mbean server has no delegate", e);
+        }
+        for (final ObjectName name : server.queryNames(null, null)) {
+            index.add(name);
+        }
+        log.fine("indexed " + index.size() + " mbean names");
+
+        if (instance != null) {
+            instance.close();
+            // a new mbean server, or one that we lost track of, whatever we
+            // knew about its mbeans is void
+            OperationCache.clear();
+        }
+        instance = index;
+        return index;
+    }
+
+    /**
+     * @see javax.management.NotificationListener#handleNotification(javax.management.Notification,
+     *      java.lang.Object)
+     */
+    public void handleNotification(final Notification notification,
+            final Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+
+        final ObjectName name = ((MBeanServerNotification) notification)
+                .getMBeanName();
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION
+                .equals(notification.getType())) {
+            add(name);
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION
+                .equals(notification.getType())) {
+            remove(name);
+        }
+    }
+
+    private void add(final ObjectName name) {
+        Set<ObjectName> names = domains.get(name.getDomain());
+        if (names == null) {
+            final Set<ObjectName> created = new ConcurrentSkipListSet<ObjectName>();
+            names = domains.putIfAbsent(name.getDomain(), created);
+            if (names == null) {
+                names = created;
+            }
+        }
+        names.add(name);
+    }
+
+    private void remove(final ObjectName name) {
+        final Set<ObjectName> names = domains.get(name.getDomain());
+        if (names != null) {
+            names.remove(name);
+            // empty domains are left in place, they are cheap to skip
+        }
+        OperationCache.forget(name);
+    }
+
+    /**
+     * Find the names that match an object name pattern.
+     *
+     * @param pattern
+     *            The pattern, or a plain object name.
+     * @return The matching names, sorted.
+     */
+    List<ObjectName> query(final ObjectName pattern) {
+        final List<ObjectName> matches = new ArrayList<ObjectName>();
+        if (!pattern.isDomainPattern()) {
+            collect(domains.get(pattern.getDomain()), pattern, matches);
+            return matches;
+        }
+
+        // only the domains that start with the literal part of the pattern
+        final String domain = pattern.getDomain();
+        int wildcard = 0;
+        while (wildcard < domain.length() && domain.charAt(wildcard) != '*'
+                && domain.charAt(wildcard) != '?') {
+            wildcard++;
+        }
+        final String prefix = domain.substring(0, wildcard);
+        final NavigableMap<String, Set<ObjectName>> candidates = prefix
+                .length() == 0 ? domains : domains.subMap(prefix, true, prefix
+                + Character.MAX_VALUE, false);
+        for (final Map.Entry<String, Set<ObjectName>> entry : candidates
+                .entrySet()) {
+            collect(entry.getValue(), pattern, matches);
+        }
+        return matches;
+    }
+
+    private static void collect(final Set<ObjectName> names,
+            final ObjectName pattern, final List<ObjectName> matches) {
+        if (names == null) {
+            return;
+        }
+        for (final ObjectName name : names) {
+            if (pattern.apply(name)) {
+                matches.add(name);
+            }
+        }
+    }
+
+    /**
+     * Count the names in the index.
+     *
+     * @return The number of names.
+     */
+    int size() {
+        int size = 0;
+        for (final Set<ObjectName> names : domains.values()) {
+            size += names.size();
+        }
+        return size;
+    }
+
+    /*
+     * Stop following the mbean server. Used when the index is replaced.
+     */
+    private void close() {
+        try {
+            server.removeNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (Exception e) {
+            log.log(Level.FINE, "unable to remove listener", e);
+        }
+    }
+}
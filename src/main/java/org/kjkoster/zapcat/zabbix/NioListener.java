@@ -0,0 +1,398 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking transport for the Zabbix agent. A single selector thread
+ * accepts connections and reads and writes the frames. Evaluating the queries
+ * is handed off to the worker executor, so that slow JMX calls never hold up
+ * the selector.
+ * <p>
+ * The connection semantics are the same as those of the blocking transport:
+ * we answer every query that the server sent us and then close the
+ * connection, unless keep-alive is enabled. A connection has at most one
+ * request with the workers at any time, so pipelined requests are answered in
+ * order.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class NioListener implements Runnable {
+    private static final Logger log = Logger.getLogger(NioListener.class
+            .getName());
+
+    private final ZabbixAgent agent;
+
+    private final ExecutorService workers;
+
+    private final Responder responder;
+
+    private final AgentStatistics statistics;
+
+    private final int keepAlive;
+
+    private long lastSweep = System.currentTimeMillis();
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+
+    private volatile boolean closing = false;
+
+    /**
+     * Open the server channel and the selector.
+     *
+     * @param agent
+     *            The agent that we serve, used for the whitelist.
+     * @param address
+     *            The address to listen on, or 'null' to listen on any
+     *            available address.
+     * @param port
+     *            The port number to listen on.
+     * @param workers
+     *            The executor that evaluates the queries.
+     * @param responder
+     *            The responder that works out the answers.
+     * @param statistics
+     *            The counters to update.
+     * @param keepAlive
+     *            The keep-alive timeout in milliseconds, or 0 to close
+     *            connections after answering.
+     * @throws IOException
+     *             When the port could not be bound.
+     */
+    NioListener(final ZabbixAgent agent, final InetAddress address,
+            final int port, final ExecutorService workers,
+            final Responder responder, final AgentStatistics statistics,
+            final int keepAlive) throws IOException {
+        this.agent = agent;
+        this.workers = workers;
+        this.responder = responder;
+        this.statistics = statistics;
+        this.keepAlive = keepAlive;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(address, port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the event loop. This method may be called from any thread.
+     */
+    void close() {
+        closing = true;
+        selector.wakeup();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            while (!closing) {
+                selector.select(sweepInterval());
+
+                Connection connection = completed.poll();
+                while (connection != null) {
+                    connection.responded();
+                    connection = completed.poll();
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        final Connection selected = (Connection) key
+                                .attachment();
+                        try {
+                            if (key.isReadable()) {
+                                selected.read();
+                            } else if (key.isWritable()) {
+                                selected.write();
+                            }
+                        } catch (IOException e) {
+                            log.log(Level.FINE, "dropping connection", e);
+                            selected.close();
+                        }
+                    }
+                }
+
+                if (keepAlive > 0) {
+                    closeIdleConnections();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // ignore, we're going down anyway...
+        } catch (IOException e) {
+            if (!closing) {
+                log.log(Level.SEVERE, "caught exception, exiting", e);
+            }
+        } finally {
+            for (final SelectionKey key : new ArrayList<SelectionKey>(selector
+                    .keys())) {
+                final Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    ((Connection) attachment).close();
+                } else {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // ignore, we're going down anyway...
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore, we're going down anyway...
+            }
+        }
+    }
+
+    // 0 means wait until there is work
+    private long sweepInterval() {
+        return keepAlive > 0 ? Math.max(keepAlive / 2, 100) : 0L;
+    }
+
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep < sweepInterval()) {
+            return;
+        }
+        lastSweep = now;
+
+        for (final SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                final Connection connection = (Connection) attachment;
+                if (connection.isIdleSince(now - keepAlive)) {
+                    log.fine("closing idle connection");
+                    statistics.idleTimeouts.incrementAndGet();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        final InetAddress remote = channel.socket().getInetAddress();
+        log.fine("accepted connection from " + remote.getHostAddress());
+
+        if (!agent.acceptedByWhitelist(remote)) {
+            log.warning("rejecting ip address " + remote.getHostAddress()
+                    + ", it is not on the whitelist");
+            statistics.rejected.incrementAndGet();
+            channel.close();
+            return;
+        }
+
+        statistics.connectionOpened();
+
+        channel.configureBlocking(false);
+        final Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ,
+                connection);
+    }
+
+    /**
+     * The state of a single client connection. All methods except for
+     * <code>run()</code> are called on the selector thread only.
+     */
+    private final class Connection implements AdaptiveExecutor.Sheddable {
+        private final SocketChannel channel;
+
+        private final FrameDecoder decoder = FrameDecoder.acquire();
+
+        private final FrameEncoder encoder = FrameEncoder.acquire();
+
+        private SelectionKey key;
+
+        private boolean endOfStream = false;
+
+        private boolean closed = false;
+
+        // whether a worker may be using the encoder
+        private volatile boolean working = false;
+
+        private long lastActive = System.currentTimeMillis();
+
+        private volatile String request = null;
+
+        private volatile ByteBuffer out = null;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            final int read = channel.read(decoder.buffer());
+            if (read < 0) {
+                endOfStream = true;
+            } else {
+                statistics.bytesIn.addAndGet(read);
+            }
+            lastActive = System.currentTimeMillis();
+
+            dispatch();
+        }
+
+        /*
+         * Hand the next complete request to the workers, or close the
+         * connection if the client has nothing more to say.
+         */
+        private void dispatch() throws IOException {
+            request = decoder.decode(endOfStream);
+            if (request != null) {
+                statistics.requests.incrementAndGet();
+                key.interestOps(0);
+                working = true;
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the workers are shutting down
+                    log.log(Level.FINE, "dropping connection", e);
+                    working = false;
+                    close();
+                }
+            } else if (endOfStream) {
+                close();
+            }
+        }
+
+        /**
+         * Evaluate the request. This runs on a worker thread.
+         *
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                out = responder.respond(request, encoder);
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "dropping exception", e);
+                out = encoder.encode(QueryHandler.NOTSUPPORTED);
+            }
+
+            working = false;
+            completed.offer(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Answer the request right away, because the workers are too busy.
+         * This runs on the selector thread.
+         *
+         * @see org.kjkoster.zapcat.zabbix.AdaptiveExecutor.Sheddable#shed()
+         */
+        public void shed() {
+            // no worker has the encoder, so close() may release it
+            working = false;
+            out = encoder.encode(QueryHandler.NOTSUPPORTED);
+            responded();
+        }
+
+        void responded() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write() throws IOException {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                return;
+            }
+            out = null;
+            lastActive = System.currentTimeMillis();
+
+            // answer any pipelined requests, like the blocking handler does
+            if (decoder.hasPending() || (keepAlive > 0 && !endOfStream)) {
+                key.interestOps(SelectionKey.OP_READ);
+                dispatch();
+            } else {
+                close();
+            }
+        }
+
+        /*
+         * Connections that have a request with the workers are never idle.
+         */
+        boolean isIdleSince(final long time) {
+            return key.isValid() && key.interestOps() == SelectionKey.OP_READ
+                    && lastActive < time;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            statistics.connectionClosed();
+
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore, we're dropping it anyway...
+            }
+            decoder.release();
+            if (!working) {
+                // otherwise the worker still has it, let it go to waste
+                encoder.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Sends batches of items to a Zabbix server without blocking, with several
+ * requests in flight over connections of their own. A slow server then no
+ * longer holds up every batch behind the one it is working on.
+ * <p>
+ * This class has no thread of its own. The sender thread starts requests and
+ * calls {@link #poll(long)} to move them along. Each request remembers the
+ * batch that it carries and how often we tried to send it. A batch whose
+ * request failed waits until the {@link RetryPolicy} lets us try again, and
+ * once it runs out of attempts it goes to the spool or the dead letters.
+ * <p>
+ * Replaying the spool takes one request at a time, so that the spool cannot
+ * hand out the same items twice.
+ * <p>
+ * Instances are not thread safe, they are only used by the sender thread.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class NioSender {
+    private static final Logger log = Logger.getLogger(NioSender.class
+            .getName());
+
+    private final InetSocketAddress address;
+
+    private final int maxInFlight;
+
+    private final long timeout;
+
+    private final Selector selector;
+
+    private final List<Request> inFlight = new ArrayList<Request>();
+
+    // batches that wait for room, or for their next attempt
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+    private final Spool spool;
+
+    private final RetryPolicy retry;
+
+    private final DeadLetters deadLetters;
+
+    private boolean replaying = false;
+
+    private long lastFailure = 0L;
+
+    /**
+     * A batch that is not in flight yet.
+     */
+    private static final class Pending {
+        final List<Item> items;
+
+        // the number of attempts so far
+        final int attempts;
+
+        Pending(final List<Item> items, final int attempts) {
+            this.items = items;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * A request on its way to the server.
+     */
+    private final class Request {
+        final List<Item> items;
+
+        // the number of this attempt, counting from 1
+        final int attempt;
+
+        // whether the items came from the spool
+        final boolean replay;
+
+        final SocketChannel channel;
+
+        final ByteBuffer out;
+
+        final ByteBuffer header = ByteBuffer
+                .allocate(FrameDecoder.HEADER_LENGTH);
+
+        ByteBuffer payload = null;
+
+        final long start = System.currentTimeMillis();
+
+        Request(final List<Item> items, final int attempt,
+                final boolean replay) throws IOException {
+            this.items = items;
+            this.attempt = attempt;
+            this.replay = replay;
+            out = SenderData.encode(items, start / 1000L);
+
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    channel.register(selector, SelectionKey.OP_WRITE, this);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /*
+         * Move the request along. Returns true when the response is in.
+         */
+        boolean progress(final SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+
+            if (key.isWritable()) {
+                channel.write(out);
+                if (!out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return false;
+            }
+
+            if (key.isReadable()) {
+                final ByteBuffer buffer = payload == null ? header : payload;
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("server hung up before responding");
+                }
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                if (payload == null) {
+                    payload = ByteBuffer.allocate(SenderData
+                            .payloadLength(header.array()));
+                    return payload.capacity() == 0;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Create a new sender.
+     *
+     * @param address
+     *            The address of the Zabbix server.
+     * @param maxInFlight
+     *            The largest number of requests that may be in flight at the
+     *            same time.
+     * @param timeout
+     *            The time in milliseconds that a request may take, from
+     *            connecting to reading the response.
+     * @param spool
+     *            The spool for items that could not be sent, or
+     *            <code>null</code> to give up on them.
+     * @param retry
+     *            When to try again after the server could not be reached.
+     * @param deadLetters
+     *            Where items go that we gave up on.
+     * @throws IOException
+     *             When the selector could not be opened.
+     */
+    NioSender(final InetSocketAddress address, final int maxInFlight,
+            final long timeout, final Spool spool, final RetryPolicy retry,
+            final DeadLetters deadLetters) throws IOException {
+        this.address = address;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeout = timeout;
+        this.spool = spool;
+        this.retry = retry;
+        this.deadLetters = deadLetters;
+        selector = Selector.open();
+    }
+
+    /**
+     * Check whether there is room for another batch.
+     *
+     * @return <code>true</code> if we may start another batch.
+     */
+    boolean hasRoom() {
+        return inFlight.size() + pending.size() < maxInFlight;
+    }
+
+    /**
+     * Check whether there are no batches in flight or waiting to go out.
+     *
+     * @return <code>true</code> if there is nothing to wait for.
+     */
+    boolean isIdle() {
+        return inFlight.isEmpty() && pending.isEmpty();
+    }
+
+    /**
+     * Check whether there are requests in flight, which means that the
+     * sender thread must not be interrupted.
+     *
+     * @return <code>true</code> if there are open connections.
+     */
+    boolean hasInFlight() {
+        return !inFlight.isEmpty();
+    }
+
+    /**
+     * Start sending a batch of items.
+     *
+     * @param batch
+     *            The items to send. The sender takes a copy, so the caller
+     *            may reuse the list.
+     */
+    void start(final List<Item> batch) {
+        pending.add(new Pending(new ArrayList<Item>(batch), 0));
+        resume();
+    }
+
+    /**
+     * Start the batches that are waiting, as far as there is room and the
+     * retry policy lets us.
+     */
+    void resume() {
+        while (!pending.isEmpty() && inFlight.size() < maxInFlight
+                && retry.remaining() == 0L) {
+            final Pending next = pending.removeFirst();
+            try {
+                inFlight.add(new Request(next.items, next.attempts + 1,
+                        false));
+            } catch (IOException e) {
+                failed(next.items, next.attempts + 1, false, e);
+            }
+        }
+    }
+
+    /**
+     * Start replaying the oldest items in the spool, if there are any, there
+     * is room and the server seems to be reachable.
+     *
+     * @param max
+     *            The largest number of items to replay in one request.
+     */
+    void replay(final int max) {
+        if (spool == null || replaying || inFlight.size() >= maxInFlight
+                || retry.remaining() > 0L || spool.isEmpty()) {
+            return;
+        }
+
+        final List<Item> items = spool.peek(max);
+        if (items.isEmpty()) {
+            return;
+        }
+        try {
+            inFlight.add(new Request(items, 1, true));
+            replaying = true;
+        } catch (IOException e) {
+            failed(items, 1, true, e);
+        }
+    }
+
+    /**
+     * Wait for the requests in flight to make progress, and finish the ones
+     * that are done or took too long.
+     *
+     * @param wait
+     *            The longest time to wait in milliseconds, or 0 not to wait
+     *            at all.
+     * @throws IOException
+     *             When the selector failed.
+     */
+    void poll(final long wait) throws IOException {
+        if (wait > 0L) {
+            selector.select(wait);
+        } else {
+            selector.selectNow();
+        }
+
+        for (final Iterator<SelectionKey> i = selector.selectedKeys()
+                .iterator(); i.hasNext();) {
+            final SelectionKey key = i.next();
+            i.remove();
+
+            final Request request = (Request) key.attachment();
+            try {
+                if (key.isValid() && request.progress(key)) {
+                    finish(request);
+                    completed(request);
+                }
+            } catch (IOException e) {
+                finish(request);
+                failed(request, e);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        for (final Request request : new ArrayList<Request>(inFlight)) {
+            if (now - request.start > timeout) {
+                finish(request);
+                failed(request, new IOException("no response within "
+                        + timeout + " ms"));
+            }
+        }
+    }
+
+    private void finish(final Request request) {
+        inFlight.remove(request);
+        if (request.replay) {
+            replaying = false;
+        }
+        try {
+            request.channel.close();
+        } catch (IOException e) {
+            // ignore, we're done with it anyway...
+        }
+    }
+
+    private void completed(final Request request) throws IOException {
+        retry.succeeded();
+        if (request.replay) {
+            spool.commit();
+        }
+
+        final SenderData response = SenderData.parse(request.payload.array());
+        if (!response.success) {
+            log.warning("received unexpected response '" + response
+                    + "' for " + request.items.size() + " items");
+            // sending them again won't help
+            deadLetters.add(request.items, "refused: " + response);
+        } else if (response.failed > 0) {
+            log.warning("Zabbix failed " + response.failed + " of "
+                    + request.items.size() + " items: " + response);
+        }
+        log.fine("sent " + request.items.size() + " items in "
+                + (System.currentTimeMillis() - request.start) + " ms");
+    }
+
+    private void failed(final Request request, final IOException e) {
+        if (request.start < lastFailure) {
+            // the server went away while this one was in flight, which the
+            // retry policy knows about already
+            log.fine("unable to send " + request.items.size() + " items to "
+                    + address + ": " + e);
+            requeue(request.items, request.attempt, request.replay);
+        } else {
+            failed(request.items, request.attempt, request.replay, e);
+        }
+    }
+
+    private void failed(final List<Item> items, final int attempt,
+            final boolean replay, final IOException e) {
+        lastFailure = System.currentTimeMillis();
+        retry.failed(items.size(), e);
+        requeue(items, attempt, replay);
+    }
+
+    /*
+     * Items from the spool stay there until they are sent. The others wait
+     * for their next attempt, unless they ran out of attempts.
+     */
+    private void requeue(final List<Item> items, final int attempt,
+            final boolean replay) {
+        if (replay) {
+            return;
+        }
+        if (attempt < retry.getMaxAttempts()) {
+            pending.addFirst(new Pending(items, attempt));
+        } else {
+            Sender.giveUp(items, spool, deadLetters, "unable to reach "
+                    + address + " after " + attempt + " attempts");
+        }
+    }
+
+    /**
+     * Make a {@link #poll(long)} that is waiting return right away. Unlike
+     * the other methods, this one may be called from any thread.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Abandon the requests in flight and the batches that wait, putting
+     * their items in the spool or the dead letters, and close the selector.
+     */
+    void close() {
+        for (final Request request : new ArrayList<Request>(inFlight)) {
+            finish(request);
+            if (!request.replay) {
+                Sender.giveUp(request.items, spool, deadLetters,
+                        "sender stopped");
+            }
+        }
+        for (final Pending waiting : pending) {
+            Sender.giveUp(waiting.items, spool, deadLetters, "sender stopped");
+        }
+        pending.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore, we're stopping anyway...
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The operations that <code>jmx_op[...]</code> keys resolved to. Finding an
+ * operation means fetching the mbean info and looking through all of its
+ * operations, which is a lot of work to repeat for every poll. Resolved
+ * operations are kept by object name, operation name and number of
+ * arguments, so that a repeated poll is a single call to
+ * <code>invoke()</code>.
+ * <p>
+ * The mbean index tells us when an mbean is unregistered, so that we forget
+ * its operations. The mbean that is registered under that name next may be a
+ * different one. The operations are grouped per mbean, so that forgetting an
+ * mbean does not mean looking through the operations of all the others.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class OperationCache {
+    // the cache is emptied when it grows larger than this
+    private static final int MAX_OPERATIONS = 4096;
+
+    private static final ConcurrentMap<ObjectName, ConcurrentMap<Signature, Operation>> operations = new ConcurrentHashMap<ObjectName, ConcurrentMap<Signature, Operation>>();
+
+    // the number of operations in the cache, roughly
+    private static final AtomicInteger size = new AtomicInteger();
+
+    private OperationCache() {
+        // static methods only
+    }
+
+    /**
+     * A resolved operation, ready to be invoked.
+     */
+    static final class Operation {
+        /**
+         * The name of the operation, as the mbean spells it.
+         */
+        final String name;
+
+        /**
+         * The types of the parameters.
+         */
+        final String[] signature;
+
+        private final Converter[] converters;
+
+        private Operation(final MBeanOperationInfo info) {
+            name = info.getName();
+            final MBeanParameterInfo[] parameters = info.getSignature();
+            signature = new String[parameters.length];
+            converters = new Converter[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                signature[i] = parameters[i].getType();
+                converters[i] = Converter.of(signature[i]);
+            }
+        }
+
+        /**
+         * Convert the arguments from the key into the types of the
+         * parameters.
+         *
+         * @param arguments
+         *            The arguments from the key.
+         * @return The converted arguments.
+         * @throws NumberFormatException
+         *             When an argument is not a valid number.
+         */
+        Object[] convert(final String[] arguments) {
+            final Object[] converted = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                converted[i] = converters[i].convert(arguments[i]);
+            }
+            return converted;
+        }
+    }
+
+    /**
+     * Turns an argument into the type of a parameter.
+     */
+    private abstract static class Converter {
+        private static final Converter LONG = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return Long.valueOf(argument);
+            }
+        };
+
+        private static final Converter INT = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return Integer.valueOf(argument);
+            }
+        };
+
+        private static final Converter STRING = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return argument;
+            }
+        };
+
+        private static final Converter BOOLEAN = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return Boolean.valueOf(argument);
+            }
+        };
+
+        private static final Converter FLOAT = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return Float.valueOf(argument);
+            }
+        };
+
+        private static final Converter DOUBLE = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return Double.valueOf(argument);
+            }
+        };
+
+        // we have no way to make other types, we pass null for them
+        private static final Converter NONE = new Converter() {
+            @Override
+            Object convert(final String argument) {
+                return null;
+            }
+        };
+
+        abstract Object convert(String argument);
+
+        static Converter of(final String type) {
+            if ("long".equals(type) || "java.lang.Long".equals(type)) {
+                return LONG;
+            }
+            if ("int".equals(type) || "java.lang.Integer".equals(type)) {
+                return INT;
+            }
+            if ("java.lang.String".equals(type)) {
+                return STRING;
+            }
+            if ("boolean".equals(type) || "java.lang.Boolean".equals(type)) {
+                return BOOLEAN;
+            }
+            if ("float".equals(type) || "java.lang.Float".equals(type)) {
+                return FLOAT;
+            }
+            if ("double".equals(type) || "java.lang.Double".equals(type)) {
+                return DOUBLE;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * What we look the operations of an mbean up by.
+     */
+    private static final class Signature {
+        private final String operation;
+
+        private final int arity;
+
+        private Signature(final String operation, final int arity) {
+            this.operation = operation;
+            this.arity = arity;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            final Signature other = (Signature) o;
+            return arity == other.arity && operation.equals(other.operation);
+        }
+
+        @Override
+        public int hashCode() {
+            return operation.hashCode() * 31 + arity;
+        }
+    }
+
+    /**
+     * Find an operation, resolving it if we have not done so before. Names
+     * are compared without regard to case, and the first operation with the
+     * right number of parameters wins.
+     *
+     * @param server
+     *            The mbean server to ask for the mbean info.
+     * @param objectName
+     *            The mbean to find the operation on.
+     * @param operation
+     *            The name of the operation.
+     * @param arity
+     *            The number of arguments.
+     * @return The operation.
+     * @throws UnsupportedOperationException
+     *             When the mbean has no such operation.
+     * @throws IOException
+     *             When the remote mbean server could not be reached.
+     */
+    static Operation lookup(final MBeanServerConnection server,
+            final ObjectName objectName, final String operation,
+            final int arity) throws InstanceNotFoundException,
+            IntrospectionException, ReflectionException, IOException {
+        final Signature signature = new Signature(operation, arity);
+        final ConcurrentMap<Signature, Operation> known = operations
+                .get(objectName);
+        final Operation cached = known == null ? null : known.get(signature);
+        if (cached != null) {
+            return cached;
+        }
+
+        // make sure someone tells us when the mbean goes away
+        MBeanIndex.get();
+
+        boolean nameExists = false;
+        for (final MBeanOperationInfo info : server.getMBeanInfo(objectName)
+                .getOperations()) {
+            if (info.getName().equalsIgnoreCase(operation)) {
+                nameExists = true;
+                if (info.getSignature().length == arity) {
+                    final Operation resolved = new Operation(info);
+                    if (size.get() >= MAX_OPERATIONS) {
+                        // someone is sending us lots of different keys
+                        clear();
+                    }
+                    ConcurrentMap<Signature, Operation> resolvedOperations = operations
+                            .get(objectName);
+                    if (resolvedOperations == null) {
+                        final ConcurrentMap<Signature, Operation> created = new ConcurrentHashMap<Signature, Operation>();
+                        resolvedOperations = operations.putIfAbsent(objectName,
+                                created);
+                        if (resolvedOperations == null) {
+                            resolvedOperations = created;
+                        }
+                    }
+                    if (resolvedOperations.put(signature, resolved) == null) {
+                        size.incrementAndGet();
+                    }
+                    return resolved;
+                }
+            }
+        }
+
+        if (nameExists) {
+            throw new UnsupportedOperationException(
+                    "Incorrect number of arguments.");
+        }
+        throw new UnsupportedOperationException(
+                "Operation not found in mbean.");
+    }
+
+    /**
+     * Forget the operations of an mbean.
+     *
+     * @param objectName
+     *            The mbean that went away.
+     */
+    static void forget(final ObjectName objectName) {
+        final ConcurrentMap<Signature, Operation> forgotten = operations
+                .remove(objectName);
+        if (forgotten != null) {
+            size.addAndGet(-forgotten.size());
+        }
+    }
+
+    /**
+     * Forget all operations, for example because we connected to a
+     * different mbean server.
+     */
+    static void clear() {
+        operations.clear();
+        size.set(0);
+    }
+}
@@ -0,0 +1,306 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * A direct reading of one of the well-known <code>java.lang</code> metrics,
+ * such as <code>jmx[java.lang:type=Memory][HeapMemoryUsage.used]</code>. Most
+ * of what people monitor in a JVM is in there.
+ * <p>
+ * Going through the mbean server means reflection and, for memory usage,
+ * building composite data only to take one number out of it again. When the
+ * agent runs in the JVM that it monitors, we can call the platform MXBeans
+ * instead. That is only correct for the local mbean server, of course. For a
+ * remote one the agent uses the normal path.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+abstract class PlatformMetric {
+    private static final int INIT = 0;
+
+    private static final int USED = 1;
+
+    private static final int COMMITTED = 2;
+
+    private static final int MAX = 3;
+
+    private static final String[] USAGE_FIELDS = { "init", "used",
+            "committed", "max" };
+
+    // fixed metrics, by canonical object name and attribute
+    private static final Map<String, PlatformMetric> metrics = new HashMap<String, PlatformMetric>();
+    static {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < USAGE_FIELDS.length; i++) {
+            final int field = i;
+            metrics.put("java.lang:type=Memory/HeapMemoryUsage."
+                    + USAGE_FIELDS[i], new PlatformMetric() {
+                @Override
+                long read() {
+                    return usage(memory.getHeapMemoryUsage(), field);
+                }
+            });
+            metrics.put("java.lang:type=Memory/NonHeapMemoryUsage."
+                    + USAGE_FIELDS[i], new PlatformMetric() {
+                @Override
+                long read() {
+                    return usage(memory.getNonHeapMemoryUsage(), field);
+                }
+            });
+        }
+        metrics.put("java.lang:type=Memory/ObjectPendingFinalizationCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return memory.getObjectPendingFinalizationCount();
+                    }
+                });
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        metrics.put("java.lang:type=Threading/ThreadCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return threads.getThreadCount();
+                    }
+                });
+        metrics.put("java.lang:type=Threading/PeakThreadCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return threads.getPeakThreadCount();
+                    }
+                });
+        metrics.put("java.lang:type=Threading/DaemonThreadCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return threads.getDaemonThreadCount();
+                    }
+                });
+        metrics.put("java.lang:type=Threading/TotalStartedThreadCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return threads.getTotalStartedThreadCount();
+                    }
+                });
+
+        final ClassLoadingMXBean classes = ManagementFactory
+                .getClassLoadingMXBean();
+        metrics.put("java.lang:type=ClassLoading/LoadedClassCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return classes.getLoadedClassCount();
+                    }
+                });
+        metrics.put("java.lang:type=ClassLoading/TotalLoadedClassCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return classes.getTotalLoadedClassCount();
+                    }
+                });
+        metrics.put("java.lang:type=ClassLoading/UnloadedClassCount",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return classes.getUnloadedClassCount();
+                    }
+                });
+
+        final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        metrics.put("java.lang:type=Runtime/Uptime", new PlatformMetric() {
+            @Override
+            long read() {
+                return runtime.getUptime();
+            }
+        });
+        metrics.put("java.lang:type=Runtime/StartTime", new PlatformMetric() {
+            @Override
+            long read() {
+                return runtime.getStartTime();
+            }
+        });
+
+        final OperatingSystemMXBean system = ManagementFactory
+                .getOperatingSystemMXBean();
+        metrics.put("java.lang:type=OperatingSystem/AvailableProcessors",
+                new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return system.getAvailableProcessors();
+                    }
+                });
+    }
+
+    /**
+     * Read the current value of the metric.
+     *
+     * @return The value.
+     */
+    abstract long read();
+
+    /**
+     * Find the direct reading for a JMX key, if there is one.
+     *
+     * @param objectName
+     *            The object name in the key.
+     * @param attribute
+     *            The attribute in the key, including the field in composite
+     *            data, if any.
+     * @return The direct reading, or <code>null</code> if the key has to go
+     *         through the mbean server.
+     */
+    static PlatformMetric lookup(final ObjectName objectName,
+            final String attribute) {
+        if (objectName == null || attribute == null
+                || objectName.isPattern()
+                || !"java.lang".equals(objectName.getDomain())) {
+            return null;
+        }
+
+        final PlatformMetric metric = metrics.get(objectName
+                .getCanonicalName()
+                + "/" + attribute);
+        if (metric != null) {
+            return metric;
+        }
+
+        final String type = objectName.getKeyProperty("type");
+        final String name = objectName.getKeyProperty("name");
+        if (name == null || objectName.getKeyPropertyList().size() != 2) {
+            return null;
+        }
+        if ("GarbageCollector".equals(type)) {
+            return collector(name, attribute);
+        }
+        if ("MemoryPool".equals(type)) {
+            return pool(name, attribute);
+        }
+        return null;
+    }
+
+    private static PlatformMetric collector(final String name,
+            final String attribute) {
+        for (final GarbageCollectorMXBean collector : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            if (!collector.getName().equals(name)) {
+                continue;
+            }
+
+            if ("CollectionCount".equals(attribute)) {
+                return new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return collector.getCollectionCount();
+                    }
+                };
+            }
+            if ("CollectionTime".equals(attribute)) {
+                return new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return collector.getCollectionTime();
+                    }
+                };
+            }
+        }
+        return null;
+    }
+
+    private static PlatformMetric pool(final String name,
+            final String attribute) {
+        final int dot = attribute.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        final String usage = attribute.substring(0, dot);
+        final String field = attribute.substring(dot + 1);
+        int f = 0;
+        while (f < USAGE_FIELDS.length && !USAGE_FIELDS[f].equals(field)) {
+            f++;
+        }
+        if (f == USAGE_FIELDS.length) {
+            return null;
+        }
+        final int selected = f;
+
+        for (final MemoryPoolMXBean pool : ManagementFactory
+                .getMemoryPoolMXBeans()) {
+            if (!pool.getName().equals(name)) {
+                continue;
+            }
+
+            if ("Usage".equals(usage)) {
+                return new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return usage(pool.getUsage(), selected);
+                    }
+                };
+            }
+            if ("PeakUsage".equals(usage)) {
+                return new PlatformMetric() {
+                    @Override
+                    long read() {
+                        return usage(pool.getPeakUsage(), selected);
+                    }
+                };
+            }
+            // collection usage may be null, leave that to the slow path
+        }
+        return null;
+    }
+
+    /*
+     * A memory pool that is no longer valid has no usage. -1 is what memory
+     * usage uses for undefined values.
+     */
+    private static long usage(final MemoryUsage usage, final int field) {
+        if (usage == null) {
+            return -1L;
+        }
+        switch (field) {
+        case INIT:
+            return usage.getInit();
+        case USED:
+            return usage.getUsed();
+        case COMMITTED:
+            return usage.getCommitted();
+        case MAX:
+            return usage.getMax();
+        default:
+            throw new IllegalArgumentException("no field " + field);
+        }
+    }
+}
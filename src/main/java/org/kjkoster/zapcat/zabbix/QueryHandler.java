@@ -16,66 +16,107 @@ package org.kjkoster.zapcat.zabbix;
  * Zapcat. If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
-import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
+import javax.management.openmbean.InvalidKeyException;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import org.kjkoster.zapcat.Trapper;
+import org.kjkoster.zapcat.util.Json;
 
 /**
  * A JMX query handler for Zabbix. The query handler reads the query from the
  * socket, parses the request and constructs and sends a response.
  * <p>
+ * With keep-alive enabled, the handler keeps reading requests from the same
+ * connection until the client closes it or it has been idle for too long.
+ * Requests are answered one by one, so the responses come back in the order
+ * of the requests.
+ * <p>
  * You can configure the protocol version to use and set it to either
  * &quot;1.1&quot; or &quot;1.4&quot;.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
-final class QueryHandler implements Runnable {
+final class QueryHandler implements AdaptiveExecutor.Sheddable {
     private static final Logger log = Logger.getLogger(QueryHandler.class.getName());
 
     private final Socket socket;
 
-    private final StringBuilder hexdump = new StringBuilder();
+    private final Responder responder;
+
+    private final AgentStatistics statistics;
+
+    private final int keepAlive;
 
     /**
      * The return value that Zabbix interprets as the agent not supporting the
      * item.
      */
-    private static final String NOTSUPPORTED = "ZBX_NOTSUPPORTED";
+    static final String NOTSUPPORTED = "ZBX_NOTSUPPORTED";
+
+    // key properties that can be turned into discovery macros
+    private static final Pattern MACRO_NAME = Pattern.compile("[A-Za-z0-9_.]+");
 
     /**
      * Create a new query handler.
      * 
      * @param socket
      *            The socket that was accepted.
+     * @param responder
+     *            The responder that works out the answers.
+     * @param statistics
+     *            The counters to update.
+     * @param keepAlive
+     *            The time in milliseconds that we keep an idle connection
+     *            open, waiting for more requests. Zero means that we close the
+     *            connection as soon as we answered the requests that we
+     *            received.
      */
-    public QueryHandler(final Socket socket) {
+    public QueryHandler(final Socket socket, final Responder responder,
+            final AgentStatistics statistics, final int keepAlive) {
         this.socket = socket;
+        this.responder = responder;
+        this.statistics = statistics;
+        this.keepAlive = keepAlive;
     }
 
     /**
      * @see java.lang.Runnable#run()
      */
     public void run() {
+        final FrameDecoder decoder = FrameDecoder.acquire();
+        final FrameEncoder encoder = FrameEncoder.acquire();
         try {
             log.fine("started worker");
             try {
+                socket.setSoTimeout(keepAlive);
+                final InputStream in = socket.getInputStream();
                 do {
-                    handleQuery();
-                } while (socket.getInputStream().available() > 0);
+                    if (!handleQuery(decoder, encoder, in)) {
+                        break;
+                    }
+                } while (keepAlive > 0 || decoder.hasPending());
+            } catch (SocketTimeoutException e) {
+                log.fine("closing idle connection");
+                statistics.idleTimeouts.incrementAndGet();
             } finally {
                 if (socket != null) {
                     socket.close();
@@ -84,51 +125,118 @@ final class QueryHandler implements Runnable {
             log.fine("worker is done");
         } catch (Exception e) {
             log.log(Level.SEVERE, "dropping exception", e);
+        } finally {
+            decoder.release();
+            encoder.release();
+            statistics.connectionClosed();
         }
     }
 
-    private void handleQuery() throws IOException {
-        String request = receive(socket.getInputStream());
-        log.fine("received '" + request + "'");
+    /**
+     * Tell the client that we cannot answer right now and hang up.
+     * 
+     * @see org.kjkoster.zapcat.zabbix.AdaptiveExecutor.Sheddable#shed()
+     */
+    public void shed() {
+        final FrameEncoder encoder = FrameEncoder.acquire();
+        try {
+            try {
+                encoder.write(NOTSUPPORTED, socket);
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "unable to shed connection", e);
+        } finally {
+            encoder.release();
+            statistics.connectionClosed();
+        }
+    }
 
-        String response = response(request);
-        // make sure we can send
-        if (response == null) {
-            response = "";
+    private boolean handleQuery(final FrameDecoder decoder,
+            final FrameEncoder encoder, final InputStream in)
+            throws IOException {
+        final String request = receive(decoder, in);
+        if (request == null) {
+            return false;
         }
+        statistics.requests.incrementAndGet();
 
-        log.fine("sending '" + response + "'");
-        send(response, socket.getOutputStream());
+        FrameEncoder.write(responder.respond(request, encoder), socket);
+        return true;
     }
 
-    private String receive(final InputStream in) throws IOException {
-        String line = "";
-        int b = in.read();
-        while (b != -1 && b != 0x0a) {
-            line += (char) b;
+    /*
+     * Read from the socket until the decoder has a complete request. Returns
+     * null if the peer closed the connection without sending one.
+     */
+    private String receive(final FrameDecoder decoder, final InputStream in)
+            throws IOException {
+        final ByteBuffer buffer = decoder.buffer();
+        String request = decoder.decode(false);
+        while (request == null) {
+            final int read = in.read(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), buffer.remaining());
+            if (read < 0) {
+                return decoder.decode(true);
+            }
+            buffer.position(buffer.position() + read);
+            statistics.bytesIn.addAndGet(read);
 
-            b = in.read();
+            request = decoder.decode(false);
         }
-        
-        // This adds support for zabbix_get to communicate with the agent.
-        // As posted to the sourceforge project page by Jim Riggs (jhriggs)
-        if (isProtocol14() && line.startsWith("ZBXD\1"))
-        	line = line.substring(13);
 
-        return line;
+        return request;
     }
 
-    private String response(final String query) {
-		//log.setLevel(Level.DEBUG);
-		log.fine("query = " + query);
+    /**
+     * Evaluate a query and work out the response that should go back to the
+     * Zabbix server. This is shared by all transports.
+     * 
+     * @param query
+     *            The item key that was received.
+     * @return The response, or <code>null</code> if there is no value.
+     */
+    static String response(final String query) {
+        return response(QueryKey.compile(query));
+    }
 
-        final int lastOpen = query.lastIndexOf('[');
-        final int lastClose = query.lastIndexOf(']');
-        String attribute = null;
-        if (lastOpen >= 0 && lastClose >= 0) {
-            attribute = query.substring(lastOpen + 1, lastClose);
+    /**
+     * Evaluate a compiled query.
+     * 
+     * @param key
+     *            The compiled item key.
+     * @return The response, or <code>null</code> if there is no value.
+     * @see #response(String)
+     */
+    static String response(final QueryKey key) {
+        final Target target = Target.get(key.targetName);
+        if (target == null) {
+            return response(key, null, key.objectName);
+        }
+
+        if (!target.acquire()) {
+            return NOTSUPPORTED;
+        }
+        try {
+            return response(key, target.connection, key.targetObjectName);
+        } finally {
+            target.release();
         }
+    }
+
+    /*
+     * Evaluate a query against either the mbean server that we normally use,
+     * or a proxy target.
+     */
+    private static String response(final QueryKey key,
+            final RemoteConnection remote, final ObjectName objectName) {
+        final String query = key.key;
+        final String attribute = key.attribute;
+		log.fine("query = " + query);
 		log.fine("attribute = " + attribute);
+
+        switch (key.namespace) {
         /*
          *  This allows testing of trapper functionality from within this framework.
          *  Set key to trap[zabbixServer][host][key][value] and the agent will create
@@ -140,149 +248,289 @@ final class QueryHandler implements Runnable {
          *  
          *  This command should not be used at present. Stick to jmx / jmx_op.
          */
-        if (query.startsWith("trap")) {
+        case TRAP:
         	try {
         		StringTokenizer trapperParms = new StringTokenizer(query.substring(query.indexOf('[')), "[]", false);
         		String zabbixServer = trapperParms.nextToken();
         		String host = trapperParms.nextToken();
-        		String key = trapperParms.nextToken();
+        		String trapKey = trapperParms.nextToken();
         		String value = attribute;
-        		if (sendTrap(zabbixServer, host, key, value)) {
-        			log.fine("Success: " + key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
-        			return key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer;
+        		if (sendTrap(zabbixServer, host, trapKey, value)) {
+        			log.fine("Success: " + trapKey + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
+        			return trapKey + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer;
         		}
-        		log.fine("Fail: " + key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
+        		log.fine("Fail: " + trapKey + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
         		return NOTSUPPORTED;
         	} catch (Exception e) {
+        		AgentStatistics.failed(e);
         		log.fine("Could not send trap from query " + query);
         		return NOTSUPPORTED;
         	}
-        	
-        } else if (query.startsWith("jmx_op")) {
-        	String query_string = query;
-        	int index = query_string.indexOf(']');
-        	
-        	if (index < 0)
-        		return NOTSUPPORTED;
-        	
-        	String objectName = query_string.substring(7, index);
-        	query_string = query_string.substring(index+2);
-        	index = query_string.indexOf(']');
-        	if (index < 0)
-        		return NOTSUPPORTED;
-        	
-        	String op_name = query_string.substring(0, index);
-        	query_string = query_string.substring(index);
-        	
-        	try {
-        		return JMXHelper.op_query(objectName, op_name, query_string);
-        	} catch (InstanceNotFoundException e) {
-        		log.log(Level.FINE, "no bean named " + objectName, e);
-        		return NOTSUPPORTED;
-        	} catch (UnsupportedOperationException e) {
-        		log.log(Level.FINE, "operation named " + op_name + " is not supported on bean named " + objectName, e);
-        		return NOTSUPPORTED;
-        	} catch (IllegalArgumentException e) {
-        		log.log(Level.FINE, "parameters passed is illegal for operation named " + op_name + " on bean named " + objectName, e);
-        		return NOTSUPPORTED;
-        	} catch (Exception e) {
-        		log.log(Level.FINE, "exception with jmx_op", e);
-        	}
-        	
-        } else if (query.startsWith("jmx")) {
-            final int firstClose = query.lastIndexOf(']', lastOpen);
-            final int firstOpen = query.indexOf('[');
-            if (firstClose == -1 || firstOpen == -1 || attribute == null) {
+
+        case JMX_OP:
+            if (key.objectName == null || key.operation == null) {
                 return NOTSUPPORTED;
             }
 
-            final String objectName = query
-                    .substring(firstOpen + 1, firstClose);
-			log.fine("objectName = " + objectName);
             try {
-                return JMXHelper.query(new ObjectName(objectName), attribute);
+                return JMXHelper.invoke(key.objectName, key.operation,
+                        key.arguments);
             } catch (InstanceNotFoundException e) {
-                log.log(Level.FINE, "no bean named " + objectName, e);
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "no bean named " + key.objectName, e);
+                return NOTSUPPORTED;
+            } catch (UnsupportedOperationException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "operation named " + key.operation
+                        + " is not supported on bean named " + key.objectName, e);
+                return NOTSUPPORTED;
+            } catch (IllegalArgumentException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "parameters passed is illegal for operation named "
+                        + key.operation + " on bean named " + key.objectName, e);
+                return NOTSUPPORTED;
+            } catch (Exception e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "exception with jmx_op", e);
+            }
+            return NOTSUPPORTED;
+
+        case JMX:
+        case JMX_RATE:
+        case JMX_DELTA:
+            // the key parser logged why the object name is not valid
+            if (objectName == null || attribute == null) {
                 return NOTSUPPORTED;
-            } catch (MalformedObjectNameException e) {
+            }
+
+			log.fine("objectName = " + key.objectNameString);
+            try {
+                if (remote == null && key.platformMetric != null
+                        && JMXHelper.isLocal()) {
+                    return Long.toString(key.platformMetric.read());
+                }
+                final Object value = JMXHelper.getValue(remote, objectName,
+                        key.path);
+                if (key.namespace == QueryKey.Namespace.JMX) {
+                    return value == null ? null : value.toString();
+                }
+                return Rate.evaluate(key, value, System.nanoTime());
+            } catch (InvalidKeyException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "no field " + attribute + " on bean named "
+                        + objectName, e);
+                return NOTSUPPORTED;
+            } catch (ClassCastException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "no field " + attribute + " on bean named "
+                        + objectName, e);
+                return NOTSUPPORTED;
+            } catch (InstanceNotFoundException e) {
+                AgentStatistics.failed(e);
                 log.log(Level.FINE, "no bean named " + objectName, e);
                 return NOTSUPPORTED;
             } catch (AttributeNotFoundException e) {
+                AgentStatistics.failed(e);
                 log.log(Level.FINE, "no attribute named " + attribute + " on bean named "
                         + objectName, e);
                 return NOTSUPPORTED;
             } catch (MBeanException e) {
+                AgentStatistics.failed(e);
                 log.log(Level.WARNING, "unable to find either " + objectName + " or "
                         + attribute, e);
                 return NOTSUPPORTED;
             } catch (ReflectionException e) {
+                AgentStatistics.failed(e);
                 log.log(Level.WARNING, "unable to find either " + objectName + " or "
                         + attribute, e);
                 return NOTSUPPORTED;
             } catch (IOException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.SEVERE, "Cannot connect to remote JMX "
+                        + (remote == null ? System.getProperty(ZabbixAgent.JMX_URL_PROPERTY) : remote), e);
+                return NOTSUPPORTED;
+            }
+
+        case JMX_ATTRS:
+            if (objectName == null || key.attributes == null) {
+                return NOTSUPPORTED;
+            }
+
+            try {
+                return queryAttributes(key, remote, objectName);
+            } catch (InstanceNotFoundException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "no bean named " + objectName, e);
+                return NOTSUPPORTED;
+            } catch (ReflectionException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.WARNING, "unable to read " + attribute
+                        + " from " + objectName, e);
+                return NOTSUPPORTED;
+            } catch (IOException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.SEVERE, "Cannot connect to remote JMX "
+                        + (remote == null ? System.getProperty(ZabbixAgent.JMX_URL_PROPERTY) : remote), e);
+                return NOTSUPPORTED;
+            }
+
+        case JMX_DISCOVERY:
+            if (key.objectName == null) {
+                return NOTSUPPORTED;
+            }
+
+            try {
+                return discover(key.objectName);
+            } catch (IOException e) {
+                AgentStatistics.failed(e);
                 log.log(Level.SEVERE, "Cannot connect to remote JMX "+System.getProperty(ZabbixAgent.JMX_URL_PROPERTY), e);
                 return NOTSUPPORTED;
             }
-        } else if (query.startsWith("system.property")) {
-            return querySystemProperty(attribute);
-        } else if (query.startsWith("system.env")) {
-            return queryEnvironment(attribute);
-        } else if (query.equals("agent.ping")) {
+
+        case JMX_SUM:
+        case JMX_MAX:
+        case JMX_MIN:
+        case JMX_AVG:
+        case JMX_COUNT:
+            if (key.objectName == null) {
+                return NOTSUPPORTED;
+            }
+
+            try {
+                return Aggregate.evaluate(key);
+            } catch (IOException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.SEVERE, "Cannot connect to remote JMX "+System.getProperty(ZabbixAgent.JMX_URL_PROPERTY), e);
+                return NOTSUPPORTED;
+            }
+
+        case SYSTEM_PROPERTY:
+            return attribute == null ? NOTSUPPORTED
+                    : querySystemProperty(attribute);
+
+        case SYSTEM_ENV:
+            return attribute == null ? NOTSUPPORTED : queryEnvironment(attribute);
+
+        case AGENT_PING:
             return "1";
-        } else if (query.equals("agent.version")) {
+
+        case AGENT_VERSION:
             return "zapcat 1.3-beta";
+
+        case AGENT_JMX_STATE:
+            if (attribute == null) {
+                return JMXHelper.getConnectionState();
+            }
+            final Target stateTarget = Target.get(attribute);
+            return stateTarget == null ? NOTSUPPORTED : stateTarget.connection
+                    .getState().toString();
+
+        case AGENT_JMX_FAILURES:
+            if (attribute == null) {
+                return Long.toString(JMXHelper.getConnectionFailures());
+            }
+            final Target failedTarget = Target.get(attribute);
+            return failedTarget == null ? NOTSUPPORTED : Long
+                    .toString(failedTarget.connection.getFailures());
+
+        case AGENT_JMX_REJECTIONS:
+            final Target busyTarget = Target.get(attribute);
+            return busyTarget == null ? NOTSUPPORTED : Long
+                    .toString(busyTarget.getRejections());
+
+        default:
+            return NOTSUPPORTED;
+        }
+    }
+
+    /*
+     * Read all attributes with a single call and return them as a JSON
+     * object, keyed by the attributes as they were listed in the key.
+     * Attributes that could not be read are null.
+     */
+    private static String queryAttributes(final QueryKey key,
+            final RemoteConnection remote, final ObjectName objectName)
+            throws InstanceNotFoundException, ReflectionException,
+            IOException {
+        final Set<String> names = new LinkedHashSet<String>();
+        for (final String[] path : key.paths) {
+            names.add(path[0]);
+        }
+        final Map<String, Object> values = JMXHelper.getAttributes(remote,
+                objectName, names.toArray(new String[names.size()]));
+
+        final StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < key.attributes.length; i++) {
+            Object value;
+            try {
+                value = JMXHelper.resolve(values.get(key.paths[i][0]),
+                        key.paths[i]);
+            } catch (RuntimeException e) {
+                AgentStatistics.failed(e);
+                log.log(Level.FINE, "no field " + key.attributes[i]
+                        + " on bean named " + objectName, e);
+                value = null;
+            }
+
+            if (i > 0) {
+                json.append(',');
+            }
+            Json.appendString(json, key.attributes[i]).append(':');
+            Json.appendValue(json, value);
         }
+        return json.append('}').toString();
+    }
 
-        return NOTSUPPORTED;
+    /*
+     * Answer a low-level discovery request with the mbeans that match the
+     * pattern. Each mbean gets {#JMXOBJ} and {#JMXDOMAIN} macros, plus a
+     * macro for each of its key properties, such as {#TYPE} for type=...
+     */
+    private static String discover(final ObjectName pattern)
+            throws IOException {
+        final StringBuilder json = new StringBuilder("{\"data\":[");
+        boolean first = true;
+        for (final ObjectName name : MBeanIndex.get().query(pattern)) {
+            json.append(first ? "{" : ",{");
+            first = false;
+
+            Json.appendString(json, "{#JMXOBJ}").append(':');
+            Json.appendString(json, name.getCanonicalName());
+            json.append(',');
+            Json.appendString(json, "{#JMXDOMAIN}").append(':');
+            Json.appendString(json, name.getDomain());
+            // sorted, so that the answer does not change between calls
+            for (final Map.Entry<String, String> property : new TreeMap<String, String>(
+                    name.getKeyPropertyList()).entrySet()) {
+                if (!MACRO_NAME.matcher(property.getKey()).matches()) {
+                    continue;
+                }
+                json.append(',');
+                Json.appendString(json, "{#"
+                        + property.getKey().toUpperCase(Locale.ENGLISH) + "}")
+                        .append(':');
+                Json.appendString(json, property.getValue());
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
     }
 
     /*
      * This method will go away once I have added collection support to the
      * query handler.
      */
-    private String querySystemProperty(final String key) {
+    private static String querySystemProperty(final String key) {
         log.fine("System property[" + key + "]");
         return System.getProperty(key);
     }
 
-    private String queryEnvironment(final String key) {
+    private static String queryEnvironment(final String key) {
         log.fine("Environment[" + key + "]");
         return System.getenv(key);
     }
 
-    private void send(final String response, final OutputStream outputStream)
-            throws IOException {
-        final BufferedOutputStream out = new BufferedOutputStream(outputStream);
-
-        if (isProtocol14()) {
-            // write magic marker
-            write(out, (byte) 'Z');
-            write(out, (byte) 'B');
-            write(out, (byte) 'X');
-            write(out, (byte) 'D');
-
-            // write protocol version
-            write(out, (byte) 0x01);
-
-            // length as 64 bit integer, little endian format
-            long length = response.length();
-            for (int i = 0; i < 8; i++) {
-                write(out, (byte) (length & 0xff));
-
-                length >>= 8;
-            }
-        }
-
-        // response itself
-        for (int i = 0; i < response.length(); i++) {
-            write(out, (byte) response.charAt(i));
-        }
-
-        out.flush();
-        log.fine("sent bytes " + hexdump);
-    }
-    
-    private boolean sendTrap(String zabbixServer, String host, String key, String value) {
+    private static boolean sendTrap(String zabbixServer, String host, String key, String value) {
 		Trapper trapper = null;
 		try {
 			trapper = new ZabbixTrapper(zabbixServer, host);
@@ -298,7 +546,13 @@ final class QueryHandler implements Runnable {
 		
 	}
 
-    private boolean isProtocol14() {
+    /**
+     * Check what protocol version is configured.
+     * 
+     * @return <code>true</code> if we speak the Zabbix 1.4 protocol, or
+     *         <code>false</code> for the Zabbix 1.1 protocol.
+     */
+    static boolean isProtocol14() {
         final String protocolProperty = System
                 .getProperty(ZabbixAgent.PROTOCOL_PROPERTY);
         if (protocolProperty == null || "1.4".equals(protocolProperty)) {
@@ -311,15 +565,4 @@ final class QueryHandler implements Runnable {
         log.warning("Unsupported protocol '" + protocolProperty + "', using 1.4");
         return true;
     }
-
-    private void write(final BufferedOutputStream out, final byte b)
-            throws IOException {
-        final String hex = Integer.toHexString(b);
-        if (hex.length() < 2) {
-            hexdump.append("0");
-        }
-        hexdump.append(hex).append(" ");
-
-        out.write(b);
-    }
 }
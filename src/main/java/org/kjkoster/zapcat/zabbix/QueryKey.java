@@ -0,0 +1,430 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * A parsed item key. Parsing a key, and the object name in it in particular,
+ * is much more expensive than evaluating most queries. Zabbix asks for the
+ * same keys over and over again, so we parse each key once and keep the
+ * result.
+ * <p>
+ * A key looks like <code>namespace[object name][attribute]</code>, where the
+ * brackets are optional for some namespaces. The attribute may be a path into
+ * composite data, such as <code>HeapMemoryUsage.used</code>.
+ * <p>
+ * Compiled keys are immutable and may be shared between threads.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class QueryKey {
+    private static final Logger log = Logger.getLogger(QueryKey.class
+            .getName());
+
+    // the interning cache is emptied when it grows larger than this
+    private static final int MAX_INTERNED = 4096;
+
+    private static final ConcurrentMap<String, QueryKey> interned = new ConcurrentHashMap<String, QueryKey>();
+
+    /**
+     * The namespaces that the agent knows about.
+     */
+    enum Namespace {
+        /**
+         * Send a trap to a Zabbix server.
+         */
+        TRAP("trap", false),
+
+        /**
+         * Invoke an mbean operation.
+         */
+        JMX_OP("jmx_op", false),
+
+        /**
+         * Read an mbean attribute.
+         */
+        JMX("jmx", true),
+
+        /**
+         * Compute the increase of a counter since the previous query. Not
+         * cacheable, since every query moves the previous sample along.
+         */
+        JMX_DELTA("jmx.delta", false),
+
+        /**
+         * Compute the increase of a counter per second.
+         */
+        JMX_RATE("jmx.rate", false),
+
+        /**
+         * Read several attributes of an mbean at once.
+         */
+        JMX_ATTRS("jmx.attrs", true),
+
+        /**
+         * Discover mbeans for Zabbix low-level discovery.
+         */
+        JMX_DISCOVERY("jmx.discovery", false),
+
+        /**
+         * Add up an attribute over all mbeans that match a pattern.
+         */
+        JMX_SUM("jmx.sum", true),
+
+        /**
+         * Find the largest value of an attribute over a pattern.
+         */
+        JMX_MAX("jmx.max", true),
+
+        /**
+         * Find the smallest value of an attribute over a pattern.
+         */
+        JMX_MIN("jmx.min", true),
+
+        /**
+         * Average an attribute over a pattern.
+         */
+        JMX_AVG("jmx.avg", true),
+
+        /**
+         * Count the mbeans that match a pattern.
+         */
+        JMX_COUNT("jmx.count", true),
+
+        /**
+         * Read a system property.
+         */
+        SYSTEM_PROPERTY("system.property", false),
+
+        /**
+         * Read an environment variable.
+         */
+        SYSTEM_ENV("system.env", false),
+
+        /**
+         * Check that the agent is alive.
+         */
+        AGENT_PING("agent.ping", false),
+
+        /**
+         * Read the agent version.
+         */
+        AGENT_VERSION("agent.version", false),
+
+        /**
+         * Read the state of the connection to the mbean server, or to a
+         * proxy target.
+         */
+        AGENT_JMX_STATE("agent.jmx.state", false),
+
+        /**
+         * Count the times that the connection to the mbean server, or to a
+         * proxy target, failed.
+         */
+        AGENT_JMX_FAILURES("agent.jmx.failures", false),
+
+        /**
+         * Count the polls for a proxy target that were refused because all
+         * of the target's workers were busy.
+         */
+        AGENT_JMX_REJECTIONS("agent.jmx.rejections", false),
+
+        /**
+         * Read the agent's own statistics, such as
+         * <code>zapcat.latency[jmx,99]</code>. These are answered by the
+         * agent, not by the query handler.
+         */
+        ZAPCAT("zapcat", false),
+
+        /**
+         * Anything we don't know.
+         */
+        UNSUPPORTED(null, false);
+
+        private static final Map<String, Namespace> byName = new HashMap<String, Namespace>();
+        static {
+            for (final Namespace namespace : values()) {
+                if (namespace.name != null) {
+                    byName.put(namespace.name, namespace);
+                }
+            }
+        }
+
+        private final String name;
+
+        /**
+         * Whether the answers to keys in this namespace may be kept in the
+         * result cache. Only reads of mbean attributes are cacheable.
+         */
+        final boolean cacheable;
+
+        private Namespace(final String name, final boolean cacheable) {
+            this.name = name;
+            this.cacheable = cacheable;
+        }
+
+        static Namespace of(final String name) {
+            if (name.startsWith("trap")) {
+                return TRAP;
+            }
+            if (name.startsWith("zapcat.")) {
+                return ZAPCAT;
+            }
+            final Namespace namespace = byName.get(name);
+            return namespace == null ? UNSUPPORTED : namespace;
+        }
+
+        /**
+         * @see java.lang.Enum#toString()
+         */
+        @Override
+        public String toString() {
+            return name == null ? "unsupported" : name;
+        }
+
+        /**
+         * Check whether this is one of the aggregating namespaces.
+         * 
+         * @return <code>true</code> if the key works on a pattern of mbeans
+         *         and boils the values down to one number.
+         */
+        boolean isAggregate() {
+            return this == JMX_SUM || this == JMX_MAX || this == JMX_MIN
+                    || this == JMX_AVG || this == JMX_COUNT;
+        }
+    }
+
+    /**
+     * The key as it was received.
+     */
+    final String key;
+
+    /**
+     * The namespace of the key.
+     */
+    final Namespace namespace;
+
+    /**
+     * The contents of the last pair of brackets, or <code>null</code> if the
+     * key has no brackets.
+     */
+    final String attribute;
+
+    /**
+     * The contents of the first pair of brackets, for keys that have more
+     * than one pair. <code>null</code> otherwise.
+     */
+    final String objectNameString;
+
+    /**
+     * The parsed object name, or <code>null</code> if this is not a JMX key
+     * or the object name is not valid. For discovery keys, this is the
+     * pattern in the brackets, which defaults to all mbeans.
+     */
+    final ObjectName objectName;
+
+    /**
+     * The text before the first colon of the object name, if the rest is an
+     * object name too. This is the name of the proxy target that the key is
+     * for, if there is a target by that name. <code>null</code> if the key
+     * cannot name a target.
+     */
+    final String targetName;
+
+    /**
+     * The object name after the target name, or <code>null</code> if the
+     * key cannot name a target.
+     */
+    final ObjectName targetObjectName;
+
+    /**
+     * The attribute, split into the name of the mbean attribute and the
+     * names of the fields in its composite data. <code>null</code> if the key
+     * has no attribute.
+     */
+    final String[] path;
+
+    /**
+     * The direct reading for well-known <code>java.lang</code> keys, or
+     * <code>null</code> for keys that go through the mbean server.
+     */
+    final PlatformMetric platformMetric;
+
+    /**
+     * For operation keys, the name of the operation. <code>null</code> for
+     * other keys.
+     */
+    final String operation;
+
+    /**
+     * For operation keys, the arguments to the operation. <code>null</code>
+     * for other keys.
+     */
+    final String[] arguments;
+
+    /**
+     * For keys that name several attributes, the attributes as they were
+     * listed. <code>null</code> for other keys.
+     */
+    final String[] attributes;
+
+    /**
+     * For keys that name several attributes, the path of each attribute.
+     * <code>null</code> for other keys.
+     */
+    final String[][] paths;
+
+    private QueryKey(final String key) {
+        this.key = key;
+
+        final int firstOpen = key.indexOf('[');
+        namespace = Namespace.of(firstOpen < 0 ? key : key.substring(0,
+                firstOpen));
+
+        final int lastOpen = key.lastIndexOf('[');
+        final int lastClose = key.lastIndexOf(']');
+        attribute = lastOpen >= 0 && lastClose > lastOpen ? key.substring(
+                lastOpen + 1, lastClose) : null;
+
+        if (namespace == Namespace.JMX_OP) {
+            // jmx_op[object name][operation][argument,argument...]
+            final int nameClose = key.indexOf(']', firstOpen);
+            final int operationClose = nameClose < 0 ? -1 : key.indexOf(']',
+                    nameClose + 1);
+            if (firstOpen >= 0 && operationClose > nameClose + 1) {
+                objectNameString = key.substring(firstOpen + 1, nameClose);
+                operation = key.substring(nameClose + 2, operationClose);
+                final StringTokenizer tokens = new StringTokenizer(key
+                        .substring(operationClose), "[],", false);
+                arguments = new String[tokens.countTokens()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = tokens.nextToken();
+                }
+            } else {
+                objectNameString = null;
+                operation = null;
+                arguments = null;
+            }
+        } else {
+            final int firstClose = lastOpen < 0 ? -1 : key.lastIndexOf(']',
+                    lastOpen);
+            objectNameString = firstOpen >= 0 && firstClose > firstOpen ? key
+                    .substring(firstOpen + 1, firstClose) : null;
+            operation = null;
+            arguments = null;
+        }
+
+        String name = null;
+        if (namespace == Namespace.JMX || namespace == Namespace.JMX_ATTRS
+                || namespace == Namespace.JMX_OP
+                || namespace == Namespace.JMX_DELTA
+                || namespace == Namespace.JMX_RATE || namespace.isAggregate()) {
+            name = objectNameString;
+        }
+        final boolean patternOnly = namespace == Namespace.JMX_COUNT
+                && objectNameString == null;
+        if (patternOnly) {
+            // jmx.count[pattern] has no attribute
+            name = attribute;
+        } else if (namespace == Namespace.JMX_DISCOVERY) {
+            name = attribute == null || attribute.length() == 0 ? "*:*"
+                    : attribute;
+        }
+        ObjectName parsed = null;
+        if (name != null) {
+            try {
+                parsed = new ObjectName(name);
+            } catch (MalformedObjectNameException e) {
+                log.log(Level.FINE, "no bean named " + name, e);
+            }
+        }
+        objectName = parsed;
+
+        // target:domain:key=value,... may name a proxy target
+        String target = null;
+        ObjectName targeted = null;
+        final int colon = objectNameString == null ? -1 : objectNameString
+                .indexOf(':');
+        if ((namespace == Namespace.JMX || namespace == Namespace.JMX_ATTRS
+                || namespace == Namespace.JMX_DELTA || namespace == Namespace.JMX_RATE)
+                && colon > 0 && objectNameString.indexOf(':', colon + 1) > 0) {
+            try {
+                targeted = new ObjectName(objectNameString.substring(colon + 1));
+                target = objectNameString.substring(0, colon);
+            } catch (MalformedObjectNameException e) {
+                // then it was not a target prefix
+            }
+        }
+        targetName = target;
+        targetObjectName = targeted;
+
+        path = attribute == null || patternOnly ? null : attribute
+                .split("\\.");
+        platformMetric = namespace == Namespace.JMX ? PlatformMetric.lookup(
+                objectName, attribute) : null;
+
+        if (namespace == Namespace.JMX_ATTRS && attribute != null) {
+            attributes = attribute.split(",\\s*");
+            paths = new String[attributes.length][];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = attributes[i].trim();
+                paths[i] = attributes[i].split("\\.");
+            }
+        } else {
+            attributes = null;
+            paths = null;
+        }
+    }
+
+    /**
+     * Parse a key, or look up the result of parsing it before.
+     *
+     * @param key
+     *            The key to parse.
+     * @return The parsed key.
+     */
+    static QueryKey compile(final String key) {
+        QueryKey compiled = interned.get(key);
+        if (compiled == null) {
+            compiled = new QueryKey(key);
+            if (interned.size() >= MAX_INTERNED) {
+                // someone is sending us lots of different keys
+                interned.clear();
+            }
+            interned.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return key;
+    }
+}
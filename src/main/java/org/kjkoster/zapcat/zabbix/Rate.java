@@ -0,0 +1,121 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates <code>jmx.delta[object name][attribute]</code> and
+ * <code>jmx.rate[object name][attribute]</code>. The delta is the increase of
+ * a counter since the previous time that the key was asked for, the rate is
+ * that increase per second.
+ * <p>
+ * The first time a key is asked for there is nothing to compare with, so the
+ * answer is ZBX_NOTSUPPORTED rather than a made-up 0 that Zabbix would store
+ * as a real value. When a counter goes down, we look at how it went down. A 32 or
+ * 64-bit counter that jumps from the top of its range to the bottom has
+ * wrapped around, and we count the increase across the wrap. Any other drop
+ * means that the counter was reset, for example because the application was
+ * restarted. The increase is then the new value, counted from 0.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Rate {
+    private static final CounterState state = new CounterState();
+
+    // receives the previous sample, one per thread so that we don't
+    // allocate for every poll
+    private static final ThreadLocal<long[]> previousSample = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[3];
+        }
+    };
+
+    private Rate() {
+        // static methods only
+    }
+
+    /**
+     * Compute the delta or rate for a new sample of a counter.
+     *
+     * @param key
+     *            The compiled key.
+     * @param value
+     *            The current value of the counter.
+     * @param now
+     *            The time of the sample, in nanoseconds.
+     * @return The delta or rate, or ZBX_NOTSUPPORTED if the value is not a
+     *         number or if this is the first sample of the key.
+     */
+    static String evaluate(final QueryKey key, final Object value,
+            final long now) {
+        if (!(value instanceof Number)) {
+            return QueryHandler.NOTSUPPORTED;
+        }
+        final Number number = (Number) value;
+        final boolean rate = key.namespace == QueryKey.Namespace.JMX_RATE;
+
+        final boolean whole = Aggregate.isWhole(number);
+        final long bits = whole ? number.longValue() : Double
+                .doubleToLongBits(number.doubleValue());
+        final long[] previous = previousSample.get();
+        if (!state.swap(CounterState.hash(key.key), bits, !whole, now,
+                previous)) {
+            return QueryHandler.NOTSUPPORTED;
+        }
+
+        final double seconds = (now - previous[1]) / 1000000000.0;
+        if (whole && previous[2] == 0L) {
+            final long delta = delta(number, previous[0], bits);
+            if (!rate) {
+                return Long.toString(delta);
+            }
+            return seconds > 0.0 ? Double.toString(delta / seconds) : "0.0";
+        }
+
+        final double last = previous[2] == 0L ? previous[0] : Double
+                .longBitsToDouble(previous[0]);
+        final double current = number.doubleValue();
+        final double delta = current >= last ? current - last : current;
+        if (!rate) {
+            return Double.toString(delta);
+        }
+        return seconds > 0.0 ? Double.toString(delta / seconds) : "0.0";
+    }
+
+    private static long delta(final Number number, final long last,
+            final long current) {
+        if (current >= last) {
+            return current - last;
+        }
+
+        if (number instanceof Integer || number instanceof AtomicInteger) {
+            if (last > Integer.MAX_VALUE / 2 && current < Integer.MIN_VALUE / 2) {
+                return (current - last) & 0xffffffffL;
+            }
+        } else if (!(number instanceof Short || number instanceof Byte)) {
+            if (last > Long.MAX_VALUE / 2 && current < Long.MIN_VALUE / 2) {
+                // two's complement subtraction counts across the wrap
+                return current - last;
+            }
+        }
+
+        // the counter was reset, and counted up from 0 since then
+        return current;
+    }
+}
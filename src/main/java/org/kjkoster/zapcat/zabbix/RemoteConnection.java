@@ -0,0 +1,412 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * A connection to a remote mbean server that survives the server going away.
+ * <p>
+ * Connecting over RMI to a server that is down blocks until the connect
+ * times out. If every poll tried to connect, every poll would block for that
+ * long during an outage. Instead, once the connection has failed, polls fail
+ * straight away and a background thread tries to connect again. It waits
+ * longer after each failed attempt, up to a maximum. This is the
+ * &quot;open&quot; state of a circuit breaker. The first successful attempt
+ * closes the circuit again.
+ * <p>
+ * The very first connect runs on the background thread too. Calls wait for
+ * it, but only for a short while, so that an agent that starts while the
+ * remote JVM is down does not hold up its pollers for the whole connect
+ * timeout.
+ * <p>
+ * We learn that the connection failed either from a call that failed with an
+ * I/O error, or from the connection notifications of the connector.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class RemoteConnection implements NotificationListener {
+    private static final Logger log = Logger.getLogger(RemoteConnection.class
+            .getName());
+
+    /**
+     * The time in milliseconds that we wait after the first failed attempt
+     * to connect.
+     */
+    static final long INITIAL_BACKOFF = 1000L;
+
+    /**
+     * The longest time in milliseconds that a call waits for the first
+     * attempt to connect.
+     */
+    static final long FIRST_CONNECT_WAIT = 2000L;
+
+    /**
+     * The states that a connection can be in.
+     */
+    enum State {
+        /**
+         * We have not tried to connect yet.
+         */
+        NEW("new"),
+
+        /**
+         * We are connected.
+         */
+        CONNECTED("connected"),
+
+        /**
+         * The connection failed and we are trying to connect again. Calls
+         * fail straight away.
+         */
+        DISCONNECTED("disconnected");
+
+        private final String name;
+
+        private State(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @see java.lang.Enum#toString()
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final JMXServiceURL url;
+
+    private final Map<String, ?> environment;
+
+    private final long maxBackoff;
+
+    private volatile MBeanServerConnection connection = null;
+
+    private volatile State state = State.NEW;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    // guarded by this
+    private JMXConnector connector = null;
+
+    // guarded by this
+    private long backoff = INITIAL_BACKOFF;
+
+    // guarded by this
+    private ScheduledExecutorService reconnector = null;
+
+    // guarded by this
+    private boolean closed = false;
+
+    // guarded by this
+    private boolean connecting = false;
+
+    /**
+     * Create a new connection. We don't connect until the connection is
+     * first used.
+     *
+     * @param url
+     *            The URL of the remote mbean server.
+     * @param environment
+     *            The environment for the connector, holding the
+     *            credentials.
+     * @param maxBackoff
+     *            The longest time in milliseconds that we wait between two
+     *            attempts to connect.
+     */
+    RemoteConnection(final JMXServiceURL url, final Map<String, ?> environment,
+            final long maxBackoff) {
+        this.url = url;
+        this.environment = environment;
+        this.maxBackoff = Math.max(INITIAL_BACKOFF, maxBackoff);
+    }
+
+    /**
+     * Get the connection to the mbean server. The first call has the
+     * background thread connect, and waits a limited time for it. After the
+     * connection failed, calls fail until the background thread has
+     * connected again.
+     *
+     * @return The connection.
+     * @throws IOException
+     *             When we are not connected.
+     */
+    MBeanServerConnection get() throws IOException {
+        final MBeanServerConnection current = connection;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (connection != null) {
+                return connection;
+            }
+            if (state != State.NEW || closed) {
+                throw new IOException("not connected to " + url
+                        + ", the circuit is open");
+            }
+
+            if (!connecting) {
+                connecting = true;
+                schedule(0L);
+            }
+            // waiting releases the lock, so other callers wait with us
+            // instead of behind us
+            final long deadline = System.currentTimeMillis()
+                    + FIRST_CONNECT_WAIT;
+            long remaining = FIRST_CONNECT_WAIT;
+            while (connection == null && state == State.NEW && !closed
+                    && remaining > 0L) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (connection == null) {
+                throw new IOException("not connected to " + url);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Report that a call on a connection failed. If that is still the
+     * current connection, we drop it and start connecting again in the
+     * background.
+     *
+     * @param failed
+     *            The connection that the call failed on.
+     * @param cause
+     *            Why the call failed.
+     */
+    void failed(final MBeanServerConnection failed, final Exception cause) {
+        final JMXConnector dropped;
+        synchronized (this) {
+            if (failed == null || failed != connection) {
+                // someone else noticed first
+                return;
+            }
+
+            log.log(Level.WARNING, "lost connection to remote JMX " + url
+                    + ", reconnecting in the background", cause);
+            dropped = connector;
+            connector = null;
+            connection = null;
+            open(cause);
+        }
+
+        // closing a dead connection may block, so not while holding the lock
+        if (dropped != null) {
+            closeQuietly(dropped);
+        }
+    }
+
+    /*
+     * Open the circuit and have the background thread connect again.
+     */
+    private void open(final Exception cause) {
+        state = State.DISCONNECTED;
+        failures.incrementAndGet();
+        backoff = INITIAL_BACKOFF;
+        log.log(Level.FINE, "opening circuit to " + url, cause);
+        schedule(0L);
+    }
+
+    private void schedule(final long delay) {
+        if (closed) {
+            return;
+        }
+        if (reconnector == null) {
+            reconnector = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "Zabbix-jmx-reconnect");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        reconnector.schedule(new Runnable() {
+            public void run() {
+                attempt();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * One attempt to connect, on the background thread. Connecting may take
+     * a long time, so we do that without holding the lock.
+     */
+    private void attempt() {
+        JMXConnector fresh = null;
+        IOException failure = null;
+        try {
+            fresh = JMXConnectorFactory.connect(url, environment);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                if (fresh != null) {
+                    closeQuietly(fresh);
+                }
+                return;
+            }
+
+            if (fresh != null) {
+                try {
+                    final boolean first = state == State.NEW;
+                    install(fresh);
+                    log.info((first ? "connected" : "reconnected")
+                            + " to remote JMX " + url);
+                    return;
+                } catch (IOException e) {
+                    closeQuietly(fresh);
+                    failure = e;
+                }
+            }
+
+            if (state == State.NEW) {
+                // the first attempt failed, the circuit opens
+                log.log(Level.WARNING, "unable to connect to remote JMX "
+                        + url + ", trying again in the background", failure);
+                state = State.DISCONNECTED;
+                failures.incrementAndGet();
+                notifyAll();
+            }
+            final long delay = backoff;
+            backoff = Math.min(backoff * 2L, maxBackoff);
+            log.log(Level.FINE, "unable to connect to " + url
+                    + ", trying again in " + delay + " ms", failure);
+            schedule(delay);
+        }
+    }
+
+    // called with the lock held
+    private void install(final JMXConnector fresh) throws IOException {
+        fresh.addConnectionNotificationListener(this, null, fresh);
+        connection = fresh.getMBeanServerConnection();
+        connector = fresh;
+        state = State.CONNECTED;
+        backoff = INITIAL_BACKOFF;
+        notifyAll();
+    }
+
+    /**
+     * Listen for the connector telling us that the connection failed, or that
+     * we missed notifications.
+     *
+     * @see javax.management.NotificationListener#handleNotification(javax.management.Notification,
+     *      java.lang.Object)
+     */
+    public void handleNotification(final Notification notification,
+            final Object handback) {
+        final String type = notification.getType();
+        if (JMXConnectionNotification.FAILED.equals(type)
+                || JMXConnectionNotification.CLOSED.equals(type)) {
+            final MBeanServerConnection failed;
+            synchronized (this) {
+                // ignore news about connectors that we already dropped
+                failed = handback == connector ? connection : null;
+            }
+            failed(failed, null);
+        } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+            log.warning("lost notifications from remote JMX " + url
+                    + ", rebuilding the mbean index");
+            MBeanIndex.invalidate();
+        }
+    }
+
+    /*
+     * The notifications that closing sends are ignored, since we no longer
+     * hold on to the connector.
+     */
+    private static void closeQuietly(final JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException e) {
+            // ignore, we're dropping it anyway...
+        }
+    }
+
+    /**
+     * Close the connection and stop trying to connect.
+     */
+    synchronized void close() {
+        closed = true;
+        if (reconnector != null) {
+            reconnector.shutdownNow();
+            reconnector = null;
+        }
+        if (connector != null) {
+            closeQuietly(connector);
+            connector = null;
+        }
+        connection = null;
+        state = State.DISCONNECTED;
+        notifyAll();
+    }
+
+    /**
+     * Read the state of the connection.
+     *
+     * @return The state.
+     */
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Count the times that the connection failed.
+     *
+     * @return The number of failures.
+     */
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
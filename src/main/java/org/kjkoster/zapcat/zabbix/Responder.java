@@ -0,0 +1,112 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Turns requests into response frames. This is the part of answering a
+ * request that all transports share: look for a sampled value, parse the
+ * key, look in the result cache, evaluate the query if we have to, encode the
+ * response and keep the statistics.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Responder {
+    private static final Logger log = Logger.getLogger(Responder.class
+            .getName());
+
+    private final AgentStatistics statistics;
+
+    private final ResultCache cache;
+
+    private final Sampler sampler;
+
+    /**
+     * Create a new responder.
+     *
+     * @param statistics
+     *            The counters to update.
+     * @param cache
+     *            The result cache, or <code>null</code> if responses are not
+     *            cached.
+     * @param sampler
+     *            The background sampler, or <code>null</code> if no items are
+     *            sampled.
+     */
+    Responder(final AgentStatistics statistics, final ResultCache cache,
+            final Sampler sampler) {
+        this.statistics = statistics;
+        this.cache = cache;
+        this.sampler = sampler;
+    }
+
+    /**
+     * Work out the response frame for a request.
+     *
+     * @param request
+     *            The request that was received.
+     * @param encoder
+     *            The encoder to encode fresh responses with.
+     * @return A buffer holding the frame, ready for writing. The buffer stays
+     *         valid until the encoder is used again.
+     */
+    ByteBuffer respond(final String request, final FrameEncoder encoder) {
+        log.fine("received '" + request + "'");
+
+        final String sampled = sampler == null ? null : sampler.get(request);
+        if (sampled != null) {
+            log.fine("answering from the sampler");
+            return sent(encoder.encode(sampled));
+        }
+
+        final QueryKey key = QueryKey.compile(request);
+        final boolean cacheable = cache != null && ResultCache.isCacheable(key);
+        final boolean protocol14 = QueryHandler.isProtocol14();
+        if (cacheable) {
+            final ByteBuffer cached = cache.get(request, protocol14);
+            if (cached != null) {
+                log.fine("answering from the cache");
+                return sent(cached);
+            }
+        }
+
+        final long start = System.nanoTime();
+        String response = key.namespace == QueryKey.Namespace.ZAPCAT ? statistics
+                .query(key)
+                : QueryHandler.response(key);
+        statistics.answered(key, System.nanoTime() - start, response);
+        // make sure we can send
+        if (response == null) {
+            response = "";
+        }
+
+        log.fine("sending '" + response + "'");
+        final ByteBuffer frame = encoder.encode(response);
+        // failures may be temporary, don't hold on to them
+        if (cacheable && !QueryHandler.NOTSUPPORTED.equals(response)) {
+            cache.put(request, protocol14, frame);
+        }
+        return sent(frame);
+    }
+
+    private ByteBuffer sent(final ByteBuffer frame) {
+        statistics.bytesOut.addAndGet(frame.remaining());
+        return frame;
+    }
+}
@@ -0,0 +1,287 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of recent responses to JMX queries. When both a Zabbix server and a
+ * proxy poll the same item, only one of them has to go to the mbean server.
+ * <p>
+ * Entries hold the encoded response frame, so that answering from the cache
+ * is a single write of a buffer that we already have. Entries expire after a
+ * fixed time and the least recently used entry is evicted when the cache is
+ * full.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ResultCache {
+    private final long ttlNanos;
+
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    // guarded by itself
+    private final Map<String, CachedFrame> entries;
+
+    /**
+     * Create a new cache.
+     *
+     * @param ttl
+     *            The time in milliseconds that a response stays valid.
+     * @param maxSize
+     *            The largest number of responses that we keep.
+     */
+    ResultCache(final long ttl, final int maxSize) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxSize = maxSize;
+
+        entries = new LinkedHashMap<String, CachedFrame>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, CachedFrame> eldest) {
+                if (size() > ResultCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Check whether responses to this request may be cached. Only JMX
+     * attribute queries are, everything else is cheap or has side effects.
+     *
+     * @param key
+     *            The compiled request.
+     * @return <code>true</code> if the request may be cached.
+     */
+    static boolean isCacheable(final QueryKey key) {
+        return key.namespace.cacheable;
+    }
+
+    /**
+     * Look up the response frame for a request.
+     *
+     * @param request
+     *            The request.
+     * @param protocol14
+     *            The protocol that the frame should be in.
+     * @return A buffer holding the frame, ready for writing, or
+     *         <code>null</code> if there is no valid entry. The buffer shares
+     *         its bytes with the cache and must not be modified.
+     */
+    ByteBuffer get(final String request, final boolean protocol14) {
+        final CachedFrame entry;
+        synchronized (entries) {
+            entry = entries.get(request);
+        }
+
+        if (entry == null || entry.protocol14 != protocol14
+                || System.nanoTime() - entry.expires > 0L) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.frame.duplicate();
+    }
+
+    /**
+     * Store a response frame.
+     *
+     * @param request
+     *            The request.
+     * @param protocol14
+     *            The protocol that the frame is in.
+     * @param frame
+     *            The frame. The bytes between its position and limit are
+     *            copied, the buffer itself is left untouched.
+     */
+    void put(final String request, final boolean protocol14,
+            final ByteBuffer frame) {
+        final ByteBuffer source = frame.duplicate();
+        final ByteBuffer copy = frame.isDirect() ? ByteBuffer
+                .allocateDirect(source.remaining()) : ByteBuffer
+                .allocate(source.remaining());
+        copy.put(source);
+        copy.flip();
+
+        // not read-only, so that blocking writes can use the backing array
+        final CachedFrame entry = new CachedFrame(copy, protocol14,
+                System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            entries.put(request, entry);
+        }
+    }
+
+    /**
+     * Forget all responses.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The interface to the JMX representation of the cache.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface CacheMBean {
+        /**
+         * Read the time that responses stay in the cache.
+         *
+         * @return The time to live in milliseconds.
+         */
+        long getTtl();
+
+        /**
+         * Read the largest number of responses that the cache holds.
+         *
+         * @return The maximum size of the cache.
+         */
+        int getMaxSize();
+
+        /**
+         * Read the number of responses in the cache, including expired ones
+         * that were not evicted yet.
+         *
+         * @return The current size of the cache.
+         */
+        int getSize();
+
+        /**
+         * Read the number of requests that were answered from the cache.
+         *
+         * @return The number of cache hits.
+         */
+        long getHits();
+
+        /**
+         * Read the number of cacheable requests that had to be evaluated.
+         *
+         * @return The number of cache misses.
+         */
+        long getMisses();
+
+        /**
+         * Read the number of responses that were evicted to make room.
+         *
+         * @return The number of evictions.
+         */
+        long getEvictions();
+
+        /**
+         * Forget all responses.
+         */
+        void clear();
+    }
+
+    /**
+     * Our JMX representation.
+     * <p>
+     * This class is <code>public</code> because some application servers
+     * cannot access this mbean otherwise.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Cache implements CacheMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getTtl()
+         */
+        public long getTtl() {
+            return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getMaxSize()
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getSize()
+         */
+        public int getSize() {
+            return size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getHits()
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getMisses()
+         */
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#getEvictions()
+         */
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.CacheMBean#clear()
+         */
+        public void clear() {
+            ResultCache.this.clear();
+        }
+    }
+
+    private static final class CachedFrame {
+        final ByteBuffer frame;
+
+        final boolean protocol14;
+
+        final long expires;
+
+        CachedFrame(final ByteBuffer frame, final boolean protocol14,
+                final long expires) {
+            this.frame = frame;
+            this.protocol14 = protocol14;
+            this.expires = expires;
+        }
+    }
+}
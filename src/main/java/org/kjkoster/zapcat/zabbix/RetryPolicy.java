@@ -0,0 +1,199 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when to try a Zabbix server again after it could not be reached.
+ * Each sender talks to one server and has a retry policy of its own, so an
+ * outage of one server does not hold up the trappers that feed another.
+ * <p>
+ * Each failure in a row doubles the delay, from the base delay up to the
+ * largest delay. The actual delay is picked at random between half and all of
+ * that, so that trappers that lost the same server do not all come back at the
+ * same moment. A batch is tried a limited number of times, after that the
+ * sender gives up on it.
+ * <p>
+ * During an outage we log the first failure, and after that only when the
+ * number of failures doubles, instead of once per attempt.
+ * <p>
+ * The sender thread updates the state. Other threads, such as JMX, may read
+ * it.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class RetryPolicy {
+    private static final Logger log = Logger.getLogger(RetryPolicy.class
+            .getName());
+
+    private final String destination;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final int maxAttempts;
+
+    private final Random random = new Random();
+
+    private volatile int failures = 0;
+
+    private volatile long delay = 0L;
+
+    private volatile long nextAttempt = 0L;
+
+    private volatile long lastSuccess = 0L;
+
+    private volatile String lastError = null;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Create a new retry policy.
+     *
+     * @param destination
+     *            The server that we send to, for log messages.
+     * @param baseDelay
+     *            The delay after the first failure, in milliseconds.
+     * @param maxDelay
+     *            The longest delay, in milliseconds.
+     * @param maxAttempts
+     *            The number of times to try a batch before giving up on it.
+     */
+    RetryPolicy(final String destination, final long baseDelay,
+            final long maxDelay, final int maxAttempts) {
+        this.destination = destination;
+        this.baseDelay = Math.max(1L, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Read the number of times to try a batch.
+     *
+     * @return The largest number of attempts.
+     */
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Check how long to wait before the next attempt.
+     *
+     * @return The time to wait in milliseconds, or 0 if we may try now.
+     */
+    long remaining() {
+        return Math.max(0L, nextAttempt - System.currentTimeMillis());
+    }
+
+    /**
+     * Record that the server answered.
+     */
+    synchronized void succeeded() {
+        if (failures > 0) {
+            log.info(destination + " can be reached again, after " + failures
+                    + " failed attempts");
+        }
+        failures = 0;
+        delay = 0L;
+        nextAttempt = 0L;
+        lastSuccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Record that the server could not be reached, and work out when to try
+     * again.
+     *
+     * @param items
+     *            The number of items that we tried to send.
+     * @param e
+     *            What went wrong.
+     */
+    synchronized void failed(final int items, final Exception e) {
+        failures++;
+        if (failures > 1) {
+            retries.incrementAndGet();
+        }
+        final long ceiling = Math.min(maxDelay, baseDelay << Math.min(
+                failures - 1, 30));
+        delay = ceiling - (long) (random.nextDouble() * ceiling / 2.0);
+        nextAttempt = System.currentTimeMillis() + delay;
+        lastError = e.toString();
+
+        if (failures == 1) {
+            log.log(Level.WARNING, "unable to send " + items + " items to "
+                    + destination + ", retrying in " + delay + " ms", e);
+        } else if (Integer.bitCount(failures) == 1) {
+            log.warning("still unable to reach " + destination + " after "
+                    + failures + " attempts, retrying in " + delay + " ms: "
+                    + e);
+        } else {
+            log.fine("unable to reach " + destination + ", retrying in "
+                    + delay + " ms: " + e);
+        }
+    }
+
+    /**
+     * Read the number of failed attempts in a row.
+     *
+     * @return The number of failures since the last success.
+     */
+    int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Read the current delay between attempts.
+     *
+     * @return The delay in milliseconds, or 0 if the server can be reached.
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Read when the server last answered.
+     *
+     * @return The time in milliseconds since the epoch, or 0 if it never
+     *         did.
+     */
+    long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    /**
+     * Read what went wrong the last time the server could not be reached.
+     *
+     * @return The last error, or <code>null</code> if there was none.
+     */
+    String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Read the number of attempts that were made while backing off.
+     *
+     * @return The number of retries.
+     */
+    long getRetries() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,403 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Samples a configured set of items on a fixed schedule, so that polls for
+ * those items are answered from memory. How fast we answer no longer depends
+ * on how fast the mbean server is, and a burst of polls does not turn into a
+ * burst of mbean reads in the application.
+ * <p>
+ * Items are configured as system properties
+ * <code>org.kjkoster.zapcat.sampler.item.1</code>,
+ * <code>org.kjkoster.zapcat.sampler.item.2</code> and so on, each holding an
+ * item key. The <code>jmx[...]</code> items are grouped by object name, so
+ * that each mbean is read once per round, with a single call to
+ * <code>getAttributes()</code>. Other keys are evaluated one by one. Traps
+ * and operations are never sampled.
+ * <p>
+ * Each round builds a new, immutable snapshot and swaps it in as a whole.
+ * Readers see either the old round or the new one, never a mix. Until the
+ * first round is done, items are queried the normal way.
+ * <p>
+ * An item that fails to sample is left out of the round, so that it is
+ * queried the normal way too. A snapshot that is older than twice the
+ * interval, for example because a round is stuck on a slow mbean, is not used
+ * at all.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Sampler implements Runnable {
+    private static final Logger log = Logger.getLogger(Sampler.class
+            .getName());
+
+    private final long interval;
+
+    // the jmx[] items, grouped by the mbean that they read from
+    private final Map<ObjectName, List<QueryKey>> groups = new LinkedHashMap<ObjectName, List<QueryKey>>();
+
+    // the attributes to read from each mbean
+    private final Map<ObjectName, String[]> attributes = new HashMap<ObjectName, String[]>();
+
+    // items that are evaluated one at a time
+    private final List<QueryKey> others = new ArrayList<QueryKey>();
+
+    private volatile Snapshot snapshot = new Snapshot(Collections
+            .<String, String> emptyMap(), 0L);
+
+    private volatile long lastDuration = 0L;
+
+    private final AtomicLong rounds = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param keys
+     *            The keys of the items to sample.
+     * @param interval
+     *            The time between rounds, in milliseconds.
+     */
+    Sampler(final List<String> keys, final long interval) {
+        this.interval = interval;
+
+        for (final String text : keys) {
+            final QueryKey key = QueryKey.compile(text);
+            switch (key.namespace) {
+            case JMX:
+                if (key.targetName != null) {
+                    // may be for a proxy target, don't group it
+                    others.add(key);
+                    break;
+                }
+                if (key.objectName == null || key.path == null) {
+                    log.warning("cannot sample '" + text
+                            + "', it is not a valid JMX key");
+                    break;
+                }
+                List<QueryKey> group = groups.get(key.objectName);
+                if (group == null) {
+                    group = new ArrayList<QueryKey>();
+                    groups.put(key.objectName, group);
+                }
+                group.add(key);
+                break;
+
+            case TRAP:
+            case JMX_OP:
+            case ZAPCAT:
+            case UNSUPPORTED:
+                log.warning("cannot sample '" + text + "'");
+                break;
+
+            default:
+                others.add(key);
+            }
+        }
+
+        for (final Map.Entry<ObjectName, List<QueryKey>> group : groups
+                .entrySet()) {
+            final Set<String> names = new LinkedHashSet<String>();
+            for (final QueryKey key : group.getValue()) {
+                names.add(key.path[0]);
+            }
+            attributes.put(group.getKey(), names
+                    .toArray(new String[names.size()]));
+        }
+    }
+
+    /**
+     * Read the item keys from the system properties.
+     *
+     * @return The item keys, in the order of their numbers.
+     */
+    static List<String> configuredItems() {
+        final Map<Integer, String> items = new TreeMap<Integer, String>();
+        final Properties properties = System.getProperties();
+        for (final String name : properties.stringPropertyNames()) {
+            if (!name.startsWith(ZabbixAgent.SAMPLER_ITEM_PREFIX)) {
+                continue;
+            }
+
+            final String number = name.substring(ZabbixAgent.SAMPLER_ITEM_PREFIX
+                    .length());
+            try {
+                items.put(Integer.valueOf(number), properties.getProperty(name)
+                        .trim());
+            } catch (NumberFormatException e) {
+                log.warning("ignoring " + name + ", " + number
+                        + " is not a number");
+            }
+        }
+        return new ArrayList<String>(items.values());
+    }
+
+    /**
+     * Start sampling in a background thread.
+     */
+    synchronized void start() {
+        scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "Zabbix-sampler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        scheduler.scheduleWithFixedDelay(this, 0L, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Take one round of samples and publish them.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        final long start = System.nanoTime();
+        final Map<String, String> samples = new HashMap<String, String>();
+        // catch everything per item, so that the scheduler does not cancel us
+        // and one broken item does not hold up the rest
+        for (final Map.Entry<ObjectName, List<QueryKey>> group : groups
+                .entrySet()) {
+            try {
+                sample(group.getKey(), group.getValue(), samples);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "unable to sample " + group.getKey(), e);
+            }
+        }
+        for (final QueryKey key : others) {
+            try {
+                final String value = QueryHandler.response(key);
+                samples.put(key.key, value == null ? "" : value);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "unable to sample " + key.key, e);
+            }
+        }
+
+        snapshot = new Snapshot(samples, System.currentTimeMillis());
+        lastDuration = System.nanoTime() - start;
+        rounds.incrementAndGet();
+    }
+
+    private void sample(final ObjectName objectName,
+            final List<QueryKey> keys, final Map<String, String> samples) {
+        // keys that we cannot sample are left out, so that polls for them
+        // are answered the normal way
+        final Map<String, Object> values;
+        try {
+            values = JMXHelper.getAttributes(objectName, attributes
+                    .get(objectName));
+        } catch (InstanceNotFoundException e) {
+            log.log(Level.FINE, "no bean named " + objectName, e);
+            return;
+        } catch (ReflectionException e) {
+            log.log(Level.WARNING, "unable to read from " + objectName, e);
+            return;
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Cannot connect to remote JMX "
+                    + System.getProperty(ZabbixAgent.JMX_URL_PROPERTY), e);
+            return;
+        }
+
+        for (final QueryKey key : keys) {
+            if (!values.containsKey(key.path[0])) {
+                continue;
+            }
+
+            try {
+                final Object value = JMXHelper.resolve(values
+                        .get(key.path[0]), key.path);
+                samples.put(key.key, value == null ? "" : value.toString());
+            } catch (RuntimeException e) {
+                log.log(Level.FINE, "no field " + key.attribute + " on "
+                        + objectName, e);
+            }
+        }
+    }
+
+    /**
+     * Look up the latest sample of an item.
+     *
+     * @param key
+     *            The item key.
+     * @return The sampled value, or <code>null</code> if the item is not
+     *         sampled, not yet, or the snapshot is too old to use.
+     */
+    String get(final String key) {
+        final Snapshot current = snapshot;
+        if (System.currentTimeMillis() - current.time > 2L * interval) {
+            return null;
+        }
+
+        final String value = current.samples.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * The samples of one round and when they were taken, published together.
+     */
+    private static final class Snapshot {
+        final Map<String, String> samples;
+
+        final long time;
+
+        Snapshot(final Map<String, String> samples, final long time) {
+            this.samples = Collections.unmodifiableMap(samples);
+            this.time = time;
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface SamplesMBean {
+        /**
+         * Read the time between rounds.
+         *
+         * @return The interval in milliseconds.
+         */
+        long getInterval();
+
+        /**
+         * Read the number of items in the latest snapshot.
+         *
+         * @return The number of sampled items.
+         */
+        int getItems();
+
+        /**
+         * Read the number of rounds taken so far.
+         *
+         * @return The number of rounds.
+         */
+        long getRounds();
+
+        /**
+         * Read the number of polls that were answered from a snapshot.
+         *
+         * @return The number of polls.
+         */
+        long getHits();
+
+        /**
+         * Read how long the latest round took.
+         *
+         * @return The duration in milliseconds.
+         */
+        long getLastDuration();
+
+        /**
+         * Read the age of the latest snapshot.
+         *
+         * @return The age in milliseconds, or -1 if there is no snapshot yet.
+         */
+        long getSnapshotAge();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Samples implements SamplesMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getInterval()
+         */
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getItems()
+         */
+        public int getItems() {
+            return snapshot.samples.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getRounds()
+         */
+        public long getRounds() {
+            return rounds.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getHits()
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getLastDuration()
+         */
+        public long getLastDuration() {
+            return TimeUnit.NANOSECONDS.toMillis(lastDuration);
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.SamplesMBean#getSnapshotAge()
+         */
+        public long getSnapshotAge() {
+            final long time = snapshot.time;
+            return time == 0L ? -1L : System.currentTimeMillis() - time;
+        }
+    }
+}
@@ -17,12 +17,19 @@ package org.kjkoster.zapcat.zabbix;
  */
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,6 +38,18 @@ import org.kjkoster.zapcat.util.Base64;
 
 /**
  * A daemon thread that waits for and forwards data items to a Zabbix server.
+ * <p>
+ * With the old XML protocol, each item takes a connection of its own. With
+ * the JSON protocol, the sender collects the items that arrive within the
+ * flush window, up to the batch size, and sends them in one request. The
+ * JSON protocol can also be sent without blocking, with several requests in
+ * flight at the same time. This thread then drives the {@link NioSender}.
+ * <p>
+ * When the server cannot be reached, the sender backs off as the
+ * {@link RetryPolicy} says, instead of trying again right away. A batch that
+ * runs out of attempts goes to the spool, if there is one, to be replayed
+ * when the server can be reached again. Otherwise it goes to the dead
+ * letters, as do batches that the server refuses.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
@@ -51,10 +70,30 @@ final class Sender extends Thread {
 
     private static final String tail = "</data></req>";
 
-    private boolean stopping = false;
+    private volatile boolean stopping = false;
+
+    // the non-blocking engine, while it runs
+    private volatile NioSender nioSender = null;
+
+    // whether the non-blocking engine waits for items, not for the network
+    private volatile boolean waiting = false;
 
     private static final int TIMEOUT = 5 * 1000;
 
+    private final boolean json;
+
+    private final int batchSize;
+
+    private final long flushNanos;
+
+    private final int maxInFlight;
+
+    private final Spool spool;
+
+    private final RetryPolicy retry;
+
+    private final DeadLetters deadLetters;
+
     /**
      * Create a new background sender.
      * 
@@ -64,9 +103,32 @@ final class Sender extends Thread {
      *            The name or IP of the machine to send the data to.
      * @param zabbixPort
      *            The port number on that machine.
+     * @param json
+     *            <code>true</code> to send batches with the JSON protocol,
+     *            <code>false</code> to send items one by one with the XML
+     *            protocol.
+     * @param batchSize
+     *            The largest number of items to send in one request.
+     * @param flush
+     *            The longest time in milliseconds that we wait for a batch
+     *            to fill up.
+     * @param maxInFlight
+     *            The largest number of JSON requests to have in flight at
+     *            the same time without blocking, or 0 to send them one by
+     *            one over blocking sockets.
+     * @param spool
+     *            The spool for items that could not be sent, or
+     *            <code>null</code> to give up on them.
+     * @param retry
+     *            When to try again after the server could not be reached.
+     * @param deadLetters
+     *            Where items go that we gave up on.
      */
     public Sender(final BlockingQueue<Item> queue,
-            final InetAddress zabbixServer, final int zabbixPort) {
+            final InetAddress zabbixServer, final int zabbixPort,
+            final boolean json, final int batchSize, final long flush,
+            final int maxInFlight, final Spool spool, final RetryPolicy retry,
+            final DeadLetters deadLetters) {
         super("Zabbix-sender");
         setDaemon(true);
 
@@ -74,6 +136,14 @@ final class Sender extends Thread {
 
         this.zabbixServer = zabbixServer;
         this.zabbixPort = zabbixPort;
+
+        this.json = json;
+        this.batchSize = json ? Math.max(1, batchSize) : 1;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, flush));
+        this.maxInFlight = json ? Math.max(0, maxInFlight) : 0;
+        this.spool = spool;
+        this.retry = retry;
+        this.deadLetters = deadLetters;
     }
 
     /**
@@ -81,7 +151,14 @@ final class Sender extends Thread {
      */
     public void stopping() {
         stopping = true;
-        interrupt();
+        final NioSender nio = nioSender;
+        if (nio == null || waiting) {
+            interrupt();
+        } else {
+            // an interrupt would close the connections of the requests in
+            // flight, losing their responses
+            nio.wakeup();
+        }
     }
 
     /**
@@ -89,27 +166,278 @@ final class Sender extends Thread {
      */
     @Override
     public void run() {
-        while (!stopping) {
+        if (maxInFlight > 0) {
             try {
-                final Item item = queue.take();
+                runNonBlocking();
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING,
+                        "unable to send without blocking, falling back to "
+                                + "blocking sockets", e);
+            }
+        }
 
-                send(item.getHost(), item.getKey(), item.getValue());
+        final List<Item> batch = new ArrayList<Item>(batchSize);
+        // how often we tried to send the batch that is waiting to go out
+        int attempts = 0;
+        while (!stopping) {
+            try {
+                final long pause = retry.remaining();
+                if (pause > 0L) {
+                    // the server is away, give it some time
+                    Thread.sleep(pause);
+                }
+                if (batch.isEmpty()) {
+                    final Item first;
+                    if (spool == null || spool.isEmpty()) {
+                        first = queue.take();
+                    } else {
+                        // don't hold up the replay, but keep up with new items
+                        first = queue.poll();
+                    }
+                    if (first != null) {
+                        batch.add(first);
+                        fill(batch);
+                    }
+                }
             } catch (InterruptedException e) {
                 if (!stopping) {
                     log.log(Level.WARNING, "ignoring exception", e);
                 }
-            } catch (Exception e) {
-                log.log(Level.WARNING, "ignoring exception", e);
             }
+            if (stopping) {
+                break;
+            }
+
+            if (batch.isEmpty()) {
+                replay();
+            } else if (deliver(batch)) {
+                batch.clear();
+                attempts = 0;
+                replay();
+            } else if (++attempts >= retry.getMaxAttempts()) {
+                giveUp(batch, spool, deadLetters, "unable to reach "
+                        + zabbixServer + ":" + zabbixPort + " after "
+                        + attempts + " attempts");
+                batch.clear();
+                attempts = 0;
+            }
+        }
+
+        // send what is left once, unless the server is away
+        for (;;) {
+            if (batch.isEmpty()) {
+                queue.drainTo(batch, batchSize);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (retry.remaining() > 0L || !deliver(batch)) {
+                giveUp(batch, spool, deadLetters, "sender stopped");
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+     * The loop for the non-blocking engine. While nothing is in flight we
+     * wait for items like the blocking loop does. Otherwise we wait for the
+     * network, picking up the items that arrived in the meantime.
+     */
+    private void runNonBlocking() throws IOException {
+        final NioSender nio = new NioSender(new InetSocketAddress(
+                zabbixServer, zabbixPort), maxInFlight, TIMEOUT, spool, retry,
+                deadLetters);
+        final long wait = Math.max(1L, TimeUnit.NANOSECONDS
+                .toMillis(flushNanos));
+        final List<Item> batch = new ArrayList<Item>(batchSize);
+        nioSender = nio;
+        try {
+            while (!stopping) {
+                try {
+                    waiting = !nio.hasInFlight();
+                    if (stopping) {
+                        break;
+                    }
+                    final long pause = retry.remaining();
+                    if (pause > 0L) {
+                        if (waiting) {
+                            // the server is away and nothing is in flight
+                            Thread.sleep(pause);
+                        }
+                    } else if (nio.isIdle()
+                            && (spool == null || spool.isEmpty())) {
+                        batch.add(queue.take());
+                        fill(batch);
+                    } else if (nio.hasRoom()) {
+                        queue.drainTo(batch, batchSize);
+                    }
+                } catch (InterruptedException e) {
+                    if (!stopping) {
+                        log.log(Level.WARNING, "ignoring exception", e);
+                    }
+                } finally {
+                    waiting = false;
+                }
+
+                final boolean started = !batch.isEmpty();
+                if (started) {
+                    nio.start(batch);
+                    batch.clear();
+                }
+                nio.resume();
+                nio.replay(batchSize);
+                nio.poll(started ? 0L : wait);
+            }
+
+            // send what is left, and wait for what is in flight, unless the
+            // server is away
+            Thread.interrupted();
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            while ((queue.size() > 0 || !nio.isIdle())
+                    && System.currentTimeMillis() < deadline
+                    && retry.remaining() == 0L) {
+                if (nio.hasRoom() && queue.size() > 0) {
+                    queue.drainTo(batch, batchSize);
+                    nio.start(batch);
+                    batch.clear();
+                }
+                nio.resume();
+                nio.poll(wait);
+            }
+            queue.drainTo(batch);
+            giveUp(batch, spool, deadLetters, "sender stopped");
+        } finally {
+            nioSender = null;
+            nio.close();
         }
+    }
 
-        // drain the queue
-        while (queue.size() > 0) {
-            final Item item = queue.remove();
-            try {
-                send(item.getHost(), item.getKey(), item.getValue());
-            } catch (Exception e) {
-                log.log(Level.WARNING, "ignoring exception", e);
+    /*
+     * Add what arrives within the flush window to the batch, until it is
+     * full. If we are interrupted, the batch keeps what we collected so far.
+     */
+    private void fill(final List<Item> batch) throws InterruptedException {
+        final long deadline = System.nanoTime() + flushNanos;
+        queue.drainTo(batch, batchSize - batch.size());
+        while (batch.size() < batchSize) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0L) {
+                break;
+            }
+            final Item item = queue.poll(left, TimeUnit.NANOSECONDS);
+            if (item == null) {
+                break;
+            }
+            batch.add(item);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    /*
+     * Put the items that we give up on in the spool, or in the dead letters
+     * if there is no spool or it will not take them.
+     */
+    static void giveUp(final List<Item> items, final Spool spool,
+            final DeadLetters deadLetters, final String reason) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        final List<Item> lost = new ArrayList<Item>();
+        for (final Item item : items) {
+            if (spool == null || !spool.append(item)) {
+                lost.add(item);
+            }
+        }
+        if (!lost.isEmpty()) {
+            log.warning("giving up on " + lost.size() + " items: " + reason);
+            deadLetters.add(lost, reason);
+        }
+    }
+
+    /*
+     * Send the oldest items in the spool. They stay there until they are
+     * sent.
+     */
+    private void replay() {
+        if (spool == null || spool.isEmpty()) {
+            return;
+        }
+
+        final List<Item> spooled = spool.peek(batchSize);
+        if (spooled.isEmpty() || deliver(spooled)) {
+            spool.commit();
+            log.fine("replayed " + spooled.size() + " spooled items");
+        }
+    }
+
+    /*
+     * Returns false if the server could not be reached, in which case the
+     * caller decides what happens to the items. Items that the server
+     * refuses, or that we cannot encode, go to the dead letters, since
+     * sending them again won't help.
+     */
+    private boolean deliver(final List<Item> batch) {
+        try {
+            if (json) {
+                final SenderData response = sendBatch(batch);
+                if (!response.success) {
+                    deadLetters.add(batch, "refused: " + response);
+                }
+            } else {
+                for (final Item item : batch) {
+                    send(item.getHost(), item.getKey(), item.getValue());
+                }
+            }
+            retry.succeeded();
+            return true;
+        } catch (IOException e) {
+            retry.failed(batch.size(), e);
+            return false;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "ignoring exception", e);
+            deadLetters.add(batch, e.toString());
+            return true;
+        }
+    }
+
+    private SenderData sendBatch(final List<Item> batch) throws IOException {
+        final long start = System.currentTimeMillis();
+        final ByteBuffer frame = SenderData.encode(batch, start / 1000L);
+
+        Socket zabbix = null;
+        try {
+            zabbix = new Socket(zabbixServer, zabbixPort);
+            zabbix.setSoTimeout(TIMEOUT);
+
+            final OutputStream out = zabbix.getOutputStream();
+            out.write(frame.array(), frame.arrayOffset() + frame.position(),
+                    frame.remaining());
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(zabbix
+                    .getInputStream());
+            final byte[] header = new byte[FrameDecoder.HEADER_LENGTH];
+            in.readFully(header);
+            final byte[] payload = new byte[SenderData.payloadLength(header)];
+            in.readFully(payload);
+
+            final SenderData response = SenderData.parse(payload);
+            if (!response.success) {
+                log.warning("received unexpected response '" + response
+                        + "' for " + batch.size() + " items");
+            } else if (response.failed > 0) {
+                log.warning("Zabbix failed " + response.failed + " of "
+                        + batch.size() + " items: " + response);
+            }
+
+            log.fine("sent " + batch.size() + " items in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return response;
+        } finally {
+            if (zabbix != null) {
+                zabbix.close();
             }
         }
     }
@@ -0,0 +1,207 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.kjkoster.zapcat.util.Json;
+
+/**
+ * The JSON &quot;sender data&quot; protocol that Zabbix 1.8 and later use for
+ * trapper items. Unlike the old XML protocol, one request carries any number
+ * of items:
+ *
+ * <pre>
+ * {&quot;request&quot;:&quot;sender data&quot;,&quot;data&quot;:[{&quot;host&quot;:&quot;...&quot;,&quot;key&quot;:&quot;...&quot;,&quot;value&quot;:&quot;...&quot;,&quot;clock&quot;:...},...]}
+ * </pre>
+ * <p>
+ * Each item carries the time it was made, so that the server records items
+ * that were held up at the right time.
+ * <p>
+ * The request and the response are framed with the same ZBXD header that the
+ * agent protocol uses. The server tells us how many items it processed and
+ * how many it failed in the <code>info</code> field of the response.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SenderData {
+    private static final Logger log = Logger.getLogger(SenderData.class
+            .getName());
+
+    private static final Pattern SUCCESS = Pattern
+            .compile("\"response\"\\s*:\\s*\"success\"");
+
+    // Zabbix 1.8 and 2.0 say "Processed 1 Failed 0", later versions
+    // "processed: 1; failed: 0"
+    private static final Pattern PROCESSED = Pattern.compile(
+            "processed:? *(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern FAILED = Pattern.compile(
+            "failed:? *(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Whether the server accepted the request at all.
+     */
+    final boolean success;
+
+    /**
+     * The number of items that the server processed, or -1 if it did not
+     * say.
+     */
+    final int processed;
+
+    /**
+     * The number of items that the server could not process, or -1 if it did
+     * not say. These are usually items that the host does not have.
+     */
+    final int failed;
+
+    /**
+     * The response as we got it.
+     */
+    final String response;
+
+    private SenderData(final String response) {
+        this.response = response;
+        success = SUCCESS.matcher(response).find();
+        processed = count(PROCESSED, response);
+        failed = count(FAILED, response);
+    }
+
+    private static int count(final Pattern pattern, final String response) {
+        final Matcher matcher = pattern.matcher(response);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Encode a batch of items into a request frame. Items whose value cannot
+     * be read are left out.
+     *
+     * @param items
+     *            The items to send.
+     * @param clock
+     *            The time of the request, in seconds since the epoch.
+     * @return A buffer holding the frame, ready for writing.
+     */
+    static ByteBuffer encode(final List<Item> items, final long clock) {
+        final StringBuilder json = new StringBuilder(64 + items.size() * 64);
+        json.append("{\"request\":\"sender data\",\"data\":[");
+        boolean first = true;
+        for (final Item item : items) {
+            final String value;
+            try {
+                value = item.getValue();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "unable to read the value for key '"
+                        + item.getKey() + "', leaving it out", e);
+                continue;
+            }
+
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"host\":");
+            Json.appendString(json, item.getHost());
+            json.append(",\"key\":");
+            Json.appendString(json, item.getKey());
+            json.append(",\"value\":");
+            Json.appendString(json, value == null ? "" : value);
+            json.append(",\"clock\":").append(item.getClock() / 1000L);
+            json.append('}');
+        }
+        json.append("],\"clock\":").append(clock).append('}');
+
+        log.finest("sending " + json);
+        final byte[] payload;
+        try {
+            payload = json.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("no UTF-8 in this JVM", e);
+        }
+
+        final ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH
+                + payload.length);
+        frame.put((byte) 'Z').put((byte) 'B').put((byte) 'X').put((byte) 'D');
+        frame.put((byte) 0x01);
+        long length = payload.length;
+        for (int i = 5; i < FrameDecoder.HEADER_LENGTH; i++) {
+            frame.put((byte) (length & 0xff));
+            length >>= 8;
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Find the length of the payload from the header of a response.
+     *
+     * @param header
+     *            The first {@link FrameDecoder#HEADER_LENGTH} bytes of the
+     *            response.
+     * @return The length of the payload in bytes.
+     * @throws IOException
+     *             When this is not a ZBXD header, or the length is not
+     *             sensible.
+     */
+    static int payloadLength(final byte[] header) throws IOException {
+        if (header[0] != 'Z' || header[1] != 'B' || header[2] != 'X'
+                || header[3] != 'D') {
+            throw new IOException("response does not start with ZBXD");
+        }
+        long length = 0L;
+        for (int i = FrameDecoder.HEADER_LENGTH - 1; i >= 5; i--) {
+            length = (length << 8) | (header[i] & 0xff);
+        }
+        if (length < 0L || length > FrameDecoder.DEFAULT_MAX_PAYLOAD) {
+            throw new IOException("response of " + length
+                    + " bytes is too large");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Parse the payload of a response.
+     *
+     * @param payload
+     *            The payload, without the header.
+     * @return The parsed response.
+     * @throws IOException
+     *             When the payload is not valid UTF-8.
+     */
+    static SenderData parse(final byte[] payload) throws IOException {
+        final String response = new String(payload, "UTF-8");
+        log.finest("received " + response);
+        return new SenderData(response);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return response;
+    }
+}
@@ -0,0 +1,123 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The keys that took the longest to answer, with the longest time that each
+ * of them took. Most requests are faster than the slowest ones we have seen,
+ * and those only read a volatile field. Only a request that makes the list
+ * takes the lock.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SlowestKeys {
+    private final String[] keys;
+
+    private final long[] nanos;
+
+    // a request has to be slower than this to make the list
+    private volatile long threshold = 0L;
+
+    /**
+     * Create a new, empty list.
+     *
+     * @param size
+     *            The number of keys to keep.
+     */
+    SlowestKeys(final int size) {
+        keys = new String[size];
+        nanos = new long[size];
+    }
+
+    /**
+     * Record the time that a key took.
+     *
+     * @param key
+     *            The key.
+     * @param time
+     *            The time it took to answer, in nanoseconds.
+     */
+    void record(final String key, final long time) {
+        if (time <= threshold) {
+            return;
+        }
+
+        synchronized (this) {
+            int slot = -1;
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) {
+                    slot = i;
+                    break;
+                }
+                if (slot < 0 || nanos[i] < nanos[slot]) {
+                    slot = i;
+                }
+            }
+            if (key.equals(keys[slot]) && nanos[slot] >= time) {
+                return;
+            }
+            keys[slot] = key;
+            nanos[slot] = time;
+
+            long fastest = Long.MAX_VALUE;
+            for (int i = 0; i < keys.length; i++) {
+                fastest = Math.min(fastest, keys[i] == null ? 0L : nanos[i]);
+            }
+            threshold = fastest;
+        }
+    }
+
+    /**
+     * Forget the keys, for example after the slow period has been
+     * investigated.
+     */
+    synchronized void reset() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+            nanos[i] = 0L;
+        }
+        threshold = 0L;
+    }
+
+    /**
+     * List the keys, slowest first.
+     *
+     * @return Lines of the form <code>key: time</code>, with the time in
+     *         microseconds.
+     */
+    synchronized List<String> describe() {
+        final boolean[] listed = new boolean[keys.length];
+        final List<String> lines = new ArrayList<String>(keys.length);
+        for (;;) {
+            int slowest = -1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && !listed[i]
+                        && (slowest < 0 || nanos[i] > nanos[slowest])) {
+                    slowest = i;
+                }
+            }
+            if (slowest < 0) {
+                return lines;
+            }
+            listed[slowest] = true;
+            lines.add(keys[slowest] + ": " + nanos[slowest] / 1000L + "us");
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A journal on disk for trapper items that could not be sent, so that a
+ * Zabbix outage or maintenance window does not leave holes in the data. Once
+ * the server is back, the sender replays the items in batches, with the time
+ * that they were made.
+ * <p>
+ * The journal is a series of segment files of a fixed size, which are
+ * memory-mapped and only ever appended to. Each record is the length of the
+ * record followed by the item. The length is written last, so a record that
+ * was cut short by a crash reads as the end of the segment. The first bytes
+ * of each segment hold how far it has been replayed, so that a restart does
+ * not send items twice.
+ * <p>
+ * When the last segment is full, a new one is started. When there are more
+ * segments than allowed, the oldest one is deleted, items and all. That way
+ * the spool cannot fill the disk. Segments that were replayed completely are
+ * deleted too.
+ * <p>
+ * Java has no way to unmap a file, and some systems, Windows in particular,
+ * refuse to delete a file that is still mapped. There, segments that we are
+ * done with stay on disk until the JVM exits, and the spool may take more
+ * room than the limit. They are marked as completely replayed before we try
+ * to delete them, so at least a restart does not send their items again.
+ * <p>
+ * Only one trapper may use a spool directory at a time. The spool holds an
+ * exclusive lock on a file in the directory until it is closed, so that a
+ * second trapper, in this JVM or in another one, cannot open it.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Spool {
+    private static final Logger log = Logger.getLogger(Spool.class.getName());
+
+    // the read offset, then room to spare
+    private static final int HEADER = 8;
+
+    private static final String PREFIX = "spool-";
+
+    private static final String SUFFIX = ".seg";
+
+    private static final String LOCK = "spool.lock";
+
+    // the spool directories that are open in this JVM
+    private static final Set<String> IN_USE = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final String path;
+
+    private final RandomAccessFile lockFile;
+
+    private final FileLock lock;
+
+    // oldest first, the last one is the one we append to
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long nextNumber = 0L;
+
+    private int items = 0;
+
+    // where the items that were handed out for replay end
+    private Segment pendingSegment = null;
+
+    private int pendingOffset = 0;
+
+    private int pendingCount = 0;
+
+    private boolean closed = false;
+
+    private final AtomicLong spooled = new AtomicLong();
+
+    private final AtomicLong replayed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * One segment file.
+     */
+    private final class Segment {
+        final File file;
+
+        final MappedByteBuffer map;
+
+        int writeOffset = HEADER;
+
+        int unread = 0;
+
+        Segment(final File file) throws IOException {
+            this.file = file;
+            final boolean exists = file.exists();
+            // an interrupt would close the channel on us, for example when
+            // the sender spools what is left while it is being stopped
+            final boolean interrupted = Thread.interrupted();
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // the mapping stays valid after the channel is closed
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                        segmentSize);
+            } catch (IOException e) {
+                if (!exists) {
+                    file.delete();
+                }
+                throw e;
+            } finally {
+                raf.close();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            final int offset = readOffset();
+            boolean read = false;
+            writeOffset = HEADER;
+            while (writeOffset + 4 <= segmentSize) {
+                final int length = map.getInt(writeOffset);
+                if (length <= 0 || writeOffset + 4 + length > segmentSize) {
+                    break;
+                }
+                if (writeOffset == offset) {
+                    read = true;
+                }
+                if (read) {
+                    unread++;
+                }
+                writeOffset += 4 + length;
+            }
+            if (offset >= writeOffset) {
+                unread = 0;
+            }
+        }
+
+        int readOffset() {
+            final int offset = map.getInt(0);
+            return offset < HEADER ? HEADER : offset;
+        }
+
+        boolean hasRoom(final int length) {
+            return writeOffset + 4 + length <= segmentSize;
+        }
+
+        void append(final byte[] record) {
+            map.position(writeOffset + 4);
+            map.put(record);
+            map.putInt(writeOffset, record.length);
+            writeOffset += 4 + record.length;
+            unread++;
+        }
+
+        void delete() {
+            // in case the file cannot be deleted while it is mapped
+            map.putInt(0, writeOffset);
+            if (!file.delete()) {
+                log.warning("unable to delete spool segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Open a spool, picking up the segments that a previous run left.
+     *
+     * @param directory
+     *            The directory to keep the segments in.
+     * @param segmentSize
+     *            The size of each segment in bytes.
+     * @param maxSegments
+     *            The largest number of segments to keep.
+     * @throws IOException
+     *             When the directory cannot be used, for example because
+     *             another spool has it open.
+     */
+    Spool(final File directory, final int segmentSize, final int maxSegments)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER + 1024, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create spool directory "
+                    + directory);
+        }
+
+        // closing a second channel on the lock file would drop our lock on
+        // some systems, so spools in this JVM check with each other first
+        path = directory.getCanonicalPath();
+        if (!IN_USE.add(path)) {
+            throw new IOException("spool directory " + directory
+                    + " is in use by another trapper");
+        }
+        RandomAccessFile file = null;
+        FileLock locked = null;
+        try {
+            file = new RandomAccessFile(new File(directory, LOCK), "rw");
+            locked = file.getChannel().tryLock();
+            if (locked == null) {
+                throw new IOException("spool directory " + directory
+                        + " is in use by another process");
+            }
+            lockFile = file;
+            lock = locked;
+
+            open();
+        } catch (IOException e) {
+            if (locked != null) {
+                locked.release();
+            }
+            if (file != null) {
+                file.close();
+            }
+            IN_USE.remove(path);
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return number(file) >= 0L;
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(final File a, final File b) {
+                final long difference = number(a) - number(b);
+                return difference < 0L ? -1 : difference > 0L ? 1 : 0;
+            }
+        });
+        for (final File file : files) {
+            nextNumber = number(file) + 1L;
+            if (file.length() != this.segmentSize) {
+                log.warning("ignoring spool segment " + file
+                        + ", it is not " + this.segmentSize + " bytes");
+                continue;
+            }
+            final Segment segment = new Segment(file);
+            segments.add(segment);
+            items += segment.unread;
+        }
+        if (items > 0) {
+            log.info("found " + items + " spooled items in " + directory);
+        }
+    }
+
+    private static long number(final File file) {
+        final String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name
+                    .length()
+                    - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Write items to the spool.
+     *
+     * @param batch
+     *            The items to write.
+     */
+    void append(final List<Item> batch) {
+        for (final Item item : batch) {
+            append(item);
+        }
+    }
+
+    /**
+     * Write an item to the spool. JMX query items are queried now, since we
+     * can only store values.
+     *
+     * @param item
+     *            The item to write.
+     * @return <code>true</code> if the item was written, <code>false</code>
+     *         if it was dropped or the spool is closed.
+     */
+    boolean append(final Item item) {
+        final byte[] record;
+        try {
+            record = encode(item);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "unable to spool the item for key '"
+                    + item.getKey() + "'", e);
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (HEADER + 4 + record.length > segmentSize) {
+            log.warning("the item for key '" + item.getKey()
+                    + "' does not fit in a spool segment");
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                // another trapper may own the directory by now
+                return false;
+            }
+            try {
+                Segment last = segments.isEmpty() ? null : segments.getLast();
+                if (last == null || !last.hasRoom(record.length)) {
+                    last = rotate();
+                }
+                last.append(record);
+                items++;
+                spooled.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "unable to spool the item for key '"
+                        + item.getKey() + "'", e);
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    // called with the lock held
+    private Segment rotate() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.getLast().map.force();
+        }
+        final Segment segment = new Segment(new File(directory, PREFIX
+                + nextNumber++ + SUFFIX));
+        segments.add(segment);
+
+        while (segments.size() > maxSegments) {
+            final Segment oldest = segments.removeFirst();
+            if (oldest == pendingSegment) {
+                pendingSegment = null;
+            }
+            items -= oldest.unread;
+            dropped.addAndGet(oldest.unread);
+            log.warning("the spool is full, dropped " + oldest.unread
+                    + " items from " + oldest.file);
+            oldest.delete();
+        }
+        return segment;
+    }
+
+    private static byte[] encode(final Item item) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(item.getClock());
+        out.writeUTF(item.getHost());
+        out.writeUTF(item.getKey());
+        final String value = item.getValue();
+        out.writeUTF(value == null ? "" : value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Item decode(final byte[] record) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record));
+        final long clock = in.readLong();
+        return new Item(in.readUTF(), in.readUTF(), in.readUTF(), clock);
+    }
+
+    /**
+     * Check whether there is anything to replay.
+     *
+     * @return <code>true</code> if the spool holds no items.
+     */
+    synchronized boolean isEmpty() {
+        return items == 0;
+    }
+
+    /**
+     * Read the oldest items, without taking them out of the spool. They are
+     * only taken out when the caller reports that it sent them, with
+     * {@link #commit()}. Until then, the next call reads the same items
+     * again.
+     *
+     * @param max
+     *            The largest number of items to read.
+     * @return The items, which may be an empty list.
+     */
+    synchronized List<Item> peek(final int max) {
+        final List<Item> batch = new ArrayList<Item>();
+        pendingSegment = null;
+        pendingCount = 0;
+        while (!segments.isEmpty()) {
+            final Segment first = segments.getFirst();
+            int offset = first.readOffset();
+            while (batch.size() < max && offset < first.writeOffset) {
+                final int length = first.map.getInt(offset);
+                final byte[] record = new byte[length];
+                first.map.position(offset + 4);
+                first.map.get(record);
+                offset += 4 + length;
+                try {
+                    batch.add(decode(record));
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "skipping a damaged record in "
+                            + first.file, e);
+                }
+                pendingCount++;
+            }
+
+            if (offset < first.writeOffset || batch.size() > 0
+                    || first == segments.getLast()) {
+                pendingSegment = first;
+                pendingOffset = offset;
+                if (batch.isEmpty()) {
+                    // nothing left, or only damaged records, move past them
+                    commit();
+                }
+                return batch;
+            }
+
+            // replayed completely before, but not deleted yet
+            segments.removeFirst();
+            first.delete();
+        }
+        return batch;
+    }
+
+    /**
+     * Take the items that the last call to {@link #peek(int)} returned out of
+     * the spool, because they were sent.
+     */
+    synchronized void commit() {
+        final Segment segment = pendingSegment;
+        final int count = pendingCount;
+        pendingSegment = null;
+        pendingCount = 0;
+        if (segment == null || segments.isEmpty()
+                || segment != segments.getFirst()) {
+            // the segment was dropped in the meantime
+            return;
+        }
+
+        segment.map.putInt(0, pendingOffset);
+        segment.unread -= count;
+        items -= count;
+        replayed.addAndGet(count);
+        if (pendingOffset >= segment.writeOffset) {
+            segments.removeFirst();
+            segment.delete();
+        }
+    }
+
+    /**
+     * Flush the segments to disk and release the directory. Items that are
+     * appended after this are not written.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Segment segment : segments) {
+            segment.map.force();
+        }
+        unlock();
+    }
+
+    private void unlock() {
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "unable to release the lock on "
+                    + directory, e);
+        }
+        IN_USE.remove(path);
+    }
+
+    /**
+     * Read the number of items waiting in the spool.
+     *
+     * @return The number of items.
+     */
+    synchronized int size() {
+        return items;
+    }
+
+    /**
+     * Read the number of segments.
+     *
+     * @return The number of segment files.
+     */
+    synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Read the number of items that were written to the spool.
+     *
+     * @return The number of spooled items.
+     */
+    long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * Read the number of items that were replayed from the spool.
+     *
+     * @return The number of replayed items.
+     */
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * Read the number of items that the spool gave up on, because it was
+     * full or the item could not be written.
+     *
+     * @return The number of dropped items.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,214 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * A named remote mbean server that the agent proxies for. This lets one
+ * standalone agent monitor several JVMs, instead of running an agent per
+ * JVM. Targets are configured with system properties such as
+ * <code>org.kjkoster.zapcat.target.broker1.url</code>, and keys pick a target
+ * by prefixing the object name, as in
+ * <code>jmx[broker1:java.lang:type=Memory][HeapMemoryUsage.used]</code>.
+ * <p>
+ * Each target may only use a few of the agent's workers at the same time.
+ * When a target is slow, the polls for it that find no free permit are
+ * answered with ZBX_NOTSUPPORTED straight away, so that the workers stay
+ * available for the other targets.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Target {
+    private static final Logger log = Logger.getLogger(Target.class
+            .getName());
+
+    private static volatile Map<String, Target> targets = Collections
+            .emptyMap();
+
+    private final String name;
+
+    private final String url;
+
+    private final String username;
+
+    private final String password;
+
+    private final int workers;
+
+    private final Semaphore permits;
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * The connection to the target's mbean server.
+     */
+    final RemoteConnection connection;
+
+    private Target(final String name, final String url,
+            final String username, final String password, final int workers)
+            throws MalformedURLException {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.workers = workers;
+        permits = new Semaphore(workers);
+
+        final Map<String, Object> env = new HashMap<String, Object>();
+        env.put(JMXConnector.CREDENTIALS, new String[] { username, password });
+        connection = new RemoteConnection(new JMXServiceURL(url), env, Long
+                .getLong(ZabbixAgent.JMX_BACKOFF_PROPERTY, 60000L));
+    }
+
+    /**
+     * Read the targets from the system properties. Targets whose settings
+     * did not change keep their connection, targets that are no longer
+     * configured are closed.
+     */
+    static synchronized void configure() {
+        final Properties properties = System.getProperties();
+        final Map<String, Target> configured = new HashMap<String, Target>();
+        final String suffix = ".url";
+        for (final String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(ZabbixAgent.TARGET_PREFIX)
+                    || !key.endsWith(suffix)) {
+                continue;
+            }
+
+            final String name = key.substring(ZabbixAgent.TARGET_PREFIX
+                    .length(), key.length() - suffix.length());
+            final String prefix = ZabbixAgent.TARGET_PREFIX + name;
+            final String url = properties.getProperty(key).trim();
+            final String username = properties.getProperty(prefix
+                    + ".username");
+            final String password = properties.getProperty(prefix
+                    + ".password");
+            int workers = 2;
+            try {
+                workers = Math.max(1, Integer.parseInt(properties
+                        .getProperty(prefix + ".workers", "2").trim()));
+            } catch (NumberFormatException e) {
+                log.warning("ignoring " + prefix
+                        + ".workers, it is not a number");
+            }
+
+            final Target existing = targets.get(name);
+            if (existing != null && existing.url.equals(url)
+                    && equal(existing.username, username)
+                    && equal(existing.password, password)
+                    && existing.workers == workers) {
+                configured.put(name, existing);
+                continue;
+            }
+
+            try {
+                configured.put(name, new Target(name, url, username,
+                        password, workers));
+                log.fine("proxying for " + name + " at " + url);
+            } catch (MalformedURLException e) {
+                log.log(Level.WARNING, "ignoring target " + name + ", " + url
+                        + " is not a valid JMX URL", e);
+            }
+        }
+
+        for (final Target old : targets.values()) {
+            if (configured.get(old.name) != old) {
+                old.connection.close();
+            }
+        }
+        targets = Collections.unmodifiableMap(configured);
+    }
+
+    /**
+     * Close the connections to all targets and forget about them, for
+     * example because the agent stops.
+     */
+    static synchronized void closeAll() {
+        for (final Target target : targets.values()) {
+            target.connection.close();
+        }
+        targets = Collections.emptyMap();
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Find a target by its name.
+     *
+     * @param name
+     *            The name of the target.
+     * @return The target, or <code>null</code> if there is no target by that
+     *         name.
+     */
+    static Target get(final String name) {
+        return name == null ? null : targets.get(name);
+    }
+
+    /**
+     * Claim one of the target's workers.
+     *
+     * @return <code>true</code> if we may go ahead and query the target,
+     *         <code>false</code> if the target is as busy as we allow.
+     */
+    boolean acquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        rejections.incrementAndGet();
+        log.fine("all " + workers + " workers for target " + name
+                + " are busy");
+        return false;
+    }
+
+    /**
+     * Give back a worker that was claimed with {@link #acquire()}.
+     */
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Count the polls that were refused because the target was busy.
+     *
+     * @return The number of refused polls.
+     */
+    long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
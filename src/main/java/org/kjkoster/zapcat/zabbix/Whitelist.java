@@ -0,0 +1,311 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The compiled whitelist of hosts that may connect to the agent. Entries are
+ * IPv4 or IPv6 addresses, CIDR ranges such as &quot;10.0.0.0/8&quot; or host
+ * names.
+ * <p>
+ * All entries are compiled into binary prefix tries, one for IPv4 and one for
+ * IPv6. Checking an address walks at most one trie level per address bit and
+ * never touches the network. Host names are resolved when the whitelist is
+ * created and again in the background every time the TTL expires, after which
+ * the tries are rebuilt and swapped in. When a host name cannot be resolved
+ * again, we keep using the addresses it resolved to last time, so that a
+ * name server hiccup does not lock the Zabbix server out until the next
+ * refresh.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Whitelist {
+    private static final Logger log = Logger.getLogger(Whitelist.class
+            .getName());
+
+    /**
+     * The default time between host name resolutions, in seconds.
+     */
+    static final int DEFAULT_TTL = 300;
+
+    private final List<String> literals = new ArrayList<String>();
+
+    private final List<String> hostnames = new ArrayList<String>();
+
+    // the addresses that each host name last resolved to, only used by
+    // compile(), which runs on one thread at a time
+    private final Map<String, InetAddress[]> resolved = new HashMap<String, InetAddress[]>();
+
+    private final ScheduledExecutorService resolver;
+
+    private volatile Tries tries;
+
+    /**
+     * Compile a whitelist.
+     *
+     * @param entries
+     *            The comma separated list of entries.
+     * @param ttl
+     *            The time between host name resolutions, in seconds.
+     */
+    Whitelist(final String entries, final int ttl) {
+        for (final String entry : entries.split(",\\s*")) {
+            final String trimmed = entry.trim();
+            if (trimmed.length() == 0) {
+                continue;
+            }
+            if (isLiteral(trimmed)) {
+                literals.add(trimmed);
+            } else {
+                hostnames.add(trimmed);
+            }
+        }
+
+        tries = compile();
+
+        if (hostnames.isEmpty() || ttl <= 0) {
+            resolver = null;
+        } else {
+            resolver = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(r,
+                                    "Zabbix-whitelist-resolver");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            resolver.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    tries = compile();
+                }
+            }, ttl, ttl, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop resolving host names in the background.
+     */
+    void close() {
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+    }
+
+    /**
+     * Check an address against the whitelist.
+     *
+     * @param address
+     *            The address of the peer.
+     * @return <code>true</code> if the address is on the whitelist.
+     */
+    boolean accepts(final InetAddress address) {
+        final Tries current = tries;
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return current.ipv4.contains((bytes[0] & 0xff) << 24
+                    | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8
+                    | bytes[3] & 0xff);
+        }
+        return current.ipv6.contains(bytes);
+    }
+
+    /**
+     * Describe the entries, for display in the agent's mbean.
+     *
+     * @return A description of each entry and what it resolved to.
+     */
+    Collection<String> describe() {
+        return tries.descriptions;
+    }
+
+    /*
+     * Literals are IPv4 or IPv6 addresses, with an optional prefix length.
+     * These can be parsed without asking a name server.
+     */
+    private static boolean isLiteral(final String entry) {
+        final int slash = entry.indexOf('/');
+        final String address = slash < 0 ? entry : entry.substring(0, slash);
+        return address.indexOf(':') >= 0
+                || address.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    private Tries compile() {
+        final Tries compiled = new Tries();
+        final List<String> descriptions = new ArrayList<String>();
+
+        for (final String literal : literals) {
+            final int slash = literal.indexOf('/');
+            try {
+                final InetAddress address = InetAddress.getByName(slash < 0 ? literal
+                        : literal.substring(0, slash));
+                final int maxPrefix = address.getAddress().length * 8;
+                final int prefix = slash < 0 ? maxPrefix : Integer
+                        .parseInt(literal.substring(slash + 1));
+                if (prefix < 0 || prefix > maxPrefix) {
+                    throw new IllegalArgumentException("prefix length "
+                            + prefix + " out of range");
+                }
+
+                compiled.add(address, prefix);
+                descriptions.add(literal + " (" + address.getHostAddress()
+                        + "/" + prefix + ")");
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "invalid entry '" + literal
+                        + "' on the white list", e);
+                descriptions.add(literal + " (" + e.getClass().getName()
+                        + ": " + e.getMessage() + ")");
+            }
+        }
+
+        for (final String hostname : hostnames) {
+            InetAddress[] addresses;
+            String stale = "";
+            try {
+                addresses = InetAddress.getAllByName(hostname);
+                resolved.put(hostname, addresses);
+            } catch (UnknownHostException e) {
+                addresses = resolved.get(hostname);
+                if (addresses == null) {
+                    log.log(Level.SEVERE, "invalid host '" + hostname
+                            + "' on the white list", e);
+                    descriptions.add(hostname + " (" + e.getClass().getName()
+                            + ": " + e.getMessage() + ")");
+                    continue;
+                }
+
+                log.log(Level.WARNING, "unable to resolve '" + hostname
+                        + "' on the white list again, using the addresses"
+                        + " it had", e);
+                stale = ", stale";
+            }
+
+            final StringBuilder description = new StringBuilder();
+            for (final InetAddress address : addresses) {
+                compiled.add(address, address.getAddress().length * 8);
+                if (description.length() > 0) {
+                    description.append(", ");
+                }
+                description.append(address.getHostAddress());
+            }
+            descriptions.add(hostname + " (" + description + stale + ")");
+        }
+
+        compiled.descriptions = Collections.unmodifiableList(descriptions);
+        return compiled;
+    }
+
+    /**
+     * An immutable snapshot of the compiled whitelist.
+     */
+    private static final class Tries {
+        final Trie ipv4 = new Trie();
+
+        final Trie ipv6 = new Trie();
+
+        Collection<String> descriptions;
+
+        void add(final InetAddress address, final int prefix) {
+            if (address instanceof Inet4Address) {
+                ipv4.add(address.getAddress(), prefix);
+            } else {
+                ipv6.add(address.getAddress(), prefix);
+            }
+        }
+    }
+
+    /**
+     * A binary trie of address prefixes. A node that is marked as allowed
+     * covers every address below it.
+     */
+    private static final class Trie {
+        private final Node root = new Node();
+
+        void add(final byte[] address, final int prefix) {
+            Node node = root;
+            for (int bit = 0; bit < prefix && !node.allowed; bit++) {
+                if (bit(address, bit)) {
+                    if (node.one == null) {
+                        node.one = new Node();
+                    }
+                    node = node.one;
+                } else {
+                    if (node.zero == null) {
+                        node.zero = new Node();
+                    }
+                    node = node.zero;
+                }
+            }
+            node.allowed = true;
+        }
+
+        boolean contains(final int ipv4) {
+            Node node = root;
+            for (int bit = 31; node != null; bit--) {
+                if (node.allowed) {
+                    return true;
+                }
+                if (bit < 0) {
+                    return false;
+                }
+                node = ((ipv4 >>> bit) & 1) == 1 ? node.one : node.zero;
+            }
+            return false;
+        }
+
+        boolean contains(final byte[] address) {
+            Node node = root;
+            for (int bit = 0; node != null; bit++) {
+                if (node.allowed) {
+                    return true;
+                }
+                if (bit >= address.length * 8) {
+                    return false;
+                }
+                node = bit(address, bit) ? node.one : node.zero;
+            }
+            return false;
+        }
+
+        private static boolean bit(final byte[] address, final int bit) {
+            return ((address[bit >> 3] >> (7 - (bit & 7))) & 1) == 1;
+        }
+    }
+
+    private static final class Node {
+        Node zero;
+
+        Node one;
+
+        boolean allowed;
+    }
+}
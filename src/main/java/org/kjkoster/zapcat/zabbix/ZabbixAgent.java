@@ -21,18 +21,19 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -44,7 +45,13 @@ import org.kjkoster.zapcat.Agent;
  * A passive Zabbix agent. This agent starts and manages a daemon thread.
  * <p>
  * The agent uses an executor service to handle the JMX queries that come in.
- * This allows us to handle a few queries concurrently.
+ * This allows us to handle a few queries concurrently. The pool adapts the
+ * number of workers to how long queries take and sheds requests it has no
+ * room for, so a stalled mbean server cannot make work pile up without limit.
+ * <p>
+ * By default, the agent uses blocking sockets. Setting the transport property
+ * to &quot;nio&quot; makes it run a single selector thread for all network
+ * traffic instead, handing only the query evaluation to the executor.
  * <p>
  * Configuration done through system properties override default values.
  * 
@@ -73,17 +80,129 @@ public final class ZabbixAgent implements Agent, Runnable {
      */
     public static final String PROTOCOL_PROPERTY = "org.kjkoster.zapcat.zabbix.protocol";
 
+    /**
+     * The property key indicating the transport to use. This is either
+     * &quot;blocking&quot; (the default) or &quot;nio&quot;.
+     */
+    public static final String TRANSPORT_PROPERTY = "org.kjkoster.zapcat.zabbix.transport";
+
+    /**
+     * The property key for the maximum size of a request, in bytes. Requests
+     * that are larger are refused and their connection is dropped.
+     */
+    public static final String MAX_PAYLOAD_PROPERTY = "org.kjkoster.zapcat.zabbix.maxpayload";
+
+    /**
+     * The property key for the smallest number of worker threads.
+     */
+    public static final String WORKERS_MIN_PROPERTY = "org.kjkoster.zapcat.zabbix.workers.min";
+
+    /**
+     * The property key for the largest number of worker threads. The agent
+     * adapts the number of workers between the minimum and this maximum,
+     * based on how long queries take.
+     */
+    public static final String WORKERS_MAX_PROPERTY = "org.kjkoster.zapcat.zabbix.workers.max";
+
+    /**
+     * The property key for the number of requests that may wait for a worker.
+     * When the queue is full, the agent answers ZBX_NOTSUPPORTED straight
+     * away instead of queueing more work.
+     */
+    public static final String QUEUE_PROPERTY = "org.kjkoster.zapcat.zabbix.queue";
+
+    /**
+     * The property key for the keep-alive timeout, in milliseconds. If set,
+     * the agent keeps connections open for more requests until they have
+     * been idle for this long. This allows clients to send many requests over
+     * a single connection. By default, the agent closes the connection after
+     * answering.
+     * <p>
+     * With the blocking transport, an idle connection holds on to a handler
+     * thread. Combine keep-alive with the nio transport or the virtual
+     * executor.
+     */
+    public static final String KEEPALIVE_PROPERTY = "org.kjkoster.zapcat.zabbix.keepalive";
+
+    /**
+     * The property key that makes the agent use direct buffers for its
+     * responses when set to &quot;true&quot;.
+     */
+    public static final String DIRECT_BUFFERS_PROPERTY = "org.kjkoster.zapcat.zabbix.directbuffers";
+
+    /**
+     * The property key indicating how queries are executed. This is either
+     * &quot;pool&quot; (the default) or &quot;virtual&quot; to run each
+     * connection on its own virtual thread, where the JVM supports that.
+     */
+    public static final String EXECUTOR_PROPERTY = "org.kjkoster.zapcat.zabbix.executor";
+
+    /**
+     * The property key for the time in milliseconds that responses to
+     * <code>jmx[...]</code> queries are cached. Set this to a little less
+     * than the shortest polling interval, so that a Zabbix server and a proxy
+     * asking for the same item only query the mbean server once. Caching is
+     * off by default.
+     */
+    public static final String CACHE_TTL_PROPERTY = "org.kjkoster.zapcat.zabbix.cache.ttl";
+
+    /**
+     * The property key for the largest number of responses in the cache.
+     * Defaults to 1024.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.cache.size";
+
+    /**
+     * The prefix of the property keys that list the items to sample in the
+     * background. Items are numbered, as in
+     * <code>org.kjkoster.zapcat.sampler.item.1=jmx[java.lang:type=Threading][ThreadCount]</code>
+     * . Polls for sampled items are answered from memory.
+     */
+    public static final String SAMPLER_ITEM_PREFIX = "org.kjkoster.zapcat.sampler.item.";
+
+    /**
+     * The property key for the time in milliseconds between two rounds of
+     * sampling. Defaults to 10000.
+     */
+    public static final String SAMPLER_INTERVAL_PROPERTY = "org.kjkoster.zapcat.sampler.interval";
+
+    /**
+     * The prefix of the property keys that configure proxy targets. A target
+     * named <code>broker1</code> is configured with
+     * <code>org.kjkoster.zapcat.target.broker1.url</code> and optionally
+     * <code>.username</code>, <code>.password</code> and
+     * <code>.workers</code>, the number of workers that may query the target
+     * at the same time (2 by default). Keys pick a target by prefixing the
+     * object name with the target name, as in
+     * <code>jmx[broker1:java.lang:type=Memory][HeapMemoryUsage.used]</code>.
+     */
+    public static final String TARGET_PREFIX = "org.kjkoster.zapcat.target.";
+
     /**
      * The property key for the whitelist of hosts that may connect to the
      * agent.
      */
     public static final String WHITELIST_PROPERTY = "org.kjkoster.zapcat.whitelist";
 
+    /**
+     * The property key for the number of seconds after which host names on
+     * the whitelist are resolved again. Defaults to 300.
+     */
+    public static final String WHITELIST_TTL_PROPERTY = "org.kjkoster.zapcat.whitelist.ttl";
+
     /**
      * The property key for the JMX URL."
      */
     public static final String JMX_URL_PROPERTY = "org.kjkoster.zapcat.jmx.url";
 
+    /**
+     * The property key for the longest time in milliseconds between two
+     * attempts to reconnect to the remote JMX URL. The agent waits one second
+     * after the first failed attempt, and twice as long after each next one,
+     * up to this maximum. Defaults to 60000.
+     */
+    public static final String JMX_BACKOFF_PROPERTY = "org.kjkoster.zapcat.jmx.backoff";
+
     /**
      * The property key for the JMX Username.
      */
@@ -99,13 +218,28 @@ public final class ZabbixAgent implements Agent, Runnable {
     // the port to bind to.
     private final int port;
 
+    // the keep-alive timeout in milliseconds, or 0 to disable keep-alive.
+    private final int keepAlive;
+
+    private final AgentStatistics statistics = new AgentStatistics();
+
     private final Thread daemon;
 
     private ServerSocket serverSocket = null;
 
+    private volatile NioListener nioListener = null;
+
+    private volatile ExecutorService handlers = null;
+
     private volatile boolean stopping = false;
 
-    private final Set<String> whitelist;
+    private final Whitelist whitelist;
+
+    // the result cache, or 'null' if caching is off.
+    private final ResultCache cache;
+
+    // the background sampler, or 'null' if no items are sampled.
+    private final Sampler sampler;
 
     /**
      * Configure a new Zabbix agent. Each agent needs the local port number to
@@ -154,14 +288,27 @@ public final class ZabbixAgent implements Agent, Runnable {
         this.port = propertyPort == null ? port : Integer
                 .parseInt(propertyPort);
 
+        final String propertyKeepAlive = System.getProperty(KEEPALIVE_PROPERTY);
+        this.keepAlive = propertyKeepAlive == null ? 0 : Integer
+                .parseInt(propertyKeepAlive);
+
         if (System.getProperty(WHITELIST_PROPERTY) != null) {
-            whitelist = new HashSet<String>();
-            whitelist.addAll(Arrays.asList(System.getProperty(
-                    WHITELIST_PROPERTY).split(",\\s*")));
+            whitelist = new Whitelist(System.getProperty(WHITELIST_PROPERTY),
+                    intProperty(WHITELIST_TTL_PROPERTY, Whitelist.DEFAULT_TTL));
         } else {
             whitelist = null;
         }
 
+        final int cacheTtl = intProperty(CACHE_TTL_PROPERTY, 0);
+        cache = cacheTtl > 0 ? new ResultCache(cacheTtl, Math.max(1,
+                intProperty(CACHE_SIZE_PROPERTY, 1024))) : null;
+
+        Target.configure();
+
+        final List<String> sampled = Sampler.configuredItems();
+        sampler = sampled.isEmpty() ? null : new Sampler(sampled, Math.max(1,
+                intProperty(SAMPLER_INTERVAL_PROPERTY, 10000)));
+
         daemon = new Thread(this, "Zabbix-agent");
         daemon.setDaemon(isDaemon);
         daemon.start();
@@ -184,6 +331,11 @@ public final class ZabbixAgent implements Agent, Runnable {
             // ignore, we're going down anyway...
         }
 
+        final NioListener listener = nioListener;
+        if (listener != null) {
+            listener.close();
+        }
+
         try {
             daemon.join();
         } catch (InterruptedException e) {
@@ -197,14 +349,36 @@ public final class ZabbixAgent implements Agent, Runnable {
      * @see java.lang.Runnable#run()
      */
     public void run() {
-        final ExecutorService handlers = new ThreadPoolExecutor(1, 5, 60L,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        handlers = createHandlers();
         final ObjectName mbeanName = JMXHelper.register(new Agent(),
                 "org.kjkoster.zapcat:type=Agent,port=" + port);
+        final ObjectName cacheName = cache == null ? null : JMXHelper
+                .register(cache.new Cache(),
+                        "org.kjkoster.zapcat:type=Cache,port=" + port);
+        ObjectName samplerName = null;
+        if (sampler != null) {
+            samplerName = JMXHelper.register(sampler.new Samples(),
+                    "org.kjkoster.zapcat:type=Sampler,port=" + port);
+            sampler.start();
+        }
+        final Responder responder = new Responder(statistics, cache, sampler);
 
         try {
+            if (isNio()) {
+                nioListener = new NioListener(this, address, port, handlers,
+                        responder, statistics, keepAlive);
+                if (stopping) {
+                    // we were stopped while the listener was being set up
+                    nioListener.close();
+                }
+                nioListener.run();
+                return;
+            }
+
+            // a channel backed socket lets handlers write a frame in one go
+            serverSocket = ServerSocketChannel.open().socket();
             // 0 means 'use default backlog'
-            serverSocket = new ServerSocket(port, 0, address);
+            serverSocket.bind(new InetSocketAddress(address, port), 0);
 
             while (!stopping) {
                 final Socket accepted = serverSocket.accept();
@@ -212,11 +386,15 @@ public final class ZabbixAgent implements Agent, Runnable {
                         + accepted.getInetAddress().getHostAddress());
 
                 if (acceptedByWhitelist(accepted.getInetAddress())) {
-                    handlers.execute(new QueryHandler(accepted));
+                    statistics.connectionOpened();
+                    handlers.execute(new QueryHandler(accepted, responder,
+                            statistics, keepAlive));
                 } else {
                     log.warning( "rejecting ip address "
                             + accepted.getInetAddress().getHostAddress()
                             + ", it is not on the whitelist");
+                    statistics.rejected.incrementAndGet();
+                    accepted.close();
                 }
             }
         } catch (IOException e) {
@@ -240,29 +418,90 @@ public final class ZabbixAgent implements Agent, Runnable {
                 // ignore, we're going down anyway...
             }
 
+            if (whitelist != null) {
+                whitelist.close();
+            }
+            Target.closeAll();
+
             JMXHelper.unregister(mbeanName);
+            if (cacheName != null) {
+                JMXHelper.unregister(cacheName);
+            }
+            if (sampler != null) {
+                sampler.stop();
+                JMXHelper.unregister(samplerName);
+            }
         }
     }
 
-    private boolean acceptedByWhitelist(final InetAddress accepted) {
-        if (whitelist == null) {
-            return true;
-        }
-
-        for (final String allowed : whitelist) {
+    /*
+     * Virtual threads only exist on Java 21 and up, so we look them up through
+     * reflection and fall back to the thread pool if they are not available.
+     */
+    private ExecutorService createHandlers() {
+        final String executor = System.getProperty(EXECUTOR_PROPERTY);
+        if ("virtual".equals(executor)) {
             try {
-                if (accepted.equals(InetAddress.getByName(allowed))) {
-                    return true;
-                }
-            } catch (UnknownHostException e) {
-                log.log(Level.SEVERE, "invalid host '" + allowed
-                                + "' on the white list", e);
+                final ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                log.fine("using a virtual thread per connection");
+                return virtual;
+            } catch (Exception e) {
+                log.log(Level.WARNING,
+                        "virtual threads are not supported by this JVM, "
+                                + "using a thread pool", e);
             }
+        } else if (executor != null && !"pool".equals(executor)) {
+            log.warning("Unsupported executor '" + executor
+                    + "', using a thread pool");
         }
 
+        final int min = Math.max(1, intProperty(WORKERS_MIN_PROPERTY, 1));
+        final int max = Math.max(min, intProperty(WORKERS_MAX_PROPERTY, 8));
+        final int queue = Math.max(1, intProperty(QUEUE_PROPERTY, 32));
+        return new AdaptiveExecutor(min, max, queue, statistics);
+    }
+
+    private static int intProperty(final String key, final int defaultValue) {
+        final String property = System.getProperty(key);
+        if (property == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(property.trim());
+        } catch (NumberFormatException e) {
+            log.warning("ignoring " + key + ", '" + property
+                    + "' is not a number, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private boolean isNio() {
+        final String transport = System.getProperty(TRANSPORT_PROPERTY);
+        if (transport == null || "blocking".equals(transport)) {
+            return false;
+        }
+        if ("nio".equals(transport)) {
+            return true;
+        }
+
+        log.warning("Unsupported transport '" + transport
+                + "', using blocking");
         return false;
     }
 
+    /**
+     * Check the whitelist for an accepted connection.
+     * 
+     * @param accepted
+     *            The address of the peer.
+     * @return <code>true</code> if the peer may query this agent.
+     */
+    boolean acceptedByWhitelist(final InetAddress accepted) {
+        return whitelist == null || whitelist.accepts(accepted);
+    }
+
     /**
      * The interface to our JMX representation.
      * 
@@ -293,6 +532,134 @@ public final class ZabbixAgent implements Agent, Runnable {
          * @return The whitelist for this agent.
          */
         Collection<String> getWhitelist();
+
+        /**
+         * Read the keep-alive timeout.
+         * 
+         * @return The keep-alive timeout in milliseconds, or 0 if keep-alive
+         *         is disabled.
+         */
+        int getKeepAlive();
+
+        /**
+         * Read the number of connections that were accepted.
+         * 
+         * @return The number of accepted connections.
+         */
+        long getConnectionsAccepted();
+
+        /**
+         * Read the number of connections that were refused because the peer
+         * is not on the whitelist.
+         * 
+         * @return The number of refused connections.
+         */
+        long getConnectionsRejected();
+
+        /**
+         * Read the number of connections that are currently open.
+         * 
+         * @return The number of open connections.
+         */
+        long getConnectionsOpen();
+
+        /**
+         * Read the number of connections that were closed because they were
+         * idle for longer than the keep-alive timeout.
+         * 
+         * @return The number of idle connections that were closed.
+         */
+        long getIdleTimeouts();
+
+        /**
+         * Read the number of requests that were received.
+         * 
+         * @return The number of requests.
+         */
+        long getRequests();
+
+        /**
+         * Read the number of requests waiting for a worker.
+         * 
+         * @return The queue depth, or -1 if the agent does not use a pool.
+         */
+        int getQueueDepth();
+
+        /**
+         * Read the number of workers that are busy answering requests.
+         * 
+         * @return The number of active workers, or -1 if the agent does not
+         *         use a pool.
+         */
+        int getActiveWorkers();
+
+        /**
+         * Read the number of workers that the agent currently allows.
+         * 
+         * @return The current concurrency limit, or -1 if the agent does not
+         *         use a pool.
+         */
+        int getWorkerLimit();
+
+        /**
+         * Read the number of requests that were answered with
+         * ZBX_NOTSUPPORTED because the agent was saturated.
+         * 
+         * @return The number of shed requests.
+         */
+        long getRejections();
+
+        /**
+         * Read the number of bytes that were received.
+         * 
+         * @return The number of bytes received.
+         */
+        long getBytesIn();
+
+        /**
+         * Read the number of bytes that were sent in responses.
+         * 
+         * @return The number of bytes sent.
+         */
+        long getBytesOut();
+
+        /**
+         * Read the number of queries that were answered with
+         * ZBX_NOTSUPPORTED.
+         * 
+         * @return The number of failed queries.
+         */
+        long getErrors();
+
+        /**
+         * Read the latencies of the queries that were evaluated, by namespace.
+         * 
+         * @return One line per namespace, with the count, average, median,
+         *         99th percentile and maximum in microseconds.
+         */
+        Collection<String> getLatencies();
+
+        /**
+         * Read the keys that took the longest to answer.
+         * 
+         * @return The slowest keys, slowest first, with their times in
+         *         microseconds.
+         */
+        Collection<String> getSlowestKeys();
+
+        /**
+         * Read the exceptions that queries ran into, by type. These are
+         * counted for all agents in this JVM.
+         * 
+         * @return One line per type of exception, with its count.
+         */
+        Collection<String> getExceptions();
+
+        /**
+         * Forget the slowest keys, so that we can see which keys are slow
+         * from now on.
+         */
+        void resetSlowestKeys();
     }
 
     /**
@@ -322,19 +689,139 @@ public final class ZabbixAgent implements Agent, Runnable {
          * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getWhitelist()
          */
         public Collection<String> getWhitelist() {
-            final Collection<String> list = new HashSet<String>();
-            for (final String host : whitelist) {
-                try {
-                    list.add(host + " ("
-                            + InetAddress.getByName(host).getHostAddress()
-                            + ")");
-                } catch (UnknownHostException e) {
-                    list.add(host + " (" + e.getClass().getName() + ": "
-                            + e.getMessage() + ")");
-                }
+            if (whitelist == null) {
+                return Collections.emptyList();
             }
+            return whitelist.describe();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getKeepAlive()
+         */
+        public int getKeepAlive() {
+            return keepAlive;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getConnectionsAccepted()
+         */
+        public long getConnectionsAccepted() {
+            return statistics.accepted.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getConnectionsRejected()
+         */
+        public long getConnectionsRejected() {
+            return statistics.rejected.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getConnectionsOpen()
+         */
+        public long getConnectionsOpen() {
+            return statistics.open.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getIdleTimeouts()
+         */
+        public long getIdleTimeouts() {
+            return statistics.idleTimeouts.get();
+        }
 
-            return list;
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getRequests()
+         */
+        public long getRequests() {
+            return statistics.requests.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getQueueDepth()
+         */
+        public int getQueueDepth() {
+            final ExecutorService pool = handlers;
+            return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool)
+                    .getQueue().size()
+                    : -1;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getActiveWorkers()
+         */
+        public int getActiveWorkers() {
+            final ExecutorService pool = handlers;
+            return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool)
+                    .getActiveCount()
+                    : -1;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getWorkerLimit()
+         */
+        public int getWorkerLimit() {
+            final ExecutorService pool = handlers;
+            return pool instanceof AdaptiveExecutor ? ((AdaptiveExecutor) pool)
+                    .getLimit() : -1;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getRejections()
+         */
+        public long getRejections() {
+            final ExecutorService pool = handlers;
+            return pool instanceof AdaptiveExecutor ? ((AdaptiveExecutor) pool)
+                    .getRejections() : 0L;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getBytesIn()
+         */
+        public long getBytesIn() {
+            return statistics.bytesIn.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getBytesOut()
+         */
+        public long getBytesOut() {
+            return statistics.bytesOut.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getErrors()
+         */
+        public long getErrors() {
+            return statistics.getErrors();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getLatencies()
+         */
+        public Collection<String> getLatencies() {
+            return statistics.describeLatencies();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getSlowestKeys()
+         */
+        public Collection<String> getSlowestKeys() {
+            return statistics.slowest.describe();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getExceptions()
+         */
+        public Collection<String> getExceptions() {
+            return AgentStatistics.describeExceptions();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#resetSlowestKeys()
+         */
+        public void resetSlowestKeys() {
+            statistics.slowest.reset();
         }
     }
 
@@ -346,8 +833,21 @@ public final class ZabbixAgent implements Agent, Runnable {
         pList.put(PORT_PROPERTY, "port");
         pList.put(ADDRESS_PROPERTY, "address");
         pList.put(PROTOCOL_PROPERTY, "protocol");
+        pList.put(TRANSPORT_PROPERTY, "transport");
+        pList.put(EXECUTOR_PROPERTY, "executor");
+        pList.put(MAX_PAYLOAD_PROPERTY, "maxpayload");
+        pList.put(DIRECT_BUFFERS_PROPERTY, "directbuffers");
+        pList.put(KEEPALIVE_PROPERTY, "keepalive");
+        pList.put(WORKERS_MIN_PROPERTY, "workers.min");
+        pList.put(WORKERS_MAX_PROPERTY, "workers.max");
+        pList.put(QUEUE_PROPERTY, "queue");
+        pList.put(CACHE_TTL_PROPERTY, "cache.ttl");
+        pList.put(CACHE_SIZE_PROPERTY, "cache.size");
+        pList.put(SAMPLER_INTERVAL_PROPERTY, "sampler.interval");
         pList.put(WHITELIST_PROPERTY, "whitelist");
+        pList.put(WHITELIST_TTL_PROPERTY, "whitelist.ttl");
         pList.put(JMX_URL_PROPERTY, "jmx.url");
+        pList.put(JMX_BACKOFF_PROPERTY, "jmx.backoff");
         pList.put(JMX_USERNAME_PROPERTY, "jmx.username");
         pList.put(JMX_PASSWORD_PROPERTY, "jmx.password");
 
@@ -374,7 +874,16 @@ public final class ZabbixAgent implements Agent, Runnable {
                     } else {
                         logger.warning("property " + name + " not found");
                     }
-                }               
+                }
+                // sampled items and targets are named by the user, so we
+                // can't list them
+                for (String name : properties.stringPropertyNames()) {
+                    if (name.startsWith(SAMPLER_ITEM_PREFIX)
+                            || name.startsWith(TARGET_PREFIX)) {
+                        logger.fine("found property " + name + " = " + properties.getProperty(name));
+                        System.setProperty(name, properties.getProperty(name));
+                    }
+                }
             } finally {
                 input.close();
             }
@@ -16,13 +16,21 @@ package org.kjkoster.zapcat.zabbix;
  * Zapcat. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.management.ObjectName;
 
@@ -30,10 +38,27 @@ import org.kjkoster.zapcat.Trapper;
 
 /**
  * A Daemon thread that 'traps' data to a Zabbix server.
+ * <p>
+ * Items wait in a bounded queue until the sender gets to them. When the
+ * Zabbix server cannot keep up or cannot be reached, the queue fills up and
+ * the overflow policy decides what to give up: the new item, the oldest
+ * item, some of the application's time, or an older value for the same key.
+ * <p>
+ * With a spool directory configured, items that the sender could not deliver
+ * and items that did not fit in the queue are written to disk instead, and
+ * sent later with the time that they were made. Only the JSON protocol sends
+ * that time, the XML protocol makes them arrive as new values.
+ * <p>
+ * When the server cannot be reached, the sender backs off exponentially
+ * before it tries again, and gives up on a batch after a number of attempts.
+ * Items that it gives up on and cannot spool are kept as dead letters, which
+ * can be inspected and sent again through JMX.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public final class ZabbixTrapper implements Trapper {
+    private static final Logger log = Logger.getLogger(ZabbixTrapper.class
+            .getName());
 
     /**
      * The property key of the server that Zabbix runs on.
@@ -50,12 +75,182 @@ public final class ZabbixTrapper implements Trapper {
      */
     public static final String HOST_PROPERTY = "org.kjkoster.zapcat.zabbix.host";
 
+    /**
+     * The property key of the protocol to send items with. This is either
+     * &quot;xml&quot; for the protocol of Zabbix 1.4 and earlier, which takes
+     * a connection per item, or &quot;json&quot; for the sender protocol of
+     * Zabbix 1.8 and later, which sends items in batches. The default is
+     * &quot;xml&quot;.
+     */
+    public static final String SENDER_PROTOCOL_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.protocol";
+
+    /**
+     * The property key of the largest number of items to send in one batch.
+     * Only used with the JSON protocol.
+     */
+    public static final String SENDER_BATCH_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.batch";
+
+    /**
+     * The property key of the longest time in milliseconds that the sender
+     * waits for a batch to fill up. Only used with the JSON protocol.
+     */
+    public static final String SENDER_FLUSH_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.flush";
+
+    /**
+     * The property key of the way the sender talks to the server. This is
+     * either &quot;blocking&quot;, for one request at a time, or
+     * &quot;nio&quot;, for several requests in flight at the same time
+     * without blocking. The default is &quot;blocking&quot;. Only used with
+     * the JSON protocol.
+     */
+    public static final String SENDER_TRANSPORT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.transport";
+
+    /**
+     * The property key of the largest number of requests that the
+     * non-blocking sender has in flight at the same time.
+     */
+    public static final String SENDER_INFLIGHT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.inflight";
+
+    /**
+     * The property key of the largest number of items that may wait to be
+     * sent.
+     */
+    public static final String QUEUE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.queue";
+
+    /**
+     * The property key of what to do with an item when the queue is full.
+     * This is one of &quot;drop-newest&quot; (the default),
+     * &quot;drop-oldest&quot;, &quot;block&quot; or &quot;coalesce&quot;.
+     * Coalescing replaces a waiting item for the same host and key, and
+     * drops the new item if there is none.
+     */
+    public static final String OVERFLOW_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.overflow";
+
+    /**
+     * The property key of the longest time in milliseconds that the
+     * &quot;block&quot; overflow policy makes the application wait for room
+     * in the queue, before the item is dropped.
+     */
+    public static final String BLOCK_TIMEOUT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.overflow.timeout";
+
+    /**
+     * The property key of the directory to spool items to that could not be
+     * sent. There is no spool unless this is set. Each trapper spools to a
+     * directory of its own in there, named after the server, the port and the
+     * host. A trapper that finds its directory in use by another trapper has
+     * no spool.
+     */
+    public static final String SPOOL_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool";
+
+    /**
+     * The property key of the size of each spool file in bytes.
+     */
+    public static final String SPOOL_SEGMENT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool.segment";
+
+    /**
+     * The property key of the largest number of spool files. When the spool
+     * is full, the oldest file is dropped.
+     */
+    public static final String SPOOL_SEGMENTS_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool.segments";
+
+    /**
+     * The property key of the number of times to try sending a batch before
+     * giving up on it.
+     */
+    public static final String RETRY_ATTEMPTS_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.retry.attempts";
+
+    /**
+     * The property key of the time in milliseconds to wait after the server
+     * could not be reached for the first time. The wait doubles with each
+     * failure in a row.
+     */
+    public static final String RETRY_BACKOFF_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.retry.backoff";
+
+    /**
+     * The property key of the longest time in milliseconds to wait between
+     * attempts.
+     */
+    public static final String RETRY_BACKOFF_MAX_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.retry.backoff.max";
+
+    /**
+     * The property key of the largest number of dead letters to keep.
+     */
+    public static final String DEAD_LETTERS_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.deadletters";
+
+    /**
+     * What to do with an item when the queue is full.
+     */
+    enum Overflow {
+        /**
+         * Drop the item that does not fit.
+         */
+        DROP_NEWEST("drop-newest"),
+
+        /**
+         * Drop the oldest item in the queue to make room.
+         */
+        DROP_OLDEST("drop-oldest"),
+
+        /**
+         * Wait for room, up to a timeout, then drop the item.
+         */
+        BLOCK("block"),
+
+        /**
+         * Replace a waiting item for the same host and key.
+         */
+        COALESCE("coalesce");
+
+        private final String name;
+
+        private Overflow(final String name) {
+            this.name = name;
+        }
+
+        static Overflow of(final String name) {
+            for (final Overflow overflow : values()) {
+                if (overflow.name.equalsIgnoreCase(name.trim())) {
+                    return overflow;
+                }
+            }
+            log.warning("unknown overflow policy '" + name + "', using "
+                    + DROP_NEWEST);
+            return DROP_NEWEST;
+        }
+
+        /**
+         * @see java.lang.Enum#toString()
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
     /**
      * The default port of Zabbix servers.
      */
     public static final int DEFAULT_PORT = 10051;
 
-    private final BlockingQueue<Item> queue = new LinkedBlockingQueue<Item>();
+    private final BlockingQueue<Item> queue;
+
+    private final int capacity;
+
+    private final Overflow overflow;
+
+    private final long blockTimeout;
+
+    private final AtomicLong enqueued = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ObjectName mbeanName;
+
+    private final Spool spool;
+
+    private final RetryPolicy retry;
+
+    private final DeadLetters deadLetters;
 
     private final Sender sender;
 
@@ -82,9 +277,62 @@ public final class ZabbixTrapper implements Trapper {
                 .toString(DEFAULT_PORT));
         this.host = System.getProperty(HOST_PROPERTY, host);
 
+        capacity = Math.max(1, Integer.getInteger(QUEUE_PROPERTY, 10000)
+                .intValue());
+        queue = new LinkedBlockingQueue<Item>(capacity);
+        overflow = Overflow.of(System.getProperty(OVERFLOW_PROPERTY,
+                Overflow.DROP_NEWEST.toString()));
+        blockTimeout = Long.getLong(BLOCK_TIMEOUT_PROPERTY, 100L).longValue();
+        spool = openSpool(server + "_" + serverPort + "_" + this.host);
+        retry = new RetryPolicy(server + ":" + serverPort, Long.getLong(
+                RETRY_BACKOFF_PROPERTY, 100L).longValue(), Long.getLong(
+                RETRY_BACKOFF_MAX_PROPERTY, 30000L).longValue(), Integer
+                .getInteger(RETRY_ATTEMPTS_PROPERTY, 5).intValue());
+        deadLetters = new DeadLetters(Integer.getInteger(
+                DEAD_LETTERS_PROPERTY, 1000).intValue());
+
+        final boolean json = "json".equalsIgnoreCase(System.getProperty(
+                SENDER_PROTOCOL_PROPERTY, "xml").trim());
+        final boolean nio = "nio".equalsIgnoreCase(System.getProperty(
+                SENDER_TRANSPORT_PROPERTY, "blocking").trim());
+        if (nio && !json) {
+            log.warning("the nio sender transport needs the json protocol, "
+                    + "sending with blocking sockets");
+        }
         sender = new Sender(queue, InetAddress.getByName(server), Integer
-                .parseInt(serverPort));
+                .parseInt(serverPort), json, Integer.getInteger(
+                SENDER_BATCH_PROPERTY, 250).intValue(), Long.getLong(
+                SENDER_FLUSH_PROPERTY, 100L).longValue(), nio ? Math.max(1,
+                Integer.getInteger(SENDER_INFLIGHT_PROPERTY, 4).intValue())
+                : 0, spool, retry, deadLetters);
         sender.start();
+
+        // null if another trapper for this server and host has the name,
+        // in which case stop() leaves that trapper's mbean alone
+        mbeanName = JMXHelper.register(new Traps(),
+                "org.kjkoster.zapcat:type=Trapper,server="
+                        + ObjectName.quote(server + ":" + serverPort)
+                        + ",host=" + ObjectName.quote(this.host));
+    }
+
+    private static Spool openSpool(final String name) {
+        final String base = System.getProperty(SPOOL_PROPERTY);
+        if (base == null || base.trim().length() == 0) {
+            return null;
+        }
+
+        final File directory = new File(base.trim(), name.replaceAll(
+                "[^A-Za-z0-9._-]", "_"));
+        try {
+            return new Spool(directory, Integer.getInteger(
+                    SPOOL_SEGMENT_PROPERTY, 4 * 1024 * 1024).intValue(),
+                    Integer.getInteger(SPOOL_SEGMENTS_PROPERTY, 16)
+                            .intValue());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "unable to open the spool in " + directory
+                    + ", items that cannot be sent will be lost", e);
+            return null;
+        }
     }
 
     /**
@@ -97,6 +345,84 @@ public final class ZabbixTrapper implements Trapper {
         } catch (InterruptedException e) {
             // ignore, we're done anyway...
         }
+        if (spool != null) {
+            spool.close();
+        }
+        JMXHelper.unregister(mbeanName);
+    }
+
+    /*
+     * Put an item in the queue, following the overflow policy if there is
+     * no room.
+     */
+    private void enqueue(final Item item) {
+        if (queue.offer(item)) {
+            enqueued.incrementAndGet();
+            return;
+        }
+
+        switch (overflow) {
+        case DROP_OLDEST:
+            while (!queue.offer(item)) {
+                final Item oldest = queue.poll();
+                if (oldest != null) {
+                    overflowed(oldest);
+                }
+            }
+            enqueued.incrementAndGet();
+            return;
+
+        case BLOCK:
+            try {
+                if (queue.offer(item, blockTimeout, TimeUnit.MILLISECONDS)) {
+                    enqueued.incrementAndGet();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            break;
+
+        case COALESCE:
+            for (final Iterator<Item> i = queue.iterator(); i.hasNext();) {
+                final Item waiting = i.next();
+                if (item.getKey().equals(waiting.getKey())
+                        && (item.getHost() == null ? waiting.getHost() == null
+                                : item.getHost().equals(waiting.getHost()))) {
+                    i.remove();
+                    dropped();
+                    if (queue.offer(item)) {
+                        enqueued.incrementAndGet();
+                        return;
+                    }
+                    break;
+                }
+            }
+            break;
+
+        default:
+            break;
+        }
+        overflowed(item);
+    }
+
+    /*
+     * An item that did not fit in the queue goes to the spool, if we have
+     * one. Coalesced items are not spooled, a newer value replaced them.
+     */
+    private void overflowed(final Item item) {
+        if (spool == null || !spool.append(item)) {
+            dropped();
+        }
+    }
+
+    private void dropped() {
+        // one warning per thousand drops is plenty during an outage
+        if (dropped.incrementAndGet() % 1000L == 1L) {
+            log.warning("the queue of " + capacity
+                    + " items is full, dropped " + dropped.get()
+                    + " items so far (" + overflow + ")");
+        }
     }
 
     /**
@@ -121,7 +447,7 @@ public final class ZabbixTrapper implements Trapper {
      *            The value. Cannot be <code>null</code>.
      */
     public void send(final String useHost, final String key, final Object value) {
-        queue.offer(new Item(useHost, key, value.toString()));
+        enqueue(new Item(useHost, key, value.toString()));
     }
 
     /**
@@ -130,7 +456,7 @@ public final class ZabbixTrapper implements Trapper {
      */
     public void send(final String key, final ObjectName objectName,
             final String attribute) {
-        queue.offer(new Item(host, key, objectName, attribute));
+        enqueue(new Item(host, key, objectName, attribute));
     }
 
     /**
@@ -146,4 +472,323 @@ public final class ZabbixTrapper implements Trapper {
             }
         }, 0, time, unit);
     }
+
+    /**
+     * The interface to our JMX representation.
+     * 
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface TrapsMBean {
+        /**
+         * Read the largest number of items that may wait to be sent.
+         * 
+         * @return The capacity of the queue.
+         */
+        int getCapacity();
+
+        /**
+         * Read what happens to items that do not fit in the queue.
+         * 
+         * @return The overflow policy.
+         */
+        String getOverflow();
+
+        /**
+         * Read the number of items waiting to be sent.
+         * 
+         * @return The depth of the queue.
+         */
+        int getDepth();
+
+        /**
+         * Read the number of items that were put in the queue.
+         * 
+         * @return The number of enqueued items.
+         */
+        long getEnqueued();
+
+        /**
+         * Read the number of items that were given up because the queue was
+         * full.
+         * 
+         * @return The number of dropped items.
+         */
+        long getDropped();
+
+        /**
+         * Read the number of items waiting in the spool.
+         * 
+         * @return The number of spooled items, or 0 if there is no spool.
+         */
+        int getSpoolDepth();
+
+        /**
+         * Read the number of files that the spool uses.
+         * 
+         * @return The number of spool files.
+         */
+        int getSpoolSegments();
+
+        /**
+         * Read the number of items that were written to the spool.
+         * 
+         * @return The number of spooled items.
+         */
+        long getSpooled();
+
+        /**
+         * Read the number of items that were sent from the spool.
+         * 
+         * @return The number of replayed items.
+         */
+        long getReplayed();
+
+        /**
+         * Read the number of items that the spool gave up on, because it was
+         * full.
+         * 
+         * @return The number of items dropped from the spool.
+         */
+        long getSpoolDropped();
+
+        /**
+         * Read the number of times in a row that the server could not be
+         * reached. Anything above zero for a long time means that the
+         * trapper is stuck.
+         * 
+         * @return The number of failed attempts since the last success.
+         */
+        int getConsecutiveFailures();
+
+        /**
+         * Read the current wait between attempts.
+         * 
+         * @return The backoff in milliseconds, or 0 if the server can be
+         *         reached.
+         */
+        long getBackoff();
+
+        /**
+         * Read how long it is until the next attempt.
+         * 
+         * @return The time in milliseconds, or 0 if we may try now.
+         */
+        long getNextAttempt();
+
+        /**
+         * Read when the server last answered.
+         * 
+         * @return The time in milliseconds since the epoch, or 0 if it never
+         *         did.
+         */
+        long getLastSuccess();
+
+        /**
+         * Read what went wrong the last time the server could not be
+         * reached.
+         * 
+         * @return The last error, or <code>null</code>.
+         */
+        String getLastError();
+
+        /**
+         * Read the number of attempts that were made while backing off.
+         * 
+         * @return The number of retries.
+         */
+        long getRetries();
+
+        /**
+         * Read the number of items that we gave up on.
+         * 
+         * @return The number of dead letters, including the ones that are no
+         *         longer kept.
+         */
+        long getDeadLettered();
+
+        /**
+         * Read the number of dead letters that newer ones pushed out.
+         * 
+         * @return The number of lost dead letters.
+         */
+        long getDeadLettersEvicted();
+
+        /**
+         * List the dead letters that we keep.
+         * 
+         * @return One line per item, oldest first.
+         */
+        Collection<String> getDeadLetters();
+
+        /**
+         * Put the dead letters back in the queue, to send them again.
+         * 
+         * @return The number of items that were put back.
+         */
+        int replayDeadLetters();
+
+        /**
+         * Forget the dead letters.
+         */
+        void clearDeadLetters();
+    }
+
+    /**
+     * Our JMX representation.
+     * 
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Traps implements TrapsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getCapacity()
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getOverflow()
+         */
+        public String getOverflow() {
+            return overflow.toString();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getDepth()
+         */
+        public int getDepth() {
+            return queue.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getEnqueued()
+         */
+        public long getEnqueued() {
+            return enqueued.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getDropped()
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getSpoolDepth()
+         */
+        public int getSpoolDepth() {
+            return spool == null ? 0 : spool.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getSpoolSegments()
+         */
+        public int getSpoolSegments() {
+            return spool == null ? 0 : spool.getSegments();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getSpooled()
+         */
+        public long getSpooled() {
+            return spool == null ? 0L : spool.getSpooled();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getReplayed()
+         */
+        public long getReplayed() {
+            return spool == null ? 0L : spool.getReplayed();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getSpoolDropped()
+         */
+        public long getSpoolDropped() {
+            return spool == null ? 0L : spool.getDropped();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getConsecutiveFailures()
+         */
+        public int getConsecutiveFailures() {
+            return retry.getFailures();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getBackoff()
+         */
+        public long getBackoff() {
+            return retry.getDelay();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getNextAttempt()
+         */
+        public long getNextAttempt() {
+            return retry.remaining();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getLastSuccess()
+         */
+        public long getLastSuccess() {
+            return retry.getLastSuccess();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getLastError()
+         */
+        public String getLastError() {
+            return retry.getLastError();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getRetries()
+         */
+        public long getRetries() {
+            return retry.getRetries();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getDeadLettered()
+         */
+        public long getDeadLettered() {
+            return deadLetters.getDeadLettered();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getDeadLettersEvicted()
+         */
+        public long getDeadLettersEvicted() {
+            return deadLetters.getEvicted();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#getDeadLetters()
+         */
+        public Collection<String> getDeadLetters() {
+            return deadLetters.describe();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#replayDeadLetters()
+         */
+        public int replayDeadLetters() {
+            final List<Item> items = deadLetters.takeAll();
+            for (final Item item : items) {
+                enqueue(item);
+            }
+            log.info("replaying " + items.size() + " dead letters");
+            return items.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ZabbixTrapper.TrapsMBean#clearDeadLetters()
+         */
+        public void clearDeadLetters() {
+            deadLetters.takeAll();
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package org.kjkoster.zapcat.benchmark;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Measures the cost of a JMX query against a remote mbean server, comparing
+ * the old query path (look up the mbean, then read the attribute) with the
+ * current single round trip. The remote server is a connector server in this
+ * JVM, so the numbers show the RMI overhead without network latency. This is
+ * not a unit test, run it by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.kjkoster.zapcat.benchmark.JmxQueryBenchmark
+ * </pre>
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class JmxQueryBenchmark {
+    private static final int REGISTRY_PORT = 10099;
+
+    private static final int ITERATIONS = 5000;
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        LocateRegistry.createRegistry(REGISTRY_PORT);
+        final JMXServiceURL url = new JMXServiceURL(
+                "service:jmx:rmi:///jndi/rmi://localhost:" + REGISTRY_PORT
+                        + "/jmxrmi");
+        final JMXConnectorServer server = JMXConnectorServerFactory
+                .newJMXConnectorServer(url, null, ManagementFactory
+                        .getPlatformMBeanServer());
+        server.start();
+        System.setProperty(ZabbixAgent.JMX_URL_PROPERTY, url.toString());
+
+        try {
+            final ObjectName memory = new ObjectName("java.lang:type=Memory");
+            final MBeanServerConnection connection = JMXHelper
+                    .getMBeanServer();
+
+            for (int round = 1; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    connection.getObjectInstance(memory);
+                    JMXHelper.query(memory, "HeapMemoryUsage.used");
+                }
+                final long twoCalls = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    JMXHelper.query(memory, "HeapMemoryUsage.used");
+                }
+                final long oneCall = System.nanoTime() - start;
+
+                System.out.printf("round %d: lookup and read %6.1f us/query, "
+                        + "read only %6.1f us/query%n", round,
+                        twoCalls / 1000.0 / ITERATIONS, oneCall / 1000.0
+                                / ITERATIONS);
+            }
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,209 @@
+package org.kjkoster.zapcat.benchmark;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Compares the poll latency of the agent's execution modes under a mix of
+ * slow and fast mbeans. This is not a unit test, run it by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.kjkoster.zapcat.benchmark.PollLatencyBenchmark [pool|virtual ...]
+ * </pre>
+ *
+ * The virtual mode falls back to the pool on JVMs older than Java 21, so run
+ * this on a recent JVM to see the difference.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class PollLatencyBenchmark {
+    private static final int PORT = ZabbixAgent.DEFAULT_PORT + 10;
+
+    private static final int CLIENTS = 20;
+
+    private static final int POLLS = 50;
+
+    // one in this many polls goes to the slow mbean
+    private static final int SLOW_RATIO = 10;
+
+    private static final long SLOW_MILLIS = 250L;
+
+    /**
+     * The interface of our test mbeans.
+     */
+    public interface ProbeMBean {
+        /**
+         * Read a value, taking as long as the probe was configured to.
+         *
+         * @return Some value.
+         */
+        long getValue();
+    }
+
+    /**
+     * A probe that takes a fixed amount of time to read.
+     */
+    public static class Probe implements ProbeMBean {
+        private final long delay;
+
+        /**
+         * Create a new probe.
+         *
+         * @param delay
+         *            The time that a read takes, in milliseconds.
+         */
+        public Probe(final long delay) {
+            this.delay = delay;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.benchmark.PollLatencyBenchmark.ProbeMBean#getValue()
+         */
+        public long getValue() {
+            if (delay > 0L) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return delay;
+        }
+    }
+
+    /**
+     * Run the benchmark for each of the named execution modes.
+     *
+     * @param args
+     *            The execution modes to measure, defaults to pool and
+     *            virtual.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new Probe(0L), new ObjectName(
+                "zapcat.benchmark:type=Probe,name=fast"));
+        server.registerMBean(new Probe(SLOW_MILLIS), new ObjectName(
+                "zapcat.benchmark:type=Probe,name=slow"));
+
+        System.setProperty(ZabbixAgent.PORT_PROPERTY, Integer.toString(PORT));
+        final String[] modes = args.length == 0 ? new String[] { "pool",
+                "virtual" } : args;
+        for (final String mode : modes) {
+            System.setProperty(ZabbixAgent.EXECUTOR_PROPERTY, mode);
+            final Agent agent = new ZabbixAgent();
+            Thread.sleep(200L);
+            try {
+                run(mode, 1); // warm up
+                run(mode, POLLS);
+            } finally {
+                agent.stop();
+            }
+        }
+    }
+
+    private static void run(final String mode, final int polls)
+            throws Exception {
+        final ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        final List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        for (int i = 0; i < CLIENTS; i++) {
+            final int client = i;
+            results.add(clients.submit(new Callable<long[]>() {
+                public long[] call() throws Exception {
+                    final long[] latencies = new long[polls];
+                    int fast = 0;
+                    for (int j = 0; j < polls; j++) {
+                        if ((client * polls + j) % SLOW_RATIO == 0) {
+                            poll("slow");
+                        } else {
+                            latencies[fast++] = poll("fast");
+                        }
+                    }
+                    return Arrays.copyOf(latencies, fast);
+                }
+            }));
+        }
+
+        final List<Long> all = new ArrayList<Long>();
+        for (final Future<long[]> result : results) {
+            for (final long latency : result.get()) {
+                all.add(latency);
+            }
+        }
+        clients.shutdown();
+
+        if (polls > 1) {
+            final long[] sorted = new long[all.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = all.get(i);
+            }
+            Arrays.sort(sorted);
+            System.out.printf("%-8s fast polls: %5d  p50: %8.2f ms  "
+                    + "p99: %8.2f ms%n", mode, sorted.length,
+                    percentile(sorted, 0.50) / 1e6,
+                    percentile(sorted, 0.99) / 1e6);
+        }
+    }
+
+    private static long percentile(final long[] sorted, final double p) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        return sorted[(int) Math.min(sorted.length - 1,
+                Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static long poll(final String name) throws Exception {
+        final long start = System.nanoTime();
+        final Socket socket = new Socket(InetAddress.getLocalHost(), PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write(("jmx[zapcat.benchmark:type=Probe,name=" + name
+                    + "][Value]\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) > 0) {
+                // drain the response until the agent closes
+            }
+        } finally {
+            socket.close();
+        }
+        return System.nanoTime() - start;
+    }
+}
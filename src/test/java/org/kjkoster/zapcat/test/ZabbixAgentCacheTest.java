@@ -0,0 +1,175 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test cases for the result cache.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentCacheTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * The interface of our test mbean.
+     */
+    public interface CounterMBean {
+        /**
+         * Read the counter.
+         *
+         * @return The number of times the counter was read, this time
+         *         included.
+         */
+        long getCount();
+
+        /**
+         * Read the name of the counter.
+         *
+         * @return The name.
+         */
+        String getName();
+    }
+
+    /**
+     * An mbean that counts how often it is read.
+     */
+    public static class Counter implements CounterMBean {
+        private long count = 0L;
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentCacheTest.CounterMBean#getCount()
+         */
+        public synchronized long getCount() {
+            return ++count;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentCacheTest.CounterMBean#getName()
+         */
+        public String getName() {
+            return "counter";
+        }
+    }
+
+    /**
+     * Sleep a little, to give the agent time to die and restore the system
+     * properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test the cache with the blocking transport.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBlocking() throws Exception {
+        testCache("blocking");
+    }
+
+    /**
+     * Test the cache with the non-blocking transport.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNio() throws Exception {
+        testCache("nio");
+    }
+
+    private void testCache(final String transport) throws Exception {
+        System.setProperty(ZabbixAgent.TRANSPORT_PROPERTY, transport);
+        System.setProperty(ZabbixAgent.CACHE_TTL_PROPERTY, "60000");
+        System.setProperty(ZabbixAgent.CACHE_SIZE_PROPERTY, "1");
+
+        final ObjectName counter = JMXHelper.register(new Counter(),
+                "zapcat.test:type=Counter");
+        final Agent agent = new ZabbixAgent();
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            // other keys are never cached
+            assertEquals("1", query("agent.ping"));
+
+            // a different attribute pushes the first one out
+            assertEquals("counter", query("jmx[zapcat.test:type=Counter][Name]"));
+            assertEquals("2", query("jmx[zapcat.test:type=Counter][Count]"));
+
+            final ObjectName cache = new ObjectName(
+                    "org.kjkoster.zapcat:type=Cache,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            assertEquals("1", JMXHelper.query(cache, "Hits"));
+            assertEquals("3", JMXHelper.query(cache, "Misses"));
+            assertEquals("2", JMXHelper.query(cache, "Evictions"));
+        } finally {
+            agent.stop();
+            JMXHelper.unregister(counter);
+        }
+    }
+
+    private String query(final String key) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write((key + "\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final byte[] header = new byte[13];
+            new DataInputStream(in).readFully(header);
+            assertEquals('Z', header[0]);
+
+            final byte[] payload = new byte[header[5]];
+            new DataInputStream(in).readFully(payload);
+            return new String(payload, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -22,10 +22,15 @@ import static org.junit.Assert.fail;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.ObjectName;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.Properties;
+import java.util.concurrent.Executors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -130,6 +135,151 @@ public class ZabbixAgentConfigurationTest {
         agent.stop();
     }
 
+    /**
+     * Test that the whitelist accepts CIDR ranges and that it turns away
+     * hosts that are not on it.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testWhitelist() throws Exception {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        System.setProperty(ZabbixAgent.WHITELIST_PROPERTY,
+                "10.0.0.0/8, 127.0.0.0/8");
+        Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals('1', ping(loopback));
+        agent.stop();
+
+        System.setProperty(ZabbixAgent.WHITELIST_PROPERTY, "10.0.0.0/8, ::1");
+        agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals(-1, ping(loopback));
+        agent.stop();
+    }
+
+    /**
+     * Test that an agent without a whitelist reports an empty one.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNoWhitelist() throws Exception {
+        final Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+
+        assertEquals("[]", JMXHelper.query(new ObjectName(
+                "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                "Whitelist"));
+
+        agent.stop();
+    }
+
+    /**
+     * Test that the agent runs each connection on a virtual thread where the
+     * JVM has them, and falls back to the bounded thread pool where it does
+     * not.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testVirtualExecutor() throws Exception {
+        boolean virtual;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtual = true;
+        } catch (NoSuchMethodException e) {
+            virtual = false;
+        }
+
+        System.setProperty(ZabbixAgent.EXECUTOR_PROPERTY, "virtual");
+        System.setProperty(ZabbixAgent.WORKERS_MIN_PROPERTY, "2");
+        final Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals('1', ping(InetAddress.getByName("127.0.0.1")));
+
+        // only the thread pool has a limit
+        assertEquals(virtual ? "-1" : "2", JMXHelper.query(new ObjectName(
+                "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                "WorkerLimit"));
+
+        agent.stop();
+    }
+
+    /**
+     * Test that the agent uses the thread pool when it does not know the
+     * executor that was configured.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testUnknownExecutor() throws Exception {
+        System.setProperty(ZabbixAgent.EXECUTOR_PROPERTY, "fibers");
+        System.setProperty(ZabbixAgent.WORKERS_MIN_PROPERTY, "2");
+        final Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals('1', ping(InetAddress.getByName("127.0.0.1")));
+
+        assertEquals("2", JMXHelper.query(new ObjectName(
+                "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                "WorkerLimit"));
+
+        agent.stop();
+    }
+
+    /**
+     * Test that a typo in a numeric property leaves the default in place,
+     * instead of keeping the agent from starting.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBadNumber() throws Exception {
+        System.setProperty(ZabbixAgent.WORKERS_MIN_PROPERTY, "two");
+        final Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals('1', ping(InetAddress.getByName("127.0.0.1")));
+
+        assertEquals("1", JMXHelper.query(new ObjectName(
+                "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                "WorkerLimit"));
+
+        agent.stop();
+    }
+
+    /*
+     * Returns the first byte of the payload, or -1 if the agent hung up.
+     */
+    private int ping(final InetAddress address) throws Exception {
+        final Socket socket = new Socket(address, DEFAULTPORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write("agent.ping\n".getBytes("US-ASCII"));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            try {
+                in.readFully(header);
+            } catch (EOFException e) {
+                return -1;
+            }
+            return in.read();
+        } catch (SocketException e) {
+            // connection reset, we were turned away
+            return -1;
+        } finally {
+            socket.close();
+        }
+    }
+
     private void assertAgentDown(final int port) throws Exception {
         try {
             JMXHelper.query(new ObjectName(
@@ -0,0 +1,465 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test cases for the JMX keys that work on more than one mbean.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentJmxTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    private Agent agent = null;
+
+    /**
+     * The interface of our test mbeans.
+     */
+    public interface GaugeMBean {
+        /**
+         * Read the value.
+         *
+         * @return The value.
+         */
+        long getValue();
+
+        /**
+         * Change the value.
+         *
+         * @param value
+         *            The new value.
+         */
+        void setValue(long value);
+
+        /**
+         * Add to the value.
+         *
+         * @param delta
+         *            The amount to add.
+         * @return The new value.
+         */
+        long add(long delta);
+    }
+
+    /**
+     * An mbean with a value that we can set.
+     */
+    public static class Gauge implements GaugeMBean {
+        private volatile long value;
+
+        /**
+         * Create a new gauge.
+         *
+         * @param value
+         *            The initial value.
+         */
+        public Gauge(final long value) {
+            this.value = value;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentJmxTest.GaugeMBean#getValue()
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentJmxTest.GaugeMBean#setValue(long)
+         */
+        public void setValue(final long value) {
+            this.value = value;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentJmxTest.GaugeMBean#add(long)
+         */
+        public synchronized long add(final long delta) {
+            value += delta;
+            return value;
+        }
+    }
+
+    /**
+     * The interface of our test mxbean, which has a composite attribute.
+     */
+    public interface UsageMXBean {
+        /**
+         * Read the usage.
+         *
+         * @return The usage, which JMX turns into composite data.
+         */
+        MemoryUsage getUsage();
+    }
+
+    /**
+     * An mxbean with a fixed usage.
+     */
+    public static class Usage implements UsageMXBean {
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentJmxTest.UsageMXBean#getUsage()
+         */
+        public MemoryUsage getUsage() {
+            return new MemoryUsage(1L, 2L, 3L, 4L);
+        }
+    }
+
+    /**
+     * Start an agent.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Before
+    public void setUp() throws Exception {
+        agent = new ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+    }
+
+    /**
+     * Stop the agent and remove the test mbeans.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        agent.stop();
+        for (final ObjectName name : registered) {
+            JMXHelper.unregister(name);
+        }
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test that discovery finds mbeans that come and go.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testDiscovery() throws Exception {
+        register("zapcat.test:type=Gauge,name=a", 1L);
+        register("zapcat.test:type=Gauge,name=b", 2L);
+
+        assertEquals("{\"data\":["
+                + "{\"{#JMXOBJ}\":\"zapcat.test:name=a,type=Gauge\","
+                + "\"{#JMXDOMAIN}\":\"zapcat.test\",\"{#NAME}\":\"a\","
+                + "\"{#TYPE}\":\"Gauge\"},"
+                + "{\"{#JMXOBJ}\":\"zapcat.test:name=b,type=Gauge\","
+                + "\"{#JMXDOMAIN}\":\"zapcat.test\",\"{#NAME}\":\"b\","
+                + "\"{#TYPE}\":\"Gauge\"}]}",
+                query("jmx.discovery[zapcat.test:type=Gauge,*]"));
+
+        // the index follows registrations
+        JMXHelper.unregister(registered.remove(0));
+        register("zapcat.test:type=Gauge,name=c", 3L);
+        final String discovered = query("jmx.discovery[zapcat.t*:*]");
+        assertEquals(-1, discovered.indexOf("name=a"));
+        assertEquals(true, discovered.indexOf("name=b") > 0);
+        assertEquals(true, discovered.indexOf("name=c") > 0);
+
+        assertEquals("{\"data\":[]}",
+                query("jmx.discovery[zapcat.nothing:*]"));
+        assertEquals("ZBX_NOTSUPPORTED", query("jmx.discovery[::]"));
+    }
+
+    /**
+     * Test the aggregating keys.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testAggregates() throws Exception {
+        register("zapcat.test:type=Gauge,name=a", 5L);
+        register("zapcat.test:type=Gauge,name=b", -2L);
+        register("zapcat.test:type=Gauge,name=c", 12L);
+
+        final String pattern = "[zapcat.test:type=Gauge,*]";
+        assertEquals("15", query("jmx.sum" + pattern + "[Value]"));
+        assertEquals("12", query("jmx.max" + pattern + "[Value]"));
+        assertEquals("-2", query("jmx.min" + pattern + "[Value]"));
+        assertEquals("5.0", query("jmx.avg" + pattern + "[Value]"));
+        assertEquals("3", query("jmx.count" + pattern + "[Value]"));
+        assertEquals("3", query("jmx.count" + pattern));
+
+        // mbeans without the attribute are skipped
+        assertEquals("0", query("jmx.count" + pattern + "[NoSuchAttribute]"));
+        assertEquals("0", query("jmx.sum" + pattern + "[NoSuchAttribute]"));
+        assertEquals("ZBX_NOTSUPPORTED", query("jmx.max" + pattern
+                + "[NoSuchAttribute]"));
+
+        // composite data works too
+        final long init = ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage().getInit();
+        assertEquals(Long.toString(init),
+                query("jmx.sum[java.lang:type=Memory][HeapMemoryUsage.init]"));
+    }
+
+    /**
+     * Test the keys that compute the increase of a counter.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testDeltaAndRate() throws Exception {
+        final Gauge gauge = register("zapcat.test:type=Gauge,name=counter",
+                10L);
+        final String delta = "jmx.delta[zapcat.test:type=Gauge,name=counter][Value]";
+        final String rate = "jmx.rate[zapcat.test:type=Gauge,name=counter][Value]";
+
+        // nothing to compare with yet
+        assertEquals("ZBX_NOTSUPPORTED", query(delta));
+        gauge.setValue(100L);
+        assertEquals("90", query(delta));
+        assertEquals("0", query(delta));
+
+        // a reset counts from 0
+        gauge.setValue(5L);
+        assertEquals("5", query(delta));
+
+        // a wrap counts across the end of the range
+        gauge.setValue(Long.MAX_VALUE - 1L);
+        query(delta);
+        gauge.setValue(Long.MIN_VALUE + 1L);
+        assertEquals("3", query(delta));
+
+        assertEquals("ZBX_NOTSUPPORTED", query(rate));
+        assertEquals("0.0", query(rate));
+        gauge.setValue(gauge.getValue() + 1000L);
+        Thread.sleep(100L);
+        final double perSecond = Double.parseDouble(query(rate));
+        assertEquals(true, perSecond > 0.0 && perSecond <= 10000.0);
+
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx.delta[zapcat.test:type=Gauge,name=none][Value]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx.rate[java.lang:type=Runtime][VmName]"));
+    }
+
+    /**
+     * Test that the well-known platform metrics give the same answers as the
+     * platform MXBeans.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testPlatformMetrics() throws Exception {
+        assertEquals(Long.toString(ManagementFactory.getRuntimeMXBean()
+                .getStartTime()), query("jmx[java.lang:type=Runtime][StartTime]"));
+        assertEquals(Integer.toString(ManagementFactory
+                .getOperatingSystemMXBean().getAvailableProcessors()),
+                query("jmx[java.lang:type=OperatingSystem][AvailableProcessors]"));
+        assertEquals(Long.toString(ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage().getMax()),
+                query("jmx[java.lang:type=Memory][HeapMemoryUsage.max]"));
+
+        final MemoryPoolMXBean pool = ManagementFactory.getMemoryPoolMXBeans()
+                .get(0);
+        assertEquals(Long.toString(pool.getUsage().getMax()),
+                query("jmx[java.lang:type=MemoryPool,name=" + pool.getName()
+                        + "][Usage.max]"));
+
+        final GarbageCollectorMXBean collector = ManagementFactory
+                .getGarbageCollectorMXBeans().get(0);
+        assertEquals(true, Long.parseLong(query("jmx[java.lang:name="
+                + collector.getName()
+                + ",type=GarbageCollector][CollectionCount]")) >= 0L);
+
+        // fields that we don't know go through the mbean server
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[java.lang:type=Memory][HeapMemoryUsage.nosuchfield]"));
+        assertEquals(true, query("jmx[java.lang:type=Runtime][VmName]")
+                .length() > 0);
+    }
+
+    /**
+     * Test reading attributes of mbeans that are not platform mbeans, which
+     * takes a single getAttribute() call per query.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testAttributes() throws Exception {
+        register("zapcat.test:type=Gauge,name=a", 42L);
+        registered.add(JMXHelper.register(new Usage(),
+                "zapcat.test:type=Usage"));
+
+        assertEquals("42", query("jmx[zapcat.test:type=Gauge,name=a][Value]"));
+        assertEquals("3", query("jmx[zapcat.test:type=Usage][Usage.committed]"));
+        assertEquals("4", query("jmx[zapcat.test:type=Usage][Usage.max]"));
+
+        // a missing attribute, field or mbean
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Gauge,name=a][NoSuchAttribute]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Usage][Usage.nosuchfield]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Gauge,name=a][Value.field]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Gauge,name=none][Value]"));
+
+        // the mbean goes away and comes back
+        JMXHelper.unregister(registered.remove(0));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Gauge,name=a][Value]"));
+        register("zapcat.test:type=Gauge,name=a", 43L);
+        assertEquals("43", query("jmx[zapcat.test:type=Gauge,name=a][Value]"));
+    }
+
+    /**
+     * Test invoking operations, also on an mbean that was replaced.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testOperations() throws Exception {
+        register("zapcat.test:type=Gauge,name=a", 1L);
+
+        assertEquals("6", query("jmx_op[zapcat.test:type=Gauge,name=a][add][5]"));
+        assertEquals("11", query("jmx_op[zapcat.test:type=Gauge,name=a][add][5]"));
+        // operation names are not case sensitive
+        assertEquals("12", query("jmx_op[zapcat.test:type=Gauge,name=a][ADD][1]"));
+
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx_op[zapcat.test:type=Gauge,name=a][add][1,2]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx_op[zapcat.test:type=Gauge,name=a][nosuchop][1]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx_op[zapcat.test:type=Gauge,name=a][add][one]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx_op[zapcat.test:type=Gauge,name=none][add][1]"));
+
+        // a new mbean under the same name
+        JMXHelper.unregister(registered.remove(0));
+        register("zapcat.test:type=Gauge,name=a", 100L);
+        assertEquals("101", query("jmx_op[zapcat.test:type=Gauge,name=a][add][1]"));
+    }
+
+    /**
+     * Test the connection state items against the local mbean server.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testConnectionState() throws Exception {
+        assertEquals("local", query("agent.jmx.state"));
+        assertEquals("0", query("agent.jmx.failures"));
+    }
+
+    /**
+     * Test the keys that report on the agent itself.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSelfInstrumentation() throws Exception {
+        register("zapcat.test:type=Gauge,name=a", 7L);
+        final String gauge = "jmx[zapcat.test:type=Gauge,name=a][Value]";
+        assertEquals("7", query(gauge));
+        query("system.property[java.version]");
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[zapcat.test:type=Gauge,name=none][Value]"));
+
+        // the request for the count is counted too
+        assertEquals("4", query("zapcat.requests"));
+        assertEquals("2", query("zapcat.requests[jmx]"));
+        assertEquals("1", query("zapcat.requests[system.property]"));
+        assertEquals("1", query("zapcat.errors"));
+        assertEquals("1", query("zapcat.errors[jmx]"));
+        assertEquals("0", query("zapcat.errors[system.property]"));
+        // exceptions are counted for the whole JVM
+        assertEquals(true, Long.parseLong(query(
+                "zapcat.exceptions[InstanceNotFoundException]")) >= 1L);
+
+        final long median = Long.parseLong(query("zapcat.latency[jmx,50]"));
+        assertEquals(true, median <= Long
+                .parseLong(query("zapcat.latency[jmx,max]")));
+        assertEquals(true,
+                Long.parseLong(query("zapcat.latency[jmx,avg]")) >= 0L);
+        assertEquals("0", query("zapcat.latency[agent.ping,99]"));
+        assertEquals("ZBX_NOTSUPPORTED", query("zapcat.latency[jmx,high]"));
+        assertEquals("ZBX_NOTSUPPORTED", query("zapcat.nosuchkey"));
+
+        assertEquals(true, Long.parseLong(query("zapcat.bytes.in")) > 0L);
+        assertEquals(true, Long.parseLong(query("zapcat.bytes.out")) > 0L);
+        assertEquals(true, query("zapcat.slowest").contains(gauge + ": "));
+    }
+
+    private Gauge register(final String name, final long value) {
+        final Gauge gauge = new Gauge(value);
+        registered.add(JMXHelper.register(gauge, name));
+        return gauge;
+    }
+
+    private String query(final String key) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write((key + "\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] payload = new byte[(header[5] & 0xff)
+                    | (header[6] & 0xff) << 8];
+            in.readFully(payload);
+            return new String(payload, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+}
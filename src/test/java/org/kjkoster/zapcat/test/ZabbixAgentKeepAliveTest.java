@@ -0,0 +1,140 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test cases for persistent connections and pipelined requests.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentKeepAliveTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * Sleep a little, to give the agent time to die and restore the system
+     * properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test pipelining with the blocking transport.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBlocking() throws Exception {
+        testPipelining("blocking");
+    }
+
+    /**
+     * Test pipelining with the non-blocking transport.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNio() throws Exception {
+        testPipelining("nio");
+    }
+
+    private void testPipelining(final String transport) throws Exception {
+        System.setProperty(ZabbixAgent.TRANSPORT_PROPERTY, transport);
+        System.setProperty(ZabbixAgent.KEEPALIVE_PROPERTY, "500");
+        System.setProperty("zapcat.test.first", "one");
+        System.setProperty("zapcat.test.second", "two");
+
+        final Agent agent = new ZabbixAgent();
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            final Socket socket = new Socket(InetAddress.getLocalHost(),
+                    ZabbixAgent.DEFAULT_PORT);
+
+            final OutputStream out = socket.getOutputStream();
+            out.write(("system.property[zapcat.test.first]\n"
+                    + "system.property[zapcat.test.second]\n"
+                    + "agent.ping\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            assertEquals("one", readFrame(in));
+            assertEquals("two", readFrame(in));
+            assertEquals("1", readFrame(in));
+
+            // the connection stays open for more
+            out.write("system.property[zapcat.test.first]\n"
+                    .getBytes("US-ASCII"));
+            out.flush();
+            assertEquals("one", readFrame(in));
+
+            // ... until it is idle for too long
+            assertEquals(-1, in.read());
+            socket.close();
+
+            // give the agent some time to clean up
+            Thread.sleep(100);
+            final ObjectName mbean = new ObjectName(
+                    "org.kjkoster.zapcat:type=Agent,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            assertEquals("4", JMXHelper.query(mbean, "Requests"));
+            assertEquals("1", JMXHelper.query(mbean, "IdleTimeouts"));
+            assertEquals("0", JMXHelper.query(mbean, "ConnectionsOpen"));
+        } finally {
+            agent.stop();
+        }
+    }
+
+    private String readFrame(final InputStream in) throws Exception {
+        final byte[] header = new byte[13];
+        new DataInputStream(in).readFully(header);
+        assertEquals('Z', header[0]);
+        assertEquals('B', header[1]);
+        assertEquals('X', header[2]);
+        assertEquals('D', header[3]);
+
+        final byte[] payload = new byte[header[5]];
+        new DataInputStream(in).readFully(payload);
+        return new String(payload, "UTF-8");
+    }
+}
@@ -0,0 +1,119 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test that a saturated agent sheds requests instead of queueing them.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentLoadSheddingTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * Sleep a little, to give the agent time to die and restore the system
+     * properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Occupy the only worker with a kept-alive connection, fill the queue
+     * with a second connection and check that the third connection is turned
+     * away.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testShedding() throws Exception {
+        System.setProperty(ZabbixAgent.KEEPALIVE_PROPERTY, "2000");
+        System.setProperty(ZabbixAgent.WORKERS_MAX_PROPERTY, "1");
+        System.setProperty(ZabbixAgent.QUEUE_PROPERTY, "1");
+
+        final Agent agent = new ZabbixAgent();
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+
+            final Socket busy = connect();
+            final Socket queued = connect();
+            final Socket shed = connect();
+
+            final OutputStream out = shed.getOutputStream();
+            out.write("agent.ping\n".getBytes("US-ASCII"));
+            out.flush();
+
+            final InputStream in = shed.getInputStream();
+            final byte[] buffer = new byte[1024];
+            int read = 0;
+            int n = in.read(buffer);
+            while (n > 0) {
+                read += n;
+                n = in.read(buffer, read, buffer.length - read);
+            }
+            assertEquals(29, read);
+            assertEquals("ZBX_NOTSUPPORTED", new String(buffer, 13, 16,
+                    "US-ASCII"));
+
+            final ObjectName mbean = new ObjectName(
+                    "org.kjkoster.zapcat:type=Agent,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            assertEquals("1", JMXHelper.query(mbean, "Rejections"));
+            assertEquals("1", JMXHelper.query(mbean, "QueueDepth"));
+            assertEquals("1", JMXHelper.query(mbean, "WorkerLimit"));
+
+            shed.close();
+            queued.close();
+            busy.close();
+        } finally {
+            agent.stop();
+        }
+    }
+
+    private Socket connect() throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        // give the agent some time to hand the connection out
+        Thread.sleep(100);
+        return socket;
+    }
+}
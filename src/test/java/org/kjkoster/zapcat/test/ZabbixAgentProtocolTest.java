@@ -19,9 +19,13 @@ package org.kjkoster.zapcat.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import java.io.DataInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Properties;
@@ -293,4 +297,144 @@ public class ZabbixAgentProtocolTest {
         socket.close();
         agent.stop();
     }
+
+    /**
+     * Test that attribute paths reach into composite data, and that a key
+     * with an invalid object name is not supported.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testCompositeAttribute() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+
+        final long init = ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage().getInit();
+        assertEquals(String.valueOf(init),
+                query("jmx[java.lang:type=Memory][HeapMemoryUsage.init]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx[java.lang:type=Memory,,][HeapMemoryUsage.init]"));
+
+        agent.stop();
+    }
+
+    /**
+     * Test that we can read several attributes at once.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testAttributes() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        assertEquals("{\"HeapMemoryUsage.init\":"
+                + memory.getHeapMemoryUsage().getInit() + ",\"Verbose\":"
+                + memory.isVerbose() + ",\"NoSuchAttribute\":null}",
+                query("jmx.attrs[java.lang:type=Memory]"
+                        + "[HeapMemoryUsage.init, Verbose, NoSuchAttribute]"));
+        assertEquals("ZBX_NOTSUPPORTED",
+                query("jmx.attrs[zapcat.test:type=Missing][Verbose]"));
+
+        agent.stop();
+    }
+
+    private String query(final String key) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                org.kjkoster.zapcat.zabbix.ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write((key + "\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] payload = new byte[(header[5] & 0xff)
+                    | (header[6] & 0xff) << 8];
+            in.readFully(payload);
+            return new String(payload, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Test that a framed request with a huge declared length is refused
+     * instead of buffered.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testOversizedFrame() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                org.kjkoster.zapcat.zabbix.ZabbixAgent.DEFAULT_PORT);
+
+        final OutputStream out = socket.getOutputStream();
+        out.write(new byte[] { 'Z', 'B', 'X', 'D', 1, 0, 0, 0, 0x10, 0, 0, 0,
+                0 });
+        out.flush();
+
+        // the agent drops the connection without a response
+        final InputStream in = socket.getInputStream();
+        final byte[] buffer = new byte[1024];
+        assertEquals(-1, in.read(buffer));
+
+        socket.close();
+        agent.stop();
+    }
+
+    /**
+     * Test that keys are decoded as UTF-8 and that the length in the response
+     * header is the length in bytes, not in characters.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testUnicodeKey() throws Exception {
+        final String value = "caf\u00e9";
+        // a key that is not ASCII, so that it has to be decoded as UTF-8
+        final String property = "zapcat.test.\u00fcnicode";
+        System.setProperty(property, value);
+
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                org.kjkoster.zapcat.zabbix.ZabbixAgent.DEFAULT_PORT);
+
+        final OutputStream out = socket.getOutputStream();
+        out.write(("system.property[" + property + "]\n").getBytes("UTF-8"));
+        out.flush();
+
+        final InputStream in = socket.getInputStream();
+        final byte[] buffer = new byte[1024];
+        int read = 0;
+        int n = in.read(buffer);
+        while (n > 0) {
+            read += n;
+            n = in.read(buffer, read, buffer.length - read);
+        }
+
+        final byte[] expected = value.getBytes("UTF-8");
+        assertEquals(13 + expected.length, read);
+        assertEquals(expected.length, buffer[5]);
+        assertEquals(value, new String(buffer, 13, read - 13, "UTF-8"));
+
+        socket.close();
+        agent.stop();
+        System.clearProperty(property);
+    }
 }
@@ -0,0 +1,221 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.rmi.registry.LocateRegistry;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test cases for proxying to remote mbean servers. The remote server is a
+ * connector server in this JVM, in front of an mbean server of its own.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentProxyTest {
+    private static final int REGISTRY_PORT = 10097;
+
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * The interface of our test mbean.
+     */
+    public interface SlowMBean {
+        /**
+         * Read the value, possibly taking our time.
+         *
+         * @return The value.
+         * @throws InterruptedException
+         *             When we were interrupted while waiting.
+         */
+        long getValue() throws InterruptedException;
+    }
+
+    /**
+     * An mbean that can be told to block reads until we let them go.
+     */
+    public static class Slow implements SlowMBean {
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        volatile boolean blocking = false;
+
+        /**
+         * @see org.kjkoster.zapcat.test.ZabbixAgentProxyTest.SlowMBean#getValue()
+         */
+        public long getValue() throws InterruptedException {
+            if (blocking) {
+                entered.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return 42L;
+        }
+    }
+
+    /**
+     * Sleep a little, to give the agent time to die and restore the system
+     * properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test routing keys to a target, and that a slow target cannot use more
+     * than its share of the workers.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testProxy() throws Exception {
+        LocateRegistry.createRegistry(REGISTRY_PORT);
+        final JMXServiceURL url = new JMXServiceURL(
+                "service:jmx:rmi:///jndi/rmi://localhost:" + REGISTRY_PORT
+                        + "/broker");
+        final MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        final Slow slow = new Slow();
+        mbeanServer.registerMBean(slow, new ObjectName(
+                "zapcat.test:type=Slow"));
+        final JMXConnectorServer server = JMXConnectorServerFactory
+                .newJMXConnectorServer(url, null, mbeanServer);
+        server.start();
+
+        System.setProperty(ZabbixAgent.TARGET_PREFIX + "broker.url", url
+                .toString());
+        System.setProperty(ZabbixAgent.TARGET_PREFIX + "broker.workers", "1");
+        // enough agent workers to poll while one is stuck on the target
+        System.setProperty(ZabbixAgent.WORKERS_MIN_PROPERTY, "4");
+        final Agent agent = new ZabbixAgent();
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+
+            assertEquals("new", query("agent.jmx.state[broker]"));
+            assertEquals("42", query("jmx[broker:zapcat.test:type=Slow][Value]"));
+            assertEquals("connected", query("agent.jmx.state[broker]"));
+            assertEquals("{\"Value\":42}",
+                    query("jmx.attrs[broker:zapcat.test:type=Slow][Value]"));
+            assertEquals("ZBX_NOTSUPPORTED",
+                    query("jmx.delta[broker:zapcat.test:type=Slow][Value]"));
+            assertEquals("0",
+                    query("jmx.delta[broker:zapcat.test:type=Slow][Value]"));
+
+            // the local mbean server does not have it
+            assertEquals("ZBX_NOTSUPPORTED",
+                    query("jmx[zapcat.test:type=Slow][Value]"));
+            assertEquals("ZBX_NOTSUPPORTED",
+                    query("jmx[nosuch:java.lang:type=Runtime][VmName]"));
+            assertEquals("ZBX_NOTSUPPORTED", query("agent.jmx.state[nosuch]"));
+
+            // one slow poll takes the target's only worker
+            slow.blocking = true;
+            final String[] blocked = new String[1];
+            final Thread poller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        blocked[0] = query("jmx[broker:zapcat.test:type=Slow][Value]");
+                    } catch (Exception e) {
+                        blocked[0] = e.toString();
+                    }
+                }
+            };
+            poller.start();
+            assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+
+            assertEquals("ZBX_NOTSUPPORTED",
+                    query("jmx[broker:zapcat.test:type=Slow][Value]"));
+            assertEquals("1", query("agent.jmx.rejections[broker]"));
+            // other keys are not held up
+            assertEquals("1", query("agent.ping"));
+
+            slow.release.countDown();
+            poller.join(5000);
+            assertEquals("42", blocked[0]);
+        } finally {
+            slow.release.countDown();
+            agent.stop();
+            server.stop();
+        }
+
+        // the agent closed its connections to the targets
+        for (int i = 0; i < 50 && reconnecting(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(reconnecting());
+    }
+
+    private static boolean reconnecting() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Zabbix-jmx-reconnect")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String query(final String key) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write((key + "\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] payload = new byte[(header[5] & 0xff)
+                    | (header[6] & 0xff) << 8];
+            in.readFully(payload);
+            return new String(payload, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+}
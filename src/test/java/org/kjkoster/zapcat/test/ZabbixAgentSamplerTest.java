@@ -0,0 +1,251 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.AttributeList;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.test.ZabbixAgentCacheTest.Counter;
+import org.kjkoster.zapcat.test.ZabbixAgentCacheTest.CounterMBean;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * Test cases for the background sampler.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentSamplerTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * Sleep a little, to give the agent time to die and restore the system
+     * properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test that sampled items are answered from the snapshot.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSampler() throws Exception {
+        System.setProperty(ZabbixAgent.SAMPLER_INTERVAL_PROPERTY, "60000");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "1",
+                "jmx[zapcat.test:type=Counter][Count]");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "2",
+                "jmx[zapcat.test:type=Counter][Name]");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "3",
+                "jmx[zapcat.test:type=Counter][NoSuchAttribute]");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "4", "agent.ping");
+
+        final ObjectName counter = JMXHelper.register(new Counter(),
+                "zapcat.test:type=Counter");
+        final ObjectName other = JMXHelper.register(new Counter(),
+                "zapcat.test:type=Other");
+        final Agent agent = new ZabbixAgent();
+        try {
+            final ObjectName sampler = new ObjectName(
+                    "org.kjkoster.zapcat:type=Sampler,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            for (int i = 0; i < 50 && !rounds(sampler); i++) {
+                Thread.sleep(100);
+            }
+
+            // one read for the whole round, however often we poll
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            assertEquals("counter", query("jmx[zapcat.test:type=Counter][Name]"));
+            // not in the snapshot, so it is read the normal way
+            assertEquals("ZBX_NOTSUPPORTED",
+                    query("jmx[zapcat.test:type=Counter][NoSuchAttribute]"));
+            assertEquals("1", query("agent.ping"));
+            assertEquals("3", JMXHelper.query(sampler, "Items"));
+            assertEquals("4", JMXHelper.query(sampler, "Hits"));
+
+            // items that are not sampled are read the normal way
+            assertEquals("1", query("jmx[zapcat.test:type=Other][Count]"));
+            assertEquals("2", query("jmx[zapcat.test:type=Other][Count]"));
+        } finally {
+            agent.stop();
+            JMXHelper.unregister(counter);
+            JMXHelper.unregister(other);
+        }
+    }
+
+    /**
+     * Test that an mbean that cannot be read does not stop the other items
+     * from being sampled.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBrokenItem() throws Exception {
+        System.setProperty(ZabbixAgent.SAMPLER_INTERVAL_PROPERTY, "60000");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "1",
+                "jmx[zapcat.test:type=Broken][Count]");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "2",
+                "jmx[zapcat.test:type=Counter][Count]");
+
+        final ObjectName broken = JMXHelper.register(new StandardMBean(
+                new Counter(), CounterMBean.class) {
+            @Override
+            public AttributeList getAttributes(final String[] attributes) {
+                throw new IllegalStateException("broken");
+            }
+        }, "zapcat.test:type=Broken");
+        final ObjectName counter = JMXHelper.register(new Counter(),
+                "zapcat.test:type=Counter");
+        final Agent agent = new ZabbixAgent();
+        try {
+            final ObjectName sampler = new ObjectName(
+                    "org.kjkoster.zapcat:type=Sampler,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            for (int i = 0; i < 50 && !rounds(sampler); i++) {
+                Thread.sleep(100);
+            }
+
+            assertEquals("1", JMXHelper.query(sampler, "Items"));
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            assertEquals("1", query("jmx[zapcat.test:type=Counter][Count]"));
+            assertEquals("2", JMXHelper.query(sampler, "Hits"));
+        } finally {
+            agent.stop();
+            JMXHelper.unregister(broken);
+            JMXHelper.unregister(counter);
+        }
+    }
+
+    /**
+     * Test that polls are no longer answered from a snapshot once the
+     * sampler is stuck for more than two intervals.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testStaleSnapshot() throws Exception {
+        System.setProperty(ZabbixAgent.SAMPLER_INTERVAL_PROPERTY, "200");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "1",
+                "jmx[zapcat.test:type=Slow][Count]");
+        System.setProperty(ZabbixAgent.SAMPLER_ITEM_PREFIX + "2",
+                "jmx[zapcat.test:type=Counter][Count]");
+
+        final AtomicBoolean stuck = new AtomicBoolean(false);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ObjectName slow = JMXHelper.register(new StandardMBean(
+                new Counter(), CounterMBean.class) {
+            @Override
+            public AttributeList getAttributes(final String[] attributes) {
+                if (stuck.get()) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getAttributes(attributes);
+            }
+        }, "zapcat.test:type=Slow");
+        final ObjectName counter = JMXHelper.register(new Counter(),
+                "zapcat.test:type=Counter");
+        final Agent agent = new ZabbixAgent();
+        try {
+            final ObjectName sampler = new ObjectName(
+                    "org.kjkoster.zapcat:type=Sampler,port="
+                            + ZabbixAgent.DEFAULT_PORT);
+            for (int i = 0; i < 50 && !rounds(sampler); i++) {
+                Thread.sleep(100);
+            }
+            query("jmx[zapcat.test:type=Counter][Count]");
+            assertEquals("1", JMXHelper.query(sampler, "Hits"));
+
+            stuck.set(true);
+            for (int i = 0; i < 50 && age(sampler) <= 500L; i++) {
+                Thread.sleep(100);
+            }
+
+            query("jmx[zapcat.test:type=Counter][Count]");
+            assertEquals("1", JMXHelper.query(sampler, "Hits"));
+        } finally {
+            release.countDown();
+            agent.stop();
+            JMXHelper.unregister(slow);
+            JMXHelper.unregister(counter);
+        }
+    }
+
+    private static long age(final ObjectName sampler) throws Exception {
+        return Long.parseLong(JMXHelper.query(sampler, "SnapshotAge"));
+    }
+
+    private static boolean rounds(final ObjectName sampler) throws Exception {
+        try {
+            return !"0".equals(JMXHelper.query(sampler, "Rounds"));
+        } catch (Exception e) {
+            // not registered yet
+            return false;
+        }
+    }
+
+    private String query(final String key) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write((key + "\n").getBytes("US-ASCII"));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] payload = new byte[(header[5] & 0xff)
+                    | (header[6] & 0xff) << 8];
+            in.readFully(payload);
+            return new String(payload, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kjkoster.zapcat.Agent;
+import org.kjkoster.zapcat.zabbix.ZabbixAgent;
+
+/**
+ * A test case to test the non-blocking transport of the agent.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixAgentTransportTest {
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    private Agent agent = null;
+
+    /**
+     * Start an agent that uses the non-blocking transport.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(ZabbixAgent.TRANSPORT_PROPERTY, "nio");
+        agent = new ZabbixAgent();
+        // give the agent some time to open the port
+        Thread.sleep(100);
+    }
+
+    /**
+     * Stop the agent, sleep a little to give it time to die and restore the
+     * system properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        agent.stop();
+        Thread.sleep(100);
+
+        System.setProperties(originalProperties);
+        assertNull(System.getProperty(ZabbixAgent.TRANSPORT_PROPERTY));
+    }
+
+    /**
+     * Test the we can ping the agent.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testPing() throws Exception {
+        final byte[] response = query("agent.ping\n".getBytes("US-ASCII"));
+
+        assertEquals(14, response.length);
+        assertEquals('Z', response[0]);
+        assertEquals('B', response[1]);
+        assertEquals('X', response[2]);
+        assertEquals('D', response[3]);
+        assertEquals(1, response[4]);
+        assertEquals(1, response[5]);
+        assertEquals('1', response[13]);
+    }
+
+    /**
+     * Test that we understand requests that are framed with a ZBXD header
+     * instead of a newline.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testFramedRequest() throws Exception {
+        final byte[] key = "agent.ping".getBytes("US-ASCII");
+        final byte[] request = new byte[13 + key.length];
+        request[0] = 'Z';
+        request[1] = 'B';
+        request[2] = 'X';
+        request[3] = 'D';
+        request[4] = 1;
+        request[5] = (byte) key.length;
+        System.arraycopy(key, 0, request, 13, key.length);
+
+        final byte[] response = query(request);
+
+        assertEquals(14, response.length);
+        assertEquals('1', response[13]);
+    }
+
+    /**
+     * Test that unsupported keys get the proper response.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNotSupported() throws Exception {
+        final byte[] response = query("jmx[foo\n".getBytes("US-ASCII"));
+
+        assertEquals(29, response.length);
+        assertEquals("ZBX_NOTSUPPORTED", new String(response, 13, 16,
+                "US-ASCII"));
+    }
+
+    private byte[] query(final byte[] request) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(),
+                ZabbixAgent.DEFAULT_PORT);
+        try {
+            final OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            // the agent closes the connection after the response
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[1024];
+            int read = 0;
+            int n = in.read(buffer);
+            while (n > 0) {
+                read += n;
+                n = in.read(buffer, read, buffer.length - read);
+            }
+
+            final byte[] response = new byte[read];
+            System.arraycopy(buffer, 0, response, 0, read);
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+}
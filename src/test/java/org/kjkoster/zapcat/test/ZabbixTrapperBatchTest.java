@@ -0,0 +1,299 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Trapper;
+import org.kjkoster.zapcat.zabbix.ZabbixTrapper;
+
+/**
+ * Test cases for sending items in batches, with the JSON sender protocol,
+ * over blocking and non-blocking connections, and for spooling items while
+ * the server is away.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixTrapperBatchTest {
+    private static final int TEST_PORT = ZabbixTrapper.DEFAULT_PORT + 2;
+
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    /**
+     * Restore the system properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test that items that are sent close together go out in one request.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBatch() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(TEST_PORT);
+        try {
+            final Future<String> server = Executors.newSingleThreadExecutor()
+                    .submit(new Callable<String>() {
+                        public String call() throws Exception {
+                            return receive(serverSocket);
+                        }
+                    });
+
+            System.setProperty(ZabbixTrapper.PORT_PROPERTY, "" + TEST_PORT);
+            System.setProperty(ZabbixTrapper.SENDER_PROTOCOL_PROPERTY, "json");
+            System.setProperty(ZabbixTrapper.SENDER_FLUSH_PROPERTY, "1000");
+            final Trapper trapper = new ZabbixTrapper("localhost", "foo");
+            trapper.send("bar", "baz");
+            trapper.send("bar", 2);
+            trapper.send("qu\"ux", "line\nbreak");
+            trapper.stop();
+
+            final String request = server.get(5, TimeUnit.SECONDS);
+            // leave out the clocks, they are not the same every run
+            assertEquals("{\"request\":\"sender data\",\"data\":["
+                    + "{\"host\":\"foo\",\"key\":\"bar\",\"value\":\"baz\"},"
+                    + "{\"host\":\"foo\",\"key\":\"bar\",\"value\":\"2\"},"
+                    + "{\"host\":\"foo\",\"key\":\"qu\\\"ux\",\"value\":\"line\\nbreak\"}"
+                    + "]}", request.replaceAll(",\"clock\":\\d+", ""));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Test that the non-blocking sender has more than one request in flight.
+     * The server holds on to the first request until the second one is in,
+     * which a sender that waits for each response would never send.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testInFlight() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(TEST_PORT);
+        try {
+            final Future<String> server = Executors.newSingleThreadExecutor()
+                    .submit(new Callable<String>() {
+                        public String call() throws Exception {
+                            final Socket first = serverSocket.accept();
+                            final Socket second = serverSocket.accept();
+                            try {
+                                final String one = read(first);
+                                final String two = read(second);
+                                respond(second);
+                                respond(first);
+                                return one + two;
+                            } finally {
+                                first.close();
+                                second.close();
+                            }
+                        }
+                    });
+
+            System.setProperty(ZabbixTrapper.PORT_PROPERTY, "" + TEST_PORT);
+            System.setProperty(ZabbixTrapper.SENDER_PROTOCOL_PROPERTY, "json");
+            System.setProperty(ZabbixTrapper.SENDER_TRANSPORT_PROPERTY, "nio");
+            System.setProperty(ZabbixTrapper.SENDER_INFLIGHT_PROPERTY, "2");
+            System.setProperty(ZabbixTrapper.SENDER_BATCH_PROPERTY, "1");
+            final Trapper trapper = new ZabbixTrapper("localhost", "foo");
+            trapper.send("first", 1);
+            trapper.send("second", 2);
+
+            final String requests = server.get(5, TimeUnit.SECONDS);
+            trapper.stop();
+            assertTrue(requests, requests.contains("\"key\":\"first\""));
+            assertTrue(requests, requests.contains("\"key\":\"second\""));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Test that items that could not be sent are spooled, and are sent with
+     * their original time once the server is back, even by a new trapper.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSpool() throws Exception {
+        spool("blocking");
+    }
+
+    /**
+     * Test spooling with the non-blocking sender.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSpoolNio() throws Exception {
+        spool("nio");
+    }
+
+    private void spool(final String transport) throws Exception {
+        final File directory = File.createTempFile("zapcat", "spool");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            System.setProperty(ZabbixTrapper.PORT_PROPERTY, "" + TEST_PORT);
+            System.setProperty(ZabbixTrapper.SENDER_PROTOCOL_PROPERTY, "json");
+            System.setProperty(ZabbixTrapper.SENDER_TRANSPORT_PROPERTY,
+                    transport);
+            System.setProperty(ZabbixTrapper.SPOOL_PROPERTY, directory
+                    .getPath());
+
+            // nobody is listening yet
+            final Trapper away = new ZabbixTrapper("localhost", "foo");
+            away.send("bar", 1);
+            away.send("bar", 2);
+            away.send("baz", 3);
+            away.stop();
+            final long spooled = System.currentTimeMillis() / 1000L;
+            assertTrue(segments(directory) > 0);
+
+            Thread.sleep(1100L);
+            final ServerSocket serverSocket = new ServerSocket(TEST_PORT);
+            try {
+                final Future<String> server = Executors
+                        .newSingleThreadExecutor().submit(
+                                new Callable<String>() {
+                                    public String call() throws Exception {
+                                        return receive(serverSocket);
+                                    }
+                                });
+
+                final Trapper back = new ZabbixTrapper("localhost", "foo");
+                final String request = server.get(10, TimeUnit.SECONDS);
+                back.stop();
+
+                assertEquals("{\"request\":\"sender data\",\"data\":["
+                        + "{\"host\":\"foo\",\"key\":\"bar\",\"value\":\"1\"},"
+                        + "{\"host\":\"foo\",\"key\":\"bar\",\"value\":\"2\"},"
+                        + "{\"host\":\"foo\",\"key\":\"baz\",\"value\":\"3\"}"
+                        + "]}", request.replaceAll(",\"clock\":\\d+", ""));
+
+                // the items keep their time, the request has the time now
+                final Matcher clocks = Pattern.compile("\"clock\":(\\d+)")
+                        .matcher(request);
+                for (int i = 0; i < 3; i++) {
+                    assertTrue(clocks.find());
+                    assertTrue(request,
+                            Long.parseLong(clocks.group(1)) <= spooled);
+                }
+                assertTrue(clocks.find());
+                assertTrue(request, Long.parseLong(clocks.group(1)) > spooled);
+            } finally {
+                serverSocket.close();
+            }
+
+            // everything was replayed, so the segments are gone
+            assertEquals(0, segments(directory));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /*
+     * Count the segment files of the trapper for host foo.
+     */
+    private static int segments(final File directory) {
+        final String[] files = new File(directory, "localhost_" + TEST_PORT
+                + "_foo").list();
+        assertNotNull(files);
+        int segments = 0;
+        for (final String file : files) {
+            if (file.endsWith(".seg")) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /*
+     * Accept one connection, read one request and answer it the way a
+     * Zabbix server would.
+     */
+    private static String receive(final ServerSocket serverSocket)
+            throws Exception {
+        final Socket accepted = serverSocket.accept();
+        try {
+            final String request = read(accepted);
+            respond(accepted);
+            return request;
+        } finally {
+            accepted.close();
+        }
+    }
+
+    private static String read(final Socket socket) throws Exception {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final byte[] header = new byte[13];
+        in.readFully(header);
+        assertEquals("ZBXD\1", new String(header, 0, 5, "US-ASCII"));
+        final byte[] payload = new byte[(header[5] & 0xff)
+                | (header[6] & 0xff) << 8];
+        in.readFully(payload);
+        return new String(payload, "UTF-8");
+    }
+
+    private static void respond(final Socket socket) throws Exception {
+        final byte[] response = ("{\"response\":\"success\",\"info\":"
+                + "\"processed: 1; failed: 0; total: 1; "
+                + "seconds spent: 0.000100\"}").getBytes("US-ASCII");
+        final OutputStream out = socket.getOutputStream();
+        out.write(new byte[] { 'Z', 'B', 'X', 'D', 1, (byte) response.length,
+                0, 0, 0, 0, 0, 0, 0 });
+        out.write(response);
+        out.flush();
+    }
+}
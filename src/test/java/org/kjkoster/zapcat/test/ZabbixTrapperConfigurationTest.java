@@ -17,9 +17,12 @@ package org.kjkoster.zapcat.test;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Arrays;
@@ -27,6 +30,10 @@ import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Test;
@@ -87,13 +94,43 @@ public class ZabbixTrapperConfigurationTest {
         trapSomeData(server);
     }
 
+    /**
+     * Test that stopping a second trapper for the same server and host does
+     * not unregister the mbean of the first.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSameServerAndHost() throws Exception {
+        final ObjectName name = new ObjectName(
+                "org.kjkoster.zapcat:type=Trapper,server="
+                        + ObjectName.quote("localhost:"
+                                + ZabbixTrapper.DEFAULT_PORT) + ",host="
+                        + ObjectName.quote("foo"));
+        final MBeanServer mbeanServer = ManagementFactory
+                .getPlatformMBeanServer();
+
+        final Trapper first = new ZabbixTrapper("localhost", "foo");
+        try {
+            assertTrue(mbeanServer.isRegistered(name));
+
+            final Trapper second = new ZabbixTrapper("localhost", "foo");
+            second.stop();
+            assertTrue(mbeanServer.isRegistered(name));
+        } finally {
+            first.stop();
+        }
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
     private void trapSomeData(Future<byte[]> server) throws Exception {
         final Trapper trapper = new ZabbixTrapper("localhost", "foo");
         trapper.send("bar", "baz");
 
         trapper.stop();
 
-		byte[] buffer=server.get();
+		byte[] buffer=server.get(10, TimeUnit.SECONDS);
 	    // we compare byte-for-byte to avoid unicode issues...
         for (int i = 0; i < buffer.length; i++) {
             assertEquals(
@@ -102,17 +139,17 @@ public class ZabbixTrapperConfigurationTest {
         }
     }
 
-    private Future<byte[]> startServer(final int port) {
+    private Future<byte[]> startServer(final int port) throws Exception {
+        // bind before the trapper starts, so that it cannot miss the server
+        final ServerSocket serverSocket = new ServerSocket(port);
 		return Executors.newSingleThreadExecutor().submit(new Callable<byte[]>() {
 
 			@Override
 			public byte[] call() throws Exception {
 				byte[] buffer = new byte[1024];
 				int read;
-				ServerSocket serverSocket = null;
 				Socket accepted = null;
 				try {
-					serverSocket = new ServerSocket(port);
 					accepted = serverSocket.accept();
 					read = accepted.getInputStream().read(buffer);
 					return Arrays.copyOf(buffer, read);
@@ -121,8 +158,8 @@ public class ZabbixTrapperConfigurationTest {
 					fail();
 				} finally {
 					try {
-						accepted.close();
 						serverSocket.close();
+						accepted.close();
 					} catch (Exception e) {
 						e.printStackTrace();
 						fail();
@@ -0,0 +1,148 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Trapper;
+import org.kjkoster.zapcat.zabbix.ZabbixTrapper;
+
+/**
+ * Test cases for the bounded trapper queue. The sender gets stuck on a
+ * server that accepts connections but never answers, so that the queue
+ * fills up.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixTrapperOverflowTest {
+    private static final int TEST_PORT = ZabbixTrapper.DEFAULT_PORT + 3;
+
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    private final MBeanServer mbeanServer = ManagementFactory
+            .getPlatformMBeanServer();
+
+    /**
+     * Restore the system properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test dropping the items that do not fit.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testDropNewest() throws Exception {
+        overflow("drop-newest", new String[] { "a", "b", "c", "d" }, 2L, 2L);
+    }
+
+    /**
+     * Test making room by dropping the oldest items.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testDropOldest() throws Exception {
+        overflow("drop-oldest", new String[] { "a", "b", "c", "d" }, 4L, 2L);
+    }
+
+    /**
+     * Test waiting for room, then dropping.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testBlock() throws Exception {
+        System.setProperty(ZabbixTrapper.BLOCK_TIMEOUT_PROPERTY, "10");
+        overflow("block", new String[] { "a", "b", "c" }, 2L, 1L);
+    }
+
+    /**
+     * Test replacing waiting items for the same key.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        overflow("coalesce", new String[] { "a", "b", "a", "a", "c" }, 4L, 3L);
+    }
+
+    /*
+     * Queue up items behind one that the sender is stuck on, with room for
+     * two items, and check the counters. The stuck item is counted as
+     * enqueued too.
+     */
+    private void overflow(final String policy, final String[] keys,
+            final long enqueued, final long dropped) throws Exception {
+        System.setProperty(ZabbixTrapper.PORT_PROPERTY, "" + TEST_PORT);
+        System.setProperty(ZabbixTrapper.QUEUE_PROPERTY, "2");
+        System.setProperty(ZabbixTrapper.OVERFLOW_PROPERTY, policy);
+
+        final ObjectName name = new ObjectName(
+                "org.kjkoster.zapcat:type=Trapper,server="
+                        + ObjectName.quote("localhost:" + TEST_PORT)
+                        + ",host=" + ObjectName.quote("foo"));
+        final ServerSocket serverSocket = new ServerSocket(TEST_PORT);
+        Trapper trapper = null;
+        try {
+            trapper = new ZabbixTrapper("localhost", "foo");
+            trapper.send("stuck", "0");
+            while (((Integer) mbeanServer.getAttribute(name, "Depth"))
+                    .intValue() > 0) {
+                Thread.sleep(10);
+            }
+
+            for (final String key : keys) {
+                trapper.send(key, key);
+            }
+
+            assertEquals(policy, mbeanServer.getAttribute(name, "Overflow"));
+            assertEquals(2, mbeanServer.getAttribute(name, "Depth"));
+            assertEquals(enqueued + 1L, mbeanServer.getAttribute(name,
+                    "Enqueued"));
+            assertEquals(dropped, mbeanServer.getAttribute(name, "Dropped"));
+        } finally {
+            // resets the connection that the sender is stuck on
+            serverSocket.close();
+            if (trapper != null) {
+                trapper.stop();
+            }
+        }
+        assertEquals(false, mbeanServer.isRegistered(name));
+    }
+}
@@ -0,0 +1,181 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kjkoster.zapcat.Trapper;
+import org.kjkoster.zapcat.zabbix.ZabbixTrapper;
+
+/**
+ * Test cases for backing off from a Zabbix server that cannot be reached,
+ * and for the dead letters.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ZabbixTrapperRetryTest {
+    private static final int TEST_PORT = ZabbixTrapper.DEFAULT_PORT + 4;
+
+    final Properties originalProperties = (Properties) System.getProperties()
+            .clone();
+
+    private final MBeanServer mbeanServer = ManagementFactory
+            .getPlatformMBeanServer();
+
+    /**
+     * Restore the system properties.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @After
+    public void tearDown() throws Exception {
+        System.setProperties(originalProperties);
+    }
+
+    /**
+     * Test that the sender backs off and gives up on an item after the
+     * configured number of attempts, and that the item can be sent again
+     * through JMX once the server is back.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testDeadLetters() throws Exception {
+        System.setProperty(ZabbixTrapper.PORT_PROPERTY, "" + TEST_PORT);
+        System.setProperty(ZabbixTrapper.SENDER_PROTOCOL_PROPERTY, "json");
+        System.setProperty(ZabbixTrapper.RETRY_ATTEMPTS_PROPERTY, "3");
+        System.setProperty(ZabbixTrapper.RETRY_BACKOFF_PROPERTY, "50");
+        System.setProperty(ZabbixTrapper.RETRY_BACKOFF_MAX_PROPERTY, "200");
+
+        final ObjectName name = new ObjectName(
+                "org.kjkoster.zapcat:type=Trapper,server="
+                        + ObjectName.quote("localhost:" + TEST_PORT)
+                        + ",host=" + ObjectName.quote("foo"));
+
+        // nobody is listening yet
+        final Trapper trapper = new ZabbixTrapper("localhost", "foo");
+        try {
+            trapper.send("bar", "baz");
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (((Long) mbeanServer.getAttribute(name, "DeadLettered"))
+                    .longValue() == 0L
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20L);
+            }
+
+            assertEquals(1L, mbeanServer.getAttribute(name, "DeadLettered"));
+            assertEquals(3, mbeanServer.getAttribute(name,
+                    "ConsecutiveFailures"));
+            assertEquals(2L, mbeanServer.getAttribute(name, "Retries"));
+            final long backoff = ((Long) mbeanServer.getAttribute(name,
+                    "Backoff")).longValue();
+            assertTrue("" + backoff, backoff >= 100L && backoff <= 200L);
+            assertNotNull(mbeanServer.getAttribute(name, "LastError"));
+            assertEquals(0L, mbeanServer.getAttribute(name, "LastSuccess"));
+
+            final Collection<?> deadLetters = (Collection<?>) mbeanServer
+                    .getAttribute(name, "DeadLetters");
+            assertEquals(1, deadLetters.size());
+            assertTrue(deadLetters.toString(), deadLetters.iterator().next()
+                    .toString().startsWith("foo:bar @"));
+
+            final ServerSocket serverSocket = new ServerSocket(TEST_PORT);
+            try {
+                final Future<String> server = Executors
+                        .newSingleThreadExecutor().submit(
+                                new Callable<String>() {
+                                    public String call() throws Exception {
+                                        return receive(serverSocket);
+                                    }
+                                });
+
+                assertEquals(1, mbeanServer.invoke(name, "replayDeadLetters",
+                        null, null));
+                final String request = server.get(5, TimeUnit.SECONDS);
+                assertTrue(request, request
+                        .contains("\"key\":\"bar\",\"value\":\"baz\""));
+            } finally {
+                serverSocket.close();
+            }
+
+            final long recovered = System.currentTimeMillis() + 5000L;
+            while (((Long) mbeanServer.getAttribute(name, "LastSuccess"))
+                    .longValue() == 0L
+                    && System.currentTimeMillis() < recovered) {
+                Thread.sleep(20L);
+            }
+            assertEquals(0, mbeanServer.getAttribute(name,
+                    "ConsecutiveFailures"));
+            assertEquals(0L, mbeanServer.getAttribute(name, "Backoff"));
+            assertEquals(0, ((Collection<?>) mbeanServer.getAttribute(name,
+                    "DeadLetters")).size());
+        } finally {
+            trapper.stop();
+        }
+    }
+
+    /*
+     * Accept one connection, read one request and answer it the way a
+     * Zabbix server would.
+     */
+    private static String receive(final ServerSocket serverSocket)
+            throws Exception {
+        final Socket accepted = serverSocket.accept();
+        try {
+            final DataInputStream in = new DataInputStream(accepted
+                    .getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] payload = new byte[(header[5] & 0xff)
+                    | (header[6] & 0xff) << 8];
+            in.readFully(payload);
+
+            final byte[] response = ("{\"response\":\"success\",\"info\":"
+                    + "\"processed: 1; failed: 0; total: 1\"}")
+                    .getBytes("US-ASCII");
+            final OutputStream out = accepted.getOutputStream();
+            out.write(new byte[] { 'Z', 'B', 'X', 'D', 1,
+                    (byte) response.length, 0, 0, 0, 0, 0, 0, 0 });
+            out.write(response);
+            out.flush();
+            return new String(payload, "UTF-8");
+        } finally {
+            accepted.close();
+        }
+    }
+}
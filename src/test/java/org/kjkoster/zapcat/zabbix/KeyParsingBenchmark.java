@@ -0,0 +1,108 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import javax.management.ObjectName;
+
+/**
+ * Compares the cost of parsing a key on every request with looking up the
+ * compiled key. This is not a unit test, run it by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.kjkoster.zapcat.zabbix.KeyParsingBenchmark
+ * </pre>
+ *
+ * It lives in the agent's package because the compiled keys are not part of
+ * the public API.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class KeyParsingBenchmark {
+    private static final String[] KEYS = {
+            "jmx[java.lang:type=Memory][HeapMemoryUsage.used]",
+            "jmx[java.lang:type=Threading][ThreadCount]",
+            "jmx[java.lang:type=GarbageCollector,name=PS MarkSweep][CollectionCount]",
+            "jmx[Catalina:type=ThreadPool,name=\"http-bio-8080\"][currentThreadsBusy]",
+            "system.property[java.version]", "agent.ping" };
+
+    private static final int ITERATIONS = 1000000;
+
+    private static final int ROUNDS = 5;
+
+    // defeats dead code elimination
+    private static int sink = 0;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        for (int round = 1; round <= ROUNDS; round++) {
+            final long parse = time(false);
+            final long compiled = time(true);
+            System.out.printf("round %d: parsing %6.1f ns/key, "
+                    + "compiled %6.1f ns/key%n", round, (double) parse
+                    / ITERATIONS, (double) compiled / ITERATIONS);
+        }
+        System.out.println(sink);
+    }
+
+    private static long time(final boolean compiled) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final String key = KEYS[i % KEYS.length];
+            if (compiled) {
+                final QueryKey query = QueryKey.compile(key);
+                if (query.objectName != null) {
+                    sink += query.path.length;
+                }
+            } else {
+                sink += parse(key);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /*
+     * The way the query handler used to take a key apart.
+     */
+    private static int parse(final String query) throws Exception {
+        final int lastOpen = query.lastIndexOf('[');
+        final int lastClose = query.lastIndexOf(']');
+        String attribute = null;
+        if (lastOpen >= 0 && lastClose >= 0) {
+            attribute = query.substring(lastOpen + 1, lastClose);
+        }
+        if (query.startsWith("trap") || query.startsWith("jmx_op")
+                || !query.startsWith("jmx")) {
+            return attribute == null ? 0 : 1;
+        }
+
+        final int firstClose = query.lastIndexOf(']', lastOpen);
+        final int firstOpen = query.indexOf('[');
+        final ObjectName objectName = new ObjectName(query.substring(
+                firstOpen + 1, firstClose));
+        final int dot = attribute.indexOf('.');
+        final String name = dot < 0 ? attribute : attribute.substring(0, dot);
+        return objectName.hashCode() + name.length();
+    }
+}
@@ -0,0 +1,90 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Compares reading the well-known <code>java.lang</code> metrics through the
+ * mbean server with reading them from the platform MXBeans directly. This is
+ * not a unit test, run it by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.kjkoster.zapcat.zabbix.PlatformMetricBenchmark
+ * </pre>
+ *
+ * It lives in the agent's package because the compiled keys are not part of
+ * the public API.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class PlatformMetricBenchmark {
+    private static final String[] KEYS = {
+            "jmx[java.lang:type=Memory][HeapMemoryUsage.used]",
+            "jmx[java.lang:type=Memory][NonHeapMemoryUsage.committed]",
+            "jmx[java.lang:type=Threading][ThreadCount]",
+            "jmx[java.lang:type=ClassLoading][LoadedClassCount]",
+            "jmx[java.lang:type=Runtime][Uptime]" };
+
+    private static final int ITERATIONS = 200000;
+
+    private static final int ROUNDS = 5;
+
+    // defeats dead code elimination
+    private static int sink = 0;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final QueryKey[] keys = new QueryKey[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            keys[i] = QueryKey.compile(KEYS[i]);
+            if (keys[i].platformMetric == null) {
+                throw new IllegalStateException("no direct reading for "
+                        + KEYS[i]);
+            }
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            final long generic = time(keys, false);
+            final long direct = time(keys, true);
+            System.out.printf("round %d: mbean server %7.1f ns/query, "
+                    + "direct %7.1f ns/query%n", round, (double) generic
+                    / ITERATIONS, (double) direct / ITERATIONS);
+        }
+        System.out.println(sink);
+    }
+
+    private static long time(final QueryKey[] keys, final boolean direct)
+            throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final QueryKey key = keys[i % keys.length];
+            if (direct) {
+                sink += Long.toString(key.platformMetric.read()).length();
+            } else {
+                sink += JMXHelper.query(key.objectName, key.path).length();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
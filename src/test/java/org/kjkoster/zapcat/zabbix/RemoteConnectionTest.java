@@ -0,0 +1,220 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the connection to a remote mbean server. The remote server
+ * is a connector server in this JVM that we stop and start again.
+ * <p>
+ * This test lives in the agent's package because the remote connection is
+ * not part of the public API.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class RemoteConnectionTest {
+    private static final int REGISTRY_PORT = 10098;
+
+    /**
+     * Test that the circuit opens when the server goes away, and that we
+     * reconnect in the background when it comes back.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        LocateRegistry.createRegistry(REGISTRY_PORT);
+        final JMXServiceURL url = new JMXServiceURL(
+                "service:jmx:rmi:///jndi/rmi://localhost:" + REGISTRY_PORT
+                        + "/zapcat");
+        final MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        JMXConnectorServer server = start(url, mbeanServer);
+
+        final RemoteConnection connection = new RemoteConnection(url,
+                new HashMap<String, Object>(), 1000L);
+        try {
+            assertEquals(RemoteConnection.State.NEW, connection.getState());
+            final MBeanServerConnection first = connection.get();
+            assertEquals(mbeanServer.getMBeanCount(), first.getMBeanCount());
+            assertEquals(RemoteConnection.State.CONNECTED, connection
+                    .getState());
+            assertSame(first, connection.get());
+
+            server.stop();
+            try {
+                first.getMBeanCount();
+                fail("the server is gone");
+            } catch (IOException e) {
+                connection.failed(first, e);
+            }
+            assertEquals(RemoteConnection.State.DISCONNECTED, connection
+                    .getState());
+            assertEquals(1L, connection.getFailures());
+
+            // the circuit is open, so we fail without trying to connect
+            final long start = System.currentTimeMillis();
+            try {
+                connection.get();
+                fail("the circuit should be open");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 1000L);
+
+            server = start(url, mbeanServer);
+            for (int i = 0; i < 100
+                    && connection.getState() != RemoteConnection.State.CONNECTED; i++) {
+                Thread.sleep(100L);
+            }
+            assertEquals(RemoteConnection.State.CONNECTED, connection
+                    .getState());
+            assertEquals(mbeanServer.getMBeanCount(), connection.get()
+                    .getMBeanCount());
+        } finally {
+            connection.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that the first call does not wait for long when the server is not
+     * there, and that the circuit opens.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testServerDown() throws Exception {
+        final RemoteConnection connection = new RemoteConnection(
+                new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"
+                        + (REGISTRY_PORT + 2) + "/zapcat"),
+                new HashMap<String, Object>(), 1000L);
+        try {
+            final long start = System.currentTimeMillis();
+            try {
+                connection.get();
+                fail("nobody is listening");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 1000L
+                    + RemoteConnection.FIRST_CONNECT_WAIT);
+
+            for (int i = 0; i < 50
+                    && connection.getState() != RemoteConnection.State.DISCONNECTED; i++) {
+                Thread.sleep(100L);
+            }
+            assertEquals(RemoteConnection.State.DISCONNECTED, connection
+                    .getState());
+            assertEquals(1L, connection.getFailures());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Test that the mbean index is built again when the connector tells us
+     * that it lost notifications.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNotificationsLost() throws Exception {
+        final MBeanServerConnection local = JMXHelper.getMBeanServer();
+        final MBeanIndex index = MBeanIndex.get();
+        final ObjectName name = new ObjectName("zapcat.test:type=Lost");
+
+        // make the index miss a registration
+        local.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                index);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Lost(), name);
+        try {
+            assertTrue(MBeanIndex.get().query(name).isEmpty());
+
+            final RemoteConnection connection = new RemoteConnection(
+                    new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"
+                            + REGISTRY_PORT + "/zapcat"),
+                    new HashMap<String, Object>(), 1000L);
+            connection.handleNotification(new JMXConnectionNotification(
+                    JMXConnectionNotification.NOTIFS_LOST, connection,
+                    "lost", 1L, "lost some notifications", Long.valueOf(1L)),
+                    null);
+
+            final MBeanIndex rebuilt = MBeanIndex.get();
+            assertNotSame(index, rebuilt);
+            assertEquals(1, rebuilt.query(name).size());
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        assertTrue(MBeanIndex.get().query(name).isEmpty());
+    }
+
+    /**
+     * The management interface of {@link Lost}.
+     */
+    public interface LostMBean {
+        /**
+         * @return Nothing of interest.
+         */
+        int getValue();
+    }
+
+    /**
+     * An mbean that the index does not hear about.
+     */
+    public static class Lost implements LostMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.RemoteConnectionTest.LostMBean#getValue()
+         */
+        public int getValue() {
+            return 0;
+        }
+    }
+
+    private static JMXConnectorServer start(final JMXServiceURL url,
+            final MBeanServer mbeanServer) throws IOException {
+        final JMXConnectorServer server = JMXConnectorServerFactory
+                .newJMXConnectorServer(url, null, mbeanServer);
+        server.start();
+        return server;
+    }
+}
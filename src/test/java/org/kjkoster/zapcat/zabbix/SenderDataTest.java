@@ -0,0 +1,71 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test cases for reading the responses of the Zabbix server.
+ * <p>
+ * This test lives in the agent's package because the sender protocol is not
+ * part of the public API.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SenderDataTest {
+    /**
+     * Test that only the response field decides whether the server accepted
+     * the request.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testResponse() throws Exception {
+        SenderData data = parse("{\"response\":\"success\",\"info\":"
+                + "\"processed: 2; failed: 1; total: 3\"}");
+        assertTrue(data.success);
+        assertEquals(2, data.processed);
+        assertEquals(1, data.failed);
+
+        // the way Zabbix 1.8 and 2.0 put it
+        data = parse("{\"response\":\"success\",\"info\":"
+                + "\"Processed 1 Failed 2 Total 3 Seconds spent 0.000100\"}");
+        assertTrue(data.success);
+        assertEquals(1, data.processed);
+        assertEquals(2, data.failed);
+
+        assertTrue(parse("{ \"response\" : \"success\" }").success);
+        assertFalse(parse("{\"response\":\"failed\","
+                + "\"info\":\"\\\"success\\\"\"}").success);
+        assertFalse(parse("{\"response\":\"failed\",\"success\":true}")
+                .success);
+
+        data = parse("{\"response\":\"failed\"}");
+        assertFalse(data.success);
+        assertEquals(-1, data.processed);
+        assertEquals(-1, data.failed);
+    }
+
+    private static SenderData parse(final String response) throws Exception {
+        return SenderData.parse(response.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,71 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the spool on disk.
+ * <p>
+ * This test lives in the agent's package because the spool is not part of
+ * the public API.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SpoolTest {
+    /**
+     * Test that only one spool at a time can use a directory, and that a
+     * closed spool no longer writes to it.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testLock() throws Exception {
+        final File directory = File.createTempFile("zapcat", "spool");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            final Spool first = new Spool(directory, 4096, 2);
+            assertTrue(first.append(new Item("foo", "bar", "1")));
+            try {
+                new Spool(directory, 4096, 2);
+                fail("the directory is in use");
+            } catch (IOException e) {
+                // expected
+            }
+            first.close();
+            assertFalse(first.append(new Item("foo", "bar", "2")));
+
+            final Spool second = new Spool(directory, 4096, 2);
+            assertEquals(1, second.size());
+            second.close();
+        } finally {
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}